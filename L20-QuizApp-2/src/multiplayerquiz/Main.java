@@ -4,19 +4,22 @@ import java.io.IOException;
 
 import multiplayerquiz.client.MainFrame;
 import multiplayerquiz.server.MainServerThread;
+import multiplayerquiz.server.ServerMode;
 
 
 /**
  * The JAR entry point, redirecting to the client or server based on
- * command-line options.
+ * command-line options.  To run a server:
+ * <pre>server questionsFile [threads|virtual-threads|nio]</pre>
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 3/29/2014
  */
 public class Main {
     public static void main(String[] args) throws IOException {
-        if (args.length >= 2 && args[0].contains("server"))
-            new MainServerThread(args[1]).start();
-        else
+        if (args.length >= 2 && args[0].contains("server")) {
+            ServerMode mode = args.length >= 3 ? ServerMode.parse(args[2]) : ServerMode.THREADS;
+            new MainServerThread(args[1], mode).start();
+        } else
             MainFrame.main();
     }
 }
@@ -4,11 +4,7 @@ package multiplayerquiz.client;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.ArrayList;
@@ -24,8 +20,13 @@ import javax.swing.SwingUtilities;
 import multiplayerquiz.common.model.BoardState;
 import multiplayerquiz.common.model.UserState;
 import multiplayerquiz.common.protocol.Answer;
+import multiplayerquiz.common.protocol.BoardStateDelta;
+import multiplayerquiz.common.protocol.BoardStateRequest;
 import multiplayerquiz.common.protocol.BoardStateUpdate;
 import multiplayerquiz.common.protocol.ClientHello;
+import multiplayerquiz.common.protocol.Leaderboard;
+import multiplayerquiz.common.protocol.LeaderboardRequest;
+import multiplayerquiz.common.protocol.MessageStream;
 import multiplayerquiz.common.protocol.Protocol;
 import multiplayerquiz.common.protocol.ProtocolException;
 import multiplayerquiz.common.protocol.ProtocolMessage;
@@ -34,6 +35,7 @@ import multiplayerquiz.common.protocol.BidAccepted;
 import multiplayerquiz.common.protocol.BidRefused;
 import multiplayerquiz.common.protocol.ServerHello;
 import multiplayerquiz.common.protocol.UserStateUpdate;
+import multiplayerquiz.common.protocol.WireFormat;
 import multiplayerquiz.server.MainServerThread;
 
 /**
@@ -43,19 +45,32 @@ import multiplayerquiz.server.MainServerThread;
  */
 public final class MainFrame extends JFrame {
     private static final long serialVersionUID = 1L;
-    private final BufferedReader reader;
-    private final BufferedWriter writer;
+    private final MessageStream stream;
     private UserState userState;
     private BoardState boardState;
     private final List<QuestionButton> questionButtons = new ArrayList<QuestionButton>();
     private final JLabel scoreLabel;
     private final BlockingQueue<ProtocolMessage> messageQueue = new LinkedBlockingQueue<ProtocolMessage>();
-    private MainFrame(BufferedReader reader, BufferedWriter writer, ServerHello hello, BoardState boardState) {
-        this.reader = reader;
-        this.writer = writer;
+    /**
+     * True if the server accepted the pipeline feature, so bids are tagged
+     * with request ids and their replies handled as they arrive rather than
+     * waited for.
+     */
+    private final boolean pipeline;
+    /**
+     * The next bid's request id; only accessed by the event dispatch thread.
+     */
+    private int nextRequestId;
+    /**
+     * The number of top scores to show on the leaderboard.
+     */
+    private static final int LEADERBOARD_SIZE = 10;
+    private MainFrame(MessageStream stream, ServerHello hello, BoardState boardState, long boardSequence) {
+        this.stream = stream;
         this.userState = hello.getUserState();
         this.boardState = boardState;
-        new ReaderThread().start();
+        this.pipeline = hello.getFeatures().contains(Bid.FEATURE);
+        new ReaderThread(boardState, boardSequence).start();
 
         int numRows = hello.getQuestionsPerCategory() + 2;
         int numCols = hello.getCategories().size();
@@ -74,6 +89,21 @@ public final class MainFrame extends JFrame {
 
         this.scoreLabel = new JLabel("score: TODO");
         add(scoreLabel);
+        if (hello.getFeatures().contains(Leaderboard.FEATURE)) {
+            JButton leaderboardButton = new JButton("Leaderboard");
+            leaderboardButton.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    try {
+                        //The reply arrives asynchronously; see ReaderThread.
+                        send(new LeaderboardRequest(LEADERBOARD_SIZE));
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            });
+            add(leaderboardButton);
+        }
         pack();
         update();
         setDefaultCloseOperation(EXIT_ON_CLOSE);
@@ -110,9 +140,13 @@ public final class MainFrame extends JFrame {
     private void doBid(int category, int question) {
         try {
             int amount = Integer.parseInt(JOptionPane.showInputDialog("How much do you want to risk?"));
+            if (pipeline) {
+                //The replies arrive asynchronously; see ReaderThread.
+                send(new Bid(category, question, amount, nextRequestId++));
+                return;
+            }
             //TODO: event thread I/O == bad
-            writer.write(Protocol.serialize(new Bid(category, question, amount)));
-            writer.flush();
+            send(new Bid(category, question, amount));
 
             ProtocolMessage reply = messageQueue.take();
             if (reply instanceof BidRefused) {
@@ -123,8 +157,7 @@ public final class MainFrame extends JFrame {
             QuestionDialog qd = new QuestionDialog(this, ra.getQuestion());
             qd.setVisible(true);
             int answer = qd.getAnswer();
-            writer.write(Protocol.serialize(new Answer(answer)));
-            writer.flush();
+            send(new Answer(answer));
 
             UserStateUpdate update = (UserStateUpdate)messageQueue.take();
             this.userState = update.getUserState();
@@ -137,6 +170,45 @@ public final class MainFrame extends JFrame {
         }
     }
 
+    /**
+     * Handles a reply to a tagged bid or answer.  Called on the event dispatch
+     * thread.
+     */
+    private void receiveReply(ProtocolMessage reply) throws IOException {
+        if (reply instanceof BidRefused)
+            JOptionPane.showMessageDialog(this, ((BidRefused)reply).getReason());
+        else if (reply instanceof BidAccepted) {
+            BidAccepted ra = (BidAccepted)reply;
+            QuestionDialog qd = new QuestionDialog(this, ra.getQuestion());
+            qd.setVisible(true);
+            send(new Answer(qd.getAnswer(), ra.getRequestId()));
+        } else {
+            UserStateUpdate update = (UserStateUpdate)reply;
+            this.userState = update.getUserState();
+            update();
+            JOptionPane.showMessageDialog(this, update.getMessage());
+        }
+    }
+
+    /**
+     * Writes a message to the server.  Both the event dispatch thread and the
+     * reader thread send messages, so writes are serialized here.
+     */
+    private void send(ProtocolMessage message) throws IOException {
+        synchronized (stream) {
+            stream.write(message);
+        }
+    }
+
+    private void showLeaderboard(Leaderboard leaderboard) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("You are ranked %d of %d with %d points.%n%nTop scores:%n",
+                leaderboard.getRank(), leaderboard.getPlayers(), leaderboard.getScore()));
+        for (int i = 0; i < leaderboard.getTopScores().size(); ++i)
+            sb.append(String.format("%d. %d%n", i + 1, leaderboard.getTopScores().get(i)));
+        JOptionPane.showMessageDialog(this, sb.toString(), "Leaderboard", JOptionPane.INFORMATION_MESSAGE);
+    }
+
     private void update() {
         for (QuestionButton b : questionButtons)
             b.update();
@@ -144,37 +216,107 @@ public final class MainFrame extends JFrame {
     }
 
     /**
-     * Reads messages from the socket.  BoardStateUpdate messages are posted to
-     * the event dispatch thread for update; other messages are put into a
+     * Reads messages from the socket.  BoardStateUpdate messages (or
+     * BoardStateDelta messages, applied here) are posted to the event dispatch
+     * thread for update, as are Leaderboard replies (which may arrive at any
+     * time) and replies to tagged bids; other messages are put into a
      * BlockingQueue.
      */
     private final class ReaderThread extends Thread {
-        ReaderThread() {
+        /**
+         * The board as of sequence (for deltas); only accessed by this thread.
+         */
+        private BoardState latestBoard;
+        private long sequence;
+        /**
+         * True if we've seen a gap and requested a snapshot, so should ignore
+         * deltas until it arrives.
+         */
+        private boolean awaitingSnapshot;
+        ReaderThread(BoardState boardState, long sequence) {
             super("ReaderThread");
             setDaemon(true);
+            this.latestBoard = boardState;
+            this.sequence = sequence;
         }
         @Override
         public void run() {
             while (true) {
                 try {
-                    final ProtocolMessage message = Protocol.deserialize(reader.readLine());
+                    final ProtocolMessage message = stream.read();
+                    if (message == null) //server closed socket
+                        break;
                     if (message instanceof BoardStateUpdate)
+                        post(((BoardStateUpdate)message).getBoardState());
+                    else if (message instanceof BoardStateDelta)
+                        receive((BoardStateDelta)message);
+                    else if (message instanceof Leaderboard)
                         SwingUtilities.invokeLater(new Runnable() {
                             @Override
                             public void run() {
-                                boardState = ((BoardStateUpdate)message).getBoardState();
-                                update();
+                                showLeaderboard((Leaderboard)message);
+                            }
+                        });
+                    else if (isTaggedReply(message))
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    receiveReply(message);
+                                } catch (IOException ex) {
+                                    ex.printStackTrace();
+                                }
                             }
                         });
                     else
                         messageQueue.put(message);
                 } catch (IOException ex) {
                     ex.printStackTrace();
+                    break;
                 } catch (InterruptedException ex) {
                     ex.printStackTrace();
                 }
             }
         }
+
+        private boolean isTaggedReply(ProtocolMessage message) {
+            int requestId;
+            if (message instanceof BidAccepted)
+                requestId = ((BidAccepted)message).getRequestId();
+            else if (message instanceof BidRefused)
+                requestId = ((BidRefused)message).getRequestId();
+            else if (message instanceof UserStateUpdate)
+                requestId = ((UserStateUpdate)message).getRequestId();
+            else
+                return false;
+            return requestId != Protocol.NO_REQUEST_ID;
+        }
+
+        private void receive(BoardStateDelta delta) throws IOException {
+            if (delta.isSnapshot()) {
+                awaitingSnapshot = false;
+            } else if (awaitingSnapshot || delta.getSequence() <= sequence) {
+                return; //stale
+            } else if (delta.getSequence() != sequence + 1) {
+                //We missed one; we can't apply this until we resynchronize.
+                awaitingSnapshot = true;
+                send(new BoardStateRequest());
+                return;
+            }
+            latestBoard = delta.applyTo(latestBoard);
+            sequence = delta.getSequence();
+            post(latestBoard);
+        }
+
+        private void post(final BoardState state) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    boardState = state;
+                    update();
+                }
+            });
+        }
     }
 
     public static void main() {
@@ -182,21 +324,28 @@ public final class MainFrame extends JFrame {
         int serverPort = MainServerThread.SERVER_PORT;
         try {
             Socket socket = new Socket(InetAddress.getByName(serverIP), serverPort);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            writer.write(Protocol.serialize(new ClientHello()));
-            writer.flush();
-            ProtocolMessage message = Protocol.deserialize(reader.readLine());
+            MessageStream stream = new MessageStream(socket.getInputStream(), socket.getOutputStream());
+            stream.write(new ClientHello(WireFormat.BINARY_FEATURE, BoardStateDelta.FEATURE, Leaderboard.FEATURE,
+                    Bid.FEATURE));
+            ProtocolMessage message = stream.read();
             if (!(message instanceof ServerHello))
                 throw new ProtocolException("expected ServerHello, got "+message);
             ServerHello hello = (ServerHello)message;
+            if (hello.getFeatures().contains(WireFormat.BINARY_FEATURE))
+                stream.setWireFormat(WireFormat.BINARY);
 
-            message = Protocol.deserialize(reader.readLine());
-            if (!(message instanceof BoardStateUpdate))
+            message = stream.read();
+            BoardState boardState;
+            long boardSequence = -1;
+            if (message instanceof BoardStateUpdate)
+                boardState = ((BoardStateUpdate)message).getBoardState();
+            else if (message instanceof BoardStateDelta && ((BoardStateDelta)message).isSnapshot()) {
+                boardState = ((BoardStateDelta)message).getSnapshot();
+                boardSequence = ((BoardStateDelta)message).getSequence();
+            } else
                 throw new ProtocolException("expected BoardStateUpdateResponse, got "+message);
-            BoardState boardState = ((BoardStateUpdate)message).getBoardState();
 
-            final JFrame frame = new MainFrame(reader, writer, hello, boardState);
+            final JFrame frame = new MainFrame(stream, hello, boardState, boardSequence);
             SwingUtilities.invokeLater(new Runnable() {
                 @Override
                 public void run() {
@@ -1,6 +1,12 @@
 package multiplayerquiz.common.model;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import multiplayerquiz.common.protocol.BinaryDecoder;
+import multiplayerquiz.common.protocol.BinaryEncoder;
+import multiplayerquiz.common.protocol.ProtocolException;
+import multiplayerquiz.common.protocol.TextDecoder;
 
 /**
  * The board state, as number of points currently available per question.
@@ -40,6 +46,40 @@ public final class BoardState {
         this.points = points;
     }
 
+    /**
+     * Creates a BoardState with a copy of the given points, for building a
+     * snapshot of a board kept elsewhere.
+     * @param points points[category][question], non-negative, all rows the
+     * same length
+     * @return a new BoardState
+     */
+    public static BoardState copyOf(int[][] points) {
+        int[][] copy = new int[points.length][];
+        for (int i = 0; i < points.length; ++i)
+            copy[i] = points[i].clone();
+        return new BoardState(copy);
+    }
+
+    /**
+     * Creates a BoardState with a copy of the given cells, for snapshotting a
+     * board updated in place, reading each cell straight into the new state
+     * rather than into an array copyOf would copy again.  The copy isn't
+     * atomic across cells.
+     * @param cells the points, non-negative, indexed category *
+     * questionsPerCategory + question
+     * @return a new BoardState
+     */
+    public static BoardState copyOf(AtomicIntegerArray cells, int categories, int questionsPerCategory) {
+        if ((long)categories * questionsPerCategory != cells.length())
+            throw new IllegalArgumentException(String.format("%d cells for %d x %d board",
+                    cells.length(), categories, questionsPerCategory));
+        int[][] points = new int[categories][questionsPerCategory];
+        for (int c = 0; c < categories; ++c)
+            for (int q = 0; q < questionsPerCategory; ++q)
+                points[c][q] = cells.get(c * questionsPerCategory + q);
+        return new BoardState(points);
+    }
+
     /**
      * Returns a new BoardState as the result of updating a specific
      * localtion of the point table
@@ -58,6 +98,49 @@ public final class BoardState {
     }
     
 
+    /**
+     * Returns a new BoardState with the given cells set to new point values.
+     * @param cells (category, question, points) triples, as returned by
+     * {@link #changedCells(BoardState)}
+     * @return a new, updated BoardState
+     */
+    public BoardState withCells(int[] cells) {
+        int[][] points = this.points.clone();
+        for (int i = 0; i < cells.length; i += 3) {
+            int category = cells[i];
+            if (points[category] == this.points[category])
+                points[category] = points[category].clone();
+            points[category][cells[i+1]] = cells[i+2];
+        }
+        return new BoardState(points);
+    }
+
+    /**
+     * Returns the cells whose point values differ in the given state, which
+     * must have the same dimensions.
+     * @param newer the state to compare against
+     * @return (category, question, points in newer) triples, flattened
+     */
+    public int[] changedCells(BoardState newer) {
+        int count = 0;
+        for (int i = 0; i < points.length; ++i)
+            if (points[i] != newer.points[i])
+                for (int j = 0; j < points[i].length; ++j)
+                    if (points[i][j] != newer.points[i][j])
+                        ++count;
+        int[] cells = new int[3*count];
+        int k = 0;
+        for (int i = 0; i < points.length; ++i)
+            if (points[i] != newer.points[i])
+                for (int j = 0; j < points[i].length; ++j)
+                    if (points[i][j] != newer.points[i][j]) {
+                        cells[k++] = i;
+                        cells[k++] = j;
+                        cells[k++] = newer.points[i][j];
+                    }
+        return cells;
+    }
+
     /**
      * 
      * @param category  0 <= category < numCategories
@@ -74,14 +157,26 @@ public final class BoardState {
      * @return
      */
     public static BoardState parse(String string) {
-        String[] fragments = string.split(" ");
-        int categories = Integer.parseInt(fragments[0]);
-        int questionsPerCategory = Integer.parseInt(fragments[1]);
+        return parse(new TextDecoder(string));
+    }
+
+    /**
+     * Reads a BoardState in the format of {@link #toProtocolString()}.
+     * @param in the decoder
+     * @return the BoardState
+     */
+    public static BoardState parse(TextDecoder in) {
+        int categories = in.readInt();
+        int questionsPerCategory = in.readInt();
+        if (categories < 0 || questionsPerCategory < 0)
+            throw new ProtocolException("negative board dimensions in "+in);
+        in.checkCount(categories);
+        in.checkCount((long)categories * questionsPerCategory);
         int[][] points = new int[categories][questionsPerCategory];
 
         for (int i = 0; i < categories; ++i)
             for (int j = 0; j < questionsPerCategory; ++j)
-                points[i][j] = Integer.parseInt(fragments[i*questionsPerCategory + j + 2]);
+                points[i][j] = in.readInt();
         return new BoardState(points);
     }
 
@@ -101,6 +196,35 @@ public final class BoardState {
         return sb.toString();
     }
     
+    /**
+     * Reads a BoardState written by {@link #encode(BinaryEncoder)}.
+     * @param in the decoder
+     * @return the BoardState
+     */
+    public static BoardState decode(BinaryDecoder in) {
+        int categories = in.readCount();
+        int questionsPerCategory = in.readVarint();
+        in.checkCount((long)categories * questionsPerCategory);
+        int[][] points = new int[categories][questionsPerCategory];
+        for (int i = 0; i < categories; ++i)
+            for (int j = 0; j < questionsPerCategory; ++j)
+                points[i][j] = in.readVarint();
+        return new BoardState(points);
+    }
+
+    /**
+     * Writes the BoardState in the binary protocol: the dimensions, then
+     * each point value as a varint.
+     * @param out the encoder
+     */
+    public void encode(BinaryEncoder out) {
+        out.writeVarint(points.length);
+        out.writeVarint(points[0].length);
+        for (int[] x : points)
+            for (int y : x)
+                out.writeVarint(y);
+    }
+    
     public int totalPoints() {
         int tot = 0;
         for (int i = 0; i < points.length; ++i)
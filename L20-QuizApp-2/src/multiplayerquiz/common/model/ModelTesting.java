@@ -2,6 +2,17 @@ package multiplayerquiz.common.model;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import multiplayerquiz.common.protocol.*;
+
 import org.junit.Test;
 
 public class ModelTesting {
@@ -69,5 +80,242 @@ public class ModelTesting {
         assertNotSame(bss, bssx);
     }
     
+    @Test
+    /**
+     * Applying the changed cells between two boards to the older one should
+     * give the newer one, and unchanged boards have no changed cells.
+     */
+    public void BoardStateChangedCells() {
+        BoardState bs = new BoardState(1000, 10, 5);
+        BoardState bs2 = bs.withUpdate(1, 3, 100).withUpdate(7, 0, -50).withUpdate(1, 4, 10);
+        
+        int[] cells = bs.changedCells(bs2);
+        assertEquals(9, cells.length);
+        assertEquals(bs2.toProtocolString(), bs.withCells(cells).toProtocolString());
+        assertEquals(1000, bs.getAvailablePoints(1, 3));
+        assertEquals(0, bs2.changedCells(bs2).length);
+    }
+    
+    @Test
+    /**
+     * copyOf should copy the given points (nested or flat), so later changes
+     * to them don't show through.
+     */
+    public void BoardStateCopyOf() {
+        int[][] points = {{1, 2, 3}, {4, 5, 6}};
+        BoardState bs = BoardState.copyOf(points);
+        points[1][2] = 60;
+        
+        assertEquals("2 3 1 2 3 4 5 6", bs.toProtocolString());
+        assertEquals(0, bs.changedCells(BoardState.copyOf(new int[][]{{1, 2, 3}, {4, 5, 6}})).length);
+
+        AtomicIntegerArray cells = new AtomicIntegerArray(new int[]{1, 2, 3, 4, 5, 6});
+        bs = BoardState.copyOf(cells, 2, 3);
+        cells.set(5, 60);
+        assertEquals("2 3 1 2 3 4 5 6", bs.toProtocolString());
+    }
+    
+    @Test
+    /**
+     * A UserState made from a region of a flat history array should copy it,
+     * and match the same state built by updates.
+     */
+    public void UserStateFromFlatHistory() {
+        int[] flat = {7, 7, 0, 10, 0, -5, 0, 0, 7};
+        UserState us = new UserState(105, 2, 3, flat, 2);
+        flat[3] = 99;
+
+        UserState updated = new UserState(100, 2, 3).withUpdate(0, 1, 10).withUpdate(1, 0, -5);
+        assertEquals(updated.toProtocolString(), us.toProtocolString());
+    }
+
+    @Test
+    /**
+     * Every message should survive text serialization and parsing unchanged,
+     * including escaped and empty strings.
+     */
+    public void ProtocolTextRoundTrips() {
+        BoardState board = new BoardState(1000, 3, 2).withUpdate(1, 1, -250);
+        UserState user = new UserState(100, 3, 2).withUpdate(2, 0, -40);
+        Question question = new Question("What is\n2 + 2?\n", Arrays.asList("3", "four ", "", "\u00e9"));
+        List<ProtocolMessage> messages = Arrays.<ProtocolMessage>asList(
+                new ClientHello(UUID.randomUUID(), "binary", "x y"),
+                new ServerHello(Arrays.asList("Java", "Concurrency Control", ""), 2, user, Arrays.asList("binary")),
+                new BoardStateUpdate(board),
+                new BoardStateDelta(7, new int[]{0, 1, -5, 2, 0, 12}),
+                new BoardStateDelta(Long.MAX_VALUE, board),
+                new Bid(2, 1, -3),
+                new Bid(2, 1, 50, 0),
+                new BidAccepted(question),
+                new BidAccepted(question, 17),
+                new BidRefused("too few points"),
+                new BidRefused("", Integer.MAX_VALUE),
+                new Answer(Integer.MIN_VALUE),
+                new Answer(-1, 3),
+                new UserStateUpdate(user, ""),
+                new UserStateUpdate(user, "correct", 3),
+                new BidBatch(Arrays.asList(new Bid(0, 1, 2), new Bid(2, 1, -5))),
+                new BidBatch(Arrays.<Bid>asList()),
+                new BidBatchReply(Arrays.asList(new BidAccepted(question), new BidRefused("too few points"),
+                        new BidAccepted(question))),
+                new AnswerBatch(Arrays.asList(3, -1, 0)),
+                new UserStateUpdateBatch(user, Arrays.asList("correct", "", "timed out")),
+                new LeaderboardRequest(10),
+                new Leaderboard(1, 250, 3, Arrays.asList(250, 100, 90)));
+        for (ProtocolMessage m : messages) {
+            String text = Protocol.serialize(m);
+            byte[] bytes = text.getBytes(WireFormat.TEXT_CHARSET);
+            assertEquals(text, Protocol.serialize(Protocol.deserialize(text)));
+            assertEquals(text, Protocol.serialize(Protocol.deserialize(bytes, 0, bytes.length)));
+        }
+    }
 
+    @Test
+    /**
+     * Escaping should undo cleanly, leave strings needing none untouched
+     * (returning the same String), and append the same characters as it
+     * returns.
+     */
+    public void ProtocolEscapes() {
+        String plain = "no_escapes\u00e9\t";
+        assertSame(plain, Protocol.escape(plain));
+        assertSame(plain, Protocol.unescape(plain));
+        for (String s : new String[]{" ", "a b\nc\r\n", "\n\nlines \u2603 end ", plain}) {
+            String escaped = Protocol.escape(s);
+            assertEquals(-1, escaped.indexOf(' '));
+            assertEquals(-1, escaped.indexOf('\n'));
+            assertEquals(-1, escaped.indexOf('\r'));
+            assertEquals(s, Protocol.unescape(escaped));
+            StringBuilder sb = new StringBuilder("x");
+            Protocol.escape(s, sb);
+            assertEquals("x" + escaped, sb.toString());
+        }
+    }
+
+    @Test
+    /**
+     * Malformed text messages (including unknown message IDs) should be
+     * ProtocolExceptions, not NumberFormatExceptions or
+     * ArrayIndexOutOfBoundsExceptions.
+     */
+    public void ProtocolTextRejectsMalformed() {
+        String[] malformed = {"", "NoSuchMessage 1", "BidBegin 1 2", "BidBegin 1 2 3 -4", "BidBegin 1 2 3 4 5",
+            "BidBegin 1 x 3",
+            "Answer 2147483648", "BoardStateUpdate 2 2 1 2 3", "BoardStateUpdate -1 2",
+            //IDs are looked up by hash: same hash as "Bid", a prefix, non-ASCII
+            "BjE 1 2 3", "Bi 1 2 3", "B\u00efd 1 2 3"};
+        for (String m : malformed) {
+            try {
+                Protocol.deserialize(m);
+                fail("parsed " + m);
+            } catch (ProtocolException expected) {
+            }
+        }
+    }
+
+    @Test
+    /**
+     * Counts and lengths read off the wire must be checked against what the
+     * message could hold before anything is allocated for them, in every
+     * decoder and I/O mode, so a few hostile bytes are a ProtocolException
+     * rather than an OutOfMemoryError.
+     */
+    public void ProtocolRejectsHostileCounts() throws IOException {
+        int huge = 1 << 30;
+        int[][] frames = {
+            {3, huge, huge},        //BoardStateUpdate: categories x questions
+            {3, huge, 0},           //BoardStateUpdate: many empty categories
+            {9, 1, 0, huge},        //BoardStateDelta: cell count (3x overflows)
+            {9, 1, 0, 0x55555556},
+            {2, huge},              //ServerHello: category count
+            {5, 0, huge},           //BidAccepted: choice count
+            {13, huge},             //BidBatch: bid count
+        };
+        for (int[] f : frames) {
+            BinaryEncoder out = new BinaryEncoder();
+            out.writeByte(f[0]);
+            for (int i = 1; i < f.length; ++i)
+                out.writeVarint(f[i]);
+            byte[] frame = out.toFrame();
+            try {
+                Protocol.deserializeFrame(frame, 1, frame.length - 1);
+                fail("decoded "+Arrays.toString(f));
+            } catch (ProtocolException expected) {
+            }
+        }
+        String[] lines = {"BoardStateUpdate 1073741824 1073741824", "BoardStateUpdate 1073741824 0",
+            "BoardStateDelta 1 1073741824", "BidAccepted x 1073741824"};
+        for (String line : lines)
+            try {
+                Protocol.deserialize(line);
+                fail("parsed "+line);
+            } catch (ProtocolException expected) {
+            }
+
+        //A frame header claiming 2 GB, and a line longer than the limit.
+        byte[] header = {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07};
+        MessageStream stream = new MessageStream(new ByteArrayInputStream(header), new ByteArrayOutputStream());
+        stream.setWireFormat(WireFormat.BINARY);
+        try {
+            stream.read();
+            fail("read 2 GB frame");
+        } catch (ProtocolException expected) {
+        }
+        byte[] line = new byte[Protocol.MAX_MESSAGE_LENGTH + 2];
+        Arrays.fill(line, (byte)'x');
+        stream = new MessageStream(new ByteArrayInputStream(line), new ByteArrayOutputStream());
+        try {
+            stream.read();
+            fail("read overlong line");
+        } catch (ProtocolException expected) {
+        }
+    }
+
+    @Test
+    /**
+     * Adding a request id to an encoded reply should give the same bytes as
+     * encoding the reply with it, in both formats, and decode back to it.
+     */
+    public void ProtocolAppendsRequestIds() {
+        Question question = new Question("Which?\n", Arrays.asList("this one", "that one"));
+        for (WireFormat format : WireFormat.values())
+            for (int requestId : new int[]{0, 127, 128, 300000, Integer.MAX_VALUE}) {
+                ByteBuffer shared = format.encodeShared(new BidAccepted(question));
+                ByteBuffer tagged = format.withRequestId(shared, requestId);
+                byte[] bytes = new byte[tagged.remaining()];
+                tagged.get(bytes);
+                assertTrue(Arrays.equals(format.encode(new BidAccepted(question, requestId)), bytes));
+                assertEquals(0, shared.position());
+            }
+        byte[] frame = Protocol.serializeFrame(new Answer(-7, 200));
+        Answer answer = (Answer)Protocol.deserializeFrame(frame, 1, frame.length - 1);
+        assertEquals(-7, answer.getAnswer());
+        assertEquals(200, answer.getRequestId());
+        frame = Protocol.serializeFrame(new Answer(-7));
+        assertEquals(Protocol.NO_REQUEST_ID, ((Answer)Protocol.deserializeFrame(frame, 1, frame.length - 1)).getRequestId());
+    }
+
+    @Test
+    /**
+     * A frame's length prefix is written into the room reserved ahead of the
+     * payload, whatever its size; both ways of taking the frame should give
+     * the prefix and the payload.
+     */
+    public void BinaryEncoderFramesInPlace() {
+        for (int length : new int[]{0, 1, 127, 128, 300, 20000}) {
+            BinaryEncoder out = new BinaryEncoder(1);
+            for (int i = 0; i < length; ++i)
+                out.writeByte(i);
+            byte[] frame = out.toFrame();
+            BinaryDecoder in = new BinaryDecoder(frame, 0, frame.length);
+            assertEquals(length, in.readVarint());
+            assertEquals(length, frame.length - in.position());
+            for (int i = 0; i < length; ++i)
+                assertEquals((byte)i, frame[in.position() + i]);
+            ByteBuffer buffer = out.toFrameBuffer();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            assertTrue(Arrays.equals(frame, bytes));
+        }
+    }
 }
@@ -4,7 +4,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import multiplayerquiz.common.protocol.BinaryDecoder;
+import multiplayerquiz.common.protocol.BinaryEncoder;
 import multiplayerquiz.common.protocol.Protocol;
+import multiplayerquiz.common.protocol.ProtocolException;
+import multiplayerquiz.common.protocol.TextDecoder;
 
 /**
  * A multiple-choice quiz question.
@@ -16,6 +20,8 @@ public final class Question {
     private final String question;
     // All the answers for the question
     private final List<String> choices;
+    // The protocol string, if supplied already escaped, or null
+    private final String protocolString;
 
     /**
      * Create a new question given the question text and the answers
@@ -24,8 +30,21 @@ public final class Question {
      * @param choices
      */
     public Question(String question, List<String> choices) {
+        this(question, choices, null);
+    }
+
+    /**
+     * Create a new question whose protocol string has already been computed
+     * (e.g., stored in a compiled question bank), so it needn't be escaped
+     * again.
+     * @param question
+     * @param choices
+     * @param protocolString what toProtocolString() would return, or null
+     */
+    public Question(String question, List<String> choices, String protocolString) {
         this.question = question;
         this.choices = Collections.unmodifiableList(choices);
+        this.protocolString = protocolString;
     }
 
     /**
@@ -50,12 +69,17 @@ public final class Question {
      * @return
      */
     public String toProtocolString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(Protocol.escape(question)).append(' ');
-        sb.append(choices.size()).append(' ');
-        sb.append(Protocol.escape(choices.get(0)));
+        if (protocolString != null)
+            return protocolString;
+        int length = question.length() + 4;
+        for (String choice : choices)
+            length += choice.length() + 1;
+        StringBuilder sb = new StringBuilder(length);
+        Protocol.escape(question, sb);
+        sb.append(' ').append(choices.size()).append(' ');
+        Protocol.escape(choices.get(0), sb);
         for (int i = 1; i < choices.size(); ++i)
-            sb.append(' ').append(Protocol.escape(choices.get(i)));
+            Protocol.escape(choices.get(i), sb.append(' '));
         return sb.toString();
     }
 
@@ -65,12 +89,46 @@ public final class Question {
      * @return
      */
     public static Question parse(String string) {
-        String[] fragments = string.split(" ");
-        String question = Protocol.unescape(fragments[0]);
-        int numChoices = Integer.parseInt(fragments[1]);
+        return parse(new TextDecoder(string));
+    }
+
+    /**
+     * Reads a Question in the format of {@link #toProtocolString()}.
+     * @param in the decoder
+     * @return the Question
+     */
+    public static Question parse(TextDecoder in) {
+        String question = in.readString();
+        int numChoices = in.readCount();
         List<String> choices = new ArrayList<String>(numChoices);
-        for (int i = 2; i < 2+numChoices; ++i)
-            choices.add(Protocol.unescape(fragments[i]));
+        for (int i = 0; i < numChoices; ++i)
+            choices.add(in.readString());
         return new Question(question, choices);
     }
+
+    /**
+     * Reads a Question written by {@link #encode(BinaryEncoder)}.
+     * @param in the decoder
+     * @return the Question
+     */
+    public static Question decode(BinaryDecoder in) {
+        String question = in.readString();
+        int numChoices = in.readCount();
+        List<String> choices = new ArrayList<String>(numChoices);
+        for (int i = 0; i < numChoices; ++i)
+            choices.add(in.readString());
+        return new Question(question, choices);
+    }
+
+    /**
+     * Writes the question in the binary protocol.  Strings are
+     * length-prefixed, so no escaping is needed.
+     * @param out the encoder
+     */
+    public void encode(BinaryEncoder out) {
+        out.writeString(question);
+        out.writeVarint(choices.size());
+        for (String choice : choices)
+            out.writeString(choice);
+    }
 }
@@ -1,5 +1,12 @@
 package multiplayerquiz.common.model;
 
+import java.util.Arrays;
+
+import multiplayerquiz.common.protocol.BinaryDecoder;
+import multiplayerquiz.common.protocol.BinaryEncoder;
+import multiplayerquiz.common.protocol.ProtocolException;
+import multiplayerquiz.common.protocol.TextDecoder;
+
 /**
  * The state of a user, containing its current score and its answer history.
  * Instances of this class are immutable.
@@ -26,6 +33,23 @@ public final class UserState {
         this.history = new int[categories][questionsPerCategory];
     }
 
+    /**
+     * Creates a new UserState with the given score and a copy of the given
+     * history, stored category by category starting at offset.
+     * @param score
+     * @param categories
+     * @param questionsPerCategory
+     * @param history
+     * @param offset
+     */
+    public UserState(int score, int categories, int questionsPerCategory, int[] history, int offset) {
+        this.score = score;
+        this.history = new int[categories][];
+        for (int i = 0; i < categories; ++i)
+            this.history[i] = Arrays.copyOfRange(history,
+                    offset + i * questionsPerCategory, offset + (i + 1) * questionsPerCategory);
+    }
+
     /**
      * Creates a new UserState with the given score and history.  The new state
      * takes ownership of the history array, so they should not be modified.
@@ -80,15 +104,27 @@ public final class UserState {
     }
 
     public static UserState parse(String string) {
-        String[] fragments = string.split(" ");
-        int score = Integer.parseInt(fragments[0]);
-        int categories = Integer.parseInt(fragments[1]);
-        int questionsPerCategory = Integer.parseInt(fragments[2]);
+        return parse(new TextDecoder(string));
+    }
+
+    /**
+     * Reads a UserState in the format of {@link #toProtocolString()}.
+     * @param in the decoder
+     * @return the UserState
+     */
+    public static UserState parse(TextDecoder in) {
+        int score = in.readInt();
+        int categories = in.readInt();
+        int questionsPerCategory = in.readInt();
+        if (categories < 0 || questionsPerCategory < 0)
+            throw new ProtocolException("negative history dimensions in "+in);
+        in.checkCount(categories);
+        in.checkCount((long)categories * questionsPerCategory);
         int[][] history = new int[categories][questionsPerCategory];
 
         for (int i = 0; i < categories; ++i)
             for (int j = 0; j < questionsPerCategory; ++j)
-                history[i][j] = Integer.parseInt(fragments[i*questionsPerCategory + j + 3]);
+                history[i][j] = in.readInt();
         return new UserState(score, history);
     }
 
@@ -104,4 +140,35 @@ public final class UserState {
         sb.deleteCharAt(sb.length()-1);
         return sb.toString();
     }
+
+    /**
+     * Reads a UserState written by {@link #encode(BinaryEncoder)}.
+     * @param in the decoder
+     * @return the UserState
+     */
+    public static UserState decode(BinaryDecoder in) {
+        int score = in.readSignedVarint();
+        int categories = in.readCount();
+        int questionsPerCategory = in.readVarint();
+        in.checkCount((long)categories * questionsPerCategory);
+        int[][] history = new int[categories][questionsPerCategory];
+        for (int i = 0; i < categories; ++i)
+            for (int j = 0; j < questionsPerCategory; ++j)
+                history[i][j] = in.readSignedVarint();
+        return new UserState(score, history);
+    }
+
+    /**
+     * Writes the UserState in the binary protocol.  History entries are
+     * signed, so they're zigzag-encoded.
+     * @param out the encoder
+     */
+    public void encode(BinaryEncoder out) {
+        out.writeSignedVarint(score);
+        out.writeVarint(history.length);
+        out.writeVarint(history[0].length);
+        for (int[] x : history)
+            for (int y : x)
+                out.writeSignedVarint(y);
+    }
 }
@@ -8,24 +8,31 @@ package multiplayerquiz.common.protocol;
 public abstract class AbstractMessageSerializer implements MessageSerializer {
     private final Class<? extends ProtocolMessage> messageClass;
     private final String messageId;
+    private final byte messageType;
 
-    public AbstractMessageSerializer(Class<? extends ProtocolMessage> messageClass, String messageId) {
+    public AbstractMessageSerializer(Class<? extends ProtocolMessage> messageClass, String messageId, int messageType) {
         this.messageClass = messageClass;
         this.messageId = messageId;
+        this.messageType = (byte)messageType;
     }
 
     @Override
-    public boolean canSerialize(ProtocolMessage message) {
-        return messageClass.isInstance(message);
+    public Class<? extends ProtocolMessage> getMessageClass() {
+        return messageClass;
     }
 
     @Override
-    public boolean canDeserialize(String message) {
-        return message.startsWith(messageId);
+    public String getMessageId() {
+        return messageId;
+    }
+
+    @Override
+    public byte getMessageType() {
+        return messageType;
     }
 
     @Override
     public String toString() {
-        return String.format("%s:%s/%s", getClass().getSimpleName(), messageClass, messageId);
+        return String.format("%s:%s/%s/%d", getClass().getSimpleName(), messageClass, messageId, messageType);
     }
 }
@@ -8,29 +8,52 @@ package multiplayerquiz.common.protocol;
 public final class Answer implements ProtocolMessage {
     private static final String ID = "Answer";
     private final int answer;
+    private final int requestId;
 
     public Answer(int answer) {
+        this(answer, Protocol.NO_REQUEST_ID);
+    }
+    public Answer(int answer, int requestId) {
         this.answer = answer;
+        this.requestId = Protocol.checkRequestId(requestId);
     }
 
     public int getAnswer() {
         return answer;
     }
 
+    /**
+     * @return the request id of the Bid this answers, or
+     * {@link Protocol#NO_REQUEST_ID}
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
     protected static final class AnswerSerializer extends AbstractMessageSerializer {
         public AnswerSerializer() {
-            super(Answer.class, Answer.ID);
+            super(Answer.class, Answer.ID, 7);
         }
         @Override
         public String serialize(ProtocolMessage message) {
-            return String.format("%s %d", ID, ((Answer)message).getAnswer());
+            Answer answer = (Answer)message;
+            StringBuilder sb = new StringBuilder(ID).append(' ').append(answer.getAnswer());
+            Protocol.writeRequestId(answer.getRequestId(), sb);
+            return sb.toString();
+        }
+        @Override
+        public ProtocolMessage deserialize(TextDecoder in) {
+            return new Answer(in.readInt(), Protocol.readRequestId(in));
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            Answer answer = (Answer)message;
+            out.writeSignedVarint(answer.getAnswer());
+            Protocol.writeRequestId(answer.getRequestId(), out);
         }
         @Override
-        public ProtocolMessage deserialize(String string) {
-            String[] fragments = string.split(" ");
-            if (fragments.length != 2 || !fragments[0].equals(ID))
-                throw new ProtocolException(string);
-            return new Answer(Integer.parseInt(fragments[1]));
+        public ProtocolMessage decode(BinaryDecoder in) {
+            return new Answer(in.readSignedVarint(), Protocol.readRequestId(in));
         }
     }
 }
@@ -0,0 +1,65 @@
+package multiplayerquiz.common.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sent by the client to answer the bids a {@link BidBatchReply} accepted: one
+ * answer per accepted bid, in the order they were bid.  The server replies
+ * with one {@link UserStateUpdateBatch}.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 5/1/2014
+ */
+public final class AnswerBatch implements ProtocolMessage {
+    private static final String ID = "AnswerBatch";
+    private final List<Integer> answers;
+
+    public AnswerBatch(List<Integer> answers) {
+        this.answers = Collections.unmodifiableList(new ArrayList<Integer>(answers));
+    }
+
+    public List<Integer> getAnswers() {
+        return answers;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(ID);
+        for (int a : answers)
+            sb.append(' ').append(a);
+        return sb.toString();
+    }
+
+    protected static final class AnswerBatchSerializer extends AbstractMessageSerializer {
+        public AnswerBatchSerializer() {
+            super(AnswerBatch.class, AnswerBatch.ID, 15);
+        }
+        @Override
+        public String serialize(ProtocolMessage message) {
+            return message.toString();
+        }
+        @Override
+        public ProtocolMessage deserialize(TextDecoder in) {
+            List<Integer> answers = new ArrayList<Integer>();
+            while (in.hasRemaining())
+                answers.add(in.readInt());
+            return new AnswerBatch(answers);
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            List<Integer> answers = ((AnswerBatch)message).getAnswers();
+            out.writeVarint(answers.size());
+            for (int a : answers)
+                out.writeSignedVarint(a);
+        }
+        @Override
+        public ProtocolMessage decode(BinaryDecoder in) {
+            int count = in.readCount();
+            List<Integer> answers = new ArrayList<Integer>(count);
+            for (int i = 0; i < count; ++i)
+                answers.add(in.readSignedVarint());
+            return new AnswerBatch(answers);
+        }
+    }
+}
@@ -7,12 +7,22 @@ package multiplayerquiz.common.protocol;
  */
 public final class Bid implements ProtocolMessage {
     private static final String ID = "BidBegin";
+    /**
+     * The ClientHello/ServerHello feature enabling request ids on bids, so a
+     * client can have several bids outstanding and answer them in any order.
+     */
+    public static final String FEATURE = "pipeline";
     private final int category, question, amount;
+    private final int requestId;
 
     public Bid(int category, int question, int amount) {
+        this(category, question, amount, Protocol.NO_REQUEST_ID);
+    }
+    public Bid(int category, int question, int amount, int requestId) {
         this.category = category;
         this.question = question;
         this.amount = amount;
+        this.requestId = Protocol.checkRequestId(requestId);
     }
 
     public int getCategory() {
@@ -27,27 +37,45 @@ public final class Bid implements ProtocolMessage {
         return amount;
     }
 
+    /**
+     * @return the request id, or {@link Protocol#NO_REQUEST_ID}
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
     @Override
     public String toString() {
-        return String.format("%s %d %d %d", ID, category, question, amount);
+        StringBuilder sb = new StringBuilder(ID);
+        sb.append(' ').append(category).append(' ').append(question).append(' ').append(amount);
+        Protocol.writeRequestId(requestId, sb);
+        return sb.toString();
     }
 
     protected static final class BidSerializer extends AbstractMessageSerializer {
         public BidSerializer() {
-            super(Bid.class, Bid.ID);
+            super(Bid.class, Bid.ID, 4);
         }
         @Override
         public String serialize(ProtocolMessage message) {
             return message.toString();
         }
         @Override
-        public ProtocolMessage deserialize(String string) {
-            String[] fragments = string.split(" ");
-            if (fragments.length != 4 || !fragments[0].equals(ID))
-                throw new ProtocolException(string);
-            return new Bid(Integer.parseInt(fragments[1]),
-                    Integer.parseInt(fragments[2]),
-                    Integer.parseInt(fragments[3]));
+        public ProtocolMessage deserialize(TextDecoder in) {
+            return new Bid(in.readInt(), in.readInt(), in.readInt(), Protocol.readRequestId(in));
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            Bid bid = (Bid)message;
+            out.writeSignedVarint(bid.getCategory());
+            out.writeSignedVarint(bid.getQuestion());
+            out.writeSignedVarint(bid.getAmount());
+            Protocol.writeRequestId(bid.getRequestId(), out);
+        }
+        @Override
+        public ProtocolMessage decode(BinaryDecoder in) {
+            return new Bid(in.readSignedVarint(), in.readSignedVarint(), in.readSignedVarint(),
+                    Protocol.readRequestId(in));
         }
     }
 }
@@ -10,28 +10,54 @@ import multiplayerquiz.common.model.Question;
 public final class BidAccepted implements ProtocolMessage {
     private static final String ID = "BidAccepted";
     private final Question question;
+    private final int requestId;
     
     public BidAccepted(Question question) {
+        this(question, Protocol.NO_REQUEST_ID);
+    }
+    public BidAccepted(Question question, int requestId) {
         this.question = question;
+        this.requestId = Protocol.checkRequestId(requestId);
     }
 
     public Question getQuestion() {
         return question;
     }
 
+    /**
+     * @return the request id of the accepted Bid, or
+     * {@link Protocol#NO_REQUEST_ID}
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
     protected static final class BidAcceptedSerializer extends AbstractMessageSerializer {
         public BidAcceptedSerializer() {
-            super(BidAccepted.class, BidAccepted.ID);
+            super(BidAccepted.class, BidAccepted.ID, 5);
         }
         @Override
         public String serialize(ProtocolMessage message) {
-            return String.format("%s %s", ID, ((BidAccepted)message).getQuestion().toProtocolString());
+            BidAccepted accepted = (BidAccepted)message;
+            StringBuilder sb = new StringBuilder(ID).append(' ').append(accepted.getQuestion().toProtocolString());
+            Protocol.writeRequestId(accepted.getRequestId(), sb);
+            return sb.toString();
+        }
+        @Override
+        public ProtocolMessage deserialize(TextDecoder in) {
+            Question question = Question.parse(in);
+            return new BidAccepted(question, Protocol.readRequestId(in));
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            BidAccepted accepted = (BidAccepted)message;
+            accepted.getQuestion().encode(out);
+            Protocol.writeRequestId(accepted.getRequestId(), out);
         }
         @Override
-        public ProtocolMessage deserialize(String string) {
-            if (!string.startsWith(ID))
-                throw new ProtocolException(string);
-            return new BidAccepted(Question.parse(string.substring(ID.length()+1)));
+        public ProtocolMessage decode(BinaryDecoder in) {
+            Question question = Question.decode(in);
+            return new BidAccepted(question, Protocol.readRequestId(in));
         }
     }
 }
@@ -0,0 +1,81 @@
+package multiplayerquiz.common.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sent by the client to make several bids at once, for clients (like bots)
+ * that bid faster than they can afford a round trip per bid.  The server
+ * replies with one {@link BidBatchReply}; if any bids were accepted, the
+ * client's next message must be the {@link AnswerBatch} answering them.
+ * Requires the {@link #FEATURE batch feature}.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 5/1/2014
+ */
+public final class BidBatch implements ProtocolMessage {
+    /**
+     * The ClientHello/ServerHello feature enabling BidBatch and AnswerBatch.
+     */
+    public static final String FEATURE = "batch";
+    private static final String ID = "BidBatch";
+    private final List<Bid> bids;
+
+    /**
+     * @param bids the bids, without request ids
+     */
+    public BidBatch(List<Bid> bids) {
+        for (Bid bid : bids)
+            if (bid.getRequestId() != Protocol.NO_REQUEST_ID)
+                throw new IllegalArgumentException("batched bid with request id: "+bid);
+        this.bids = Collections.unmodifiableList(new ArrayList<Bid>(bids));
+    }
+
+    public List<Bid> getBids() {
+        return bids;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(ID);
+        for (Bid bid : bids)
+            sb.append(' ').append(bid.getCategory()).append(' ').append(bid.getQuestion())
+                    .append(' ').append(bid.getAmount());
+        return sb.toString();
+    }
+
+    protected static final class BidBatchSerializer extends AbstractMessageSerializer {
+        public BidBatchSerializer() {
+            super(BidBatch.class, BidBatch.ID, 13);
+        }
+        @Override
+        public String serialize(ProtocolMessage message) {
+            return message.toString();
+        }
+        @Override
+        public ProtocolMessage deserialize(TextDecoder in) {
+            List<Bid> bids = new ArrayList<Bid>();
+            while (in.hasRemaining())
+                bids.add(new Bid(in.readInt(), in.readInt(), in.readInt()));
+            return new BidBatch(bids);
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            List<Bid> bids = ((BidBatch)message).getBids();
+            out.writeVarint(bids.size());
+            for (Bid bid : bids) {
+                out.writeSignedVarint(bid.getCategory());
+                out.writeSignedVarint(bid.getQuestion());
+                out.writeSignedVarint(bid.getAmount());
+            }
+        }
+        @Override
+        public ProtocolMessage decode(BinaryDecoder in) {
+            int count = in.readCount();
+            List<Bid> bids = new ArrayList<Bid>(count);
+            for (int i = 0; i < count; ++i)
+                bids.add(new Bid(in.readSignedVarint(), in.readSignedVarint(), in.readSignedVarint()));
+            return new BidBatch(bids);
+        }
+    }
+}
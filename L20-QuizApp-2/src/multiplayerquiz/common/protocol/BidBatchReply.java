@@ -0,0 +1,124 @@
+package multiplayerquiz.common.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import multiplayerquiz.common.model.Question;
+
+/**
+ * Sent by the server in response to a {@link BidBatch}: a {@link BidAccepted}
+ * or {@link BidRefused} for each bid, in order.  In text, each reply is
+ * written as it would be on its own line.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 5/1/2014
+ */
+public final class BidBatchReply implements ProtocolMessage {
+    private static final String ID = "BidBatchReply";
+    private static final String ACCEPTED = "BidAccepted", REFUSED = "BidRefused";
+    private final List<ProtocolMessage> replies;
+
+    /**
+     * @param replies a BidAccepted or BidRefused, without request ids, for
+     * each bid
+     */
+    public BidBatchReply(List<? extends ProtocolMessage> replies) {
+        for (ProtocolMessage m : replies) {
+            int requestId;
+            if (m instanceof BidAccepted)
+                requestId = ((BidAccepted)m).getRequestId();
+            else if (m instanceof BidRefused)
+                requestId = ((BidRefused)m).getRequestId();
+            else
+                throw new IllegalArgumentException("not a bid reply: "+m);
+            if (requestId != Protocol.NO_REQUEST_ID)
+                throw new IllegalArgumentException("batched bid reply with request id: "+m);
+        }
+        this.replies = Collections.unmodifiableList(new ArrayList<ProtocolMessage>(replies));
+    }
+
+    /**
+     * @return a BidAccepted or BidRefused for each bid
+     */
+    public List<ProtocolMessage> getReplies() {
+        return replies;
+    }
+
+    /**
+     * @return the number of bids accepted, which is the number of answers
+     * the AnswerBatch must have
+     */
+    public int getAcceptedCount() {
+        int count = 0;
+        for (ProtocolMessage m : replies)
+            if (m instanceof BidAccepted)
+                ++count;
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %d accepted of %d", ID, getAcceptedCount(), replies.size());
+    }
+
+    protected static final class BidBatchReplySerializer extends AbstractMessageSerializer {
+        public BidBatchReplySerializer() {
+            super(BidBatchReply.class, BidBatchReply.ID, 14);
+        }
+        @Override
+        public String serialize(ProtocolMessage message) {
+            StringBuilder sb = new StringBuilder(ID);
+            for (ProtocolMessage m : ((BidBatchReply)message).getReplies())
+                if (m instanceof BidAccepted)
+                    sb.append(' ').append(ACCEPTED).append(' ')
+                            .append(((BidAccepted)m).getQuestion().toProtocolString());
+                else {
+                    sb.append(' ').append(REFUSED).append(' ');
+                    Protocol.escape(((BidRefused)m).getReason(), sb);
+                }
+            return sb.toString();
+        }
+        @Override
+        public ProtocolMessage deserialize(TextDecoder in) {
+            List<ProtocolMessage> replies = new ArrayList<ProtocolMessage>();
+            while (in.hasRemaining())
+                if (in.tryExpect(ACCEPTED))
+                    replies.add(new BidAccepted(Question.parse(in)));
+                else {
+                    in.expect(REFUSED);
+                    replies.add(new BidRefused(in.readString()));
+                }
+            return new BidBatchReply(replies);
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            List<ProtocolMessage> replies = ((BidBatchReply)message).getReplies();
+            out.writeVarint(replies.size());
+            for (ProtocolMessage m : replies)
+                if (m instanceof BidAccepted) {
+                    out.writeByte(1);
+                    ((BidAccepted)m).getQuestion().encode(out);
+                } else {
+                    out.writeByte(0);
+                    out.writeString(((BidRefused)m).getReason());
+                }
+        }
+        @Override
+        public ProtocolMessage decode(BinaryDecoder in) {
+            int count = in.readCount();
+            List<ProtocolMessage> replies = new ArrayList<ProtocolMessage>(count);
+            for (int i = 0; i < count; ++i)
+                switch (in.readByte()) {
+                    case 1:
+                        replies.add(new BidAccepted(Question.decode(in)));
+                        break;
+                    case 0:
+                        replies.add(new BidRefused(in.readString()));
+                        break;
+                    default:
+                        throw new ProtocolException("bad bid reply tag in BidBatchReply");
+                }
+            return new BidBatchReply(replies);
+        }
+    }
+}
@@ -8,29 +8,53 @@ package multiplayerquiz.common.protocol;
 public final class BidRefused implements ProtocolMessage {
     private static final String ID = "BidRefused";
     private final String reason;
+    private final int requestId;
     
     public BidRefused(String reason) {
+        this(reason, Protocol.NO_REQUEST_ID);
+    }
+    public BidRefused(String reason, int requestId) {
         this.reason = reason;
+        this.requestId = Protocol.checkRequestId(requestId);
     }
 
     public String getReason() {
         return reason;
     }
 
+    /**
+     * @return the request id of the refused Bid, or
+     * {@link Protocol#NO_REQUEST_ID}
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
     protected static final class BidRefusedSerializer extends AbstractMessageSerializer {
         public BidRefusedSerializer() {
-            super(BidRefused.class, BidRefused.ID);
+            super(BidRefused.class, BidRefused.ID, 6);
         }
         @Override
         public String serialize(ProtocolMessage message) {
-            return String.format("%s %s", ID, Protocol.escape(((BidRefused)message).getReason()));
+            BidRefused refused = (BidRefused)message;
+            StringBuilder sb = new StringBuilder(ID).append(' ');
+            Protocol.escape(refused.getReason(), sb);
+            Protocol.writeRequestId(refused.getRequestId(), sb);
+            return sb.toString();
+        }
+        @Override
+        public ProtocolMessage deserialize(TextDecoder in) {
+            return new BidRefused(in.readString(), Protocol.readRequestId(in));
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            BidRefused refused = (BidRefused)message;
+            out.writeString(refused.getReason());
+            Protocol.writeRequestId(refused.getRequestId(), out);
         }
         @Override
-        public ProtocolMessage deserialize(String string) {
-            String[] fragments = string.split(" ");
-            if (fragments.length != 2 || !fragments[0].equals(ID))
-                throw new ProtocolException(string);
-            return new BidRefused(Protocol.unescape(fragments[1]));
+        public ProtocolMessage decode(BinaryDecoder in) {
+            return new BidRefused(in.readString(), Protocol.readRequestId(in));
         }
     }
 }
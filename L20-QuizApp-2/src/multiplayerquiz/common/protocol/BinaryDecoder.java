@@ -0,0 +1,122 @@
+package multiplayerquiz.common.protocol;
+
+/**
+ * Reads values written by a {@link BinaryEncoder} from a region of a byte
+ * array.  Running off the end of the region is a ProtocolException.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/16/2014
+ */
+public final class BinaryDecoder {
+    private final byte[] buffer;
+    private int position;
+    private final int limit;
+    public BinaryDecoder(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    public boolean hasRemaining() {
+        return position < limit;
+    }
+
+    public int readByte() {
+        if (position >= limit)
+            throw new ProtocolException("truncated frame");
+        return buffer[position++] & 0xFF;
+    }
+
+    public int readVarint() {
+        int value = readRawVarint();
+        if (value < 0)
+            throw new ProtocolException("varint out of range");
+        return value;
+    }
+
+    /**
+     * Reads an unsigned varint if it's entirely present, for peeking at frame
+     * lengths in partially-filled buffers.
+     * @return the value, or -1 (without consuming anything) if the region
+     * ends partway through the varint
+     */
+    public int tryReadVarint() {
+        for (int pos = position; pos < limit && pos < position + 5; ++pos)
+            if ((buffer[pos] & 0x80) == 0)
+                return readVarint();
+        if (limit - position >= 5)
+            throw new ProtocolException("varint too long");
+        return -1;
+    }
+
+    /**
+     * Reads a count of elements to follow, each at least one byte long.
+     * @throws ProtocolException if that many elements couldn't fit in the
+     * rest of the region, so a hostile count can't make the caller allocate
+     * more than the frame could fill
+     */
+    public int readCount() {
+        int count = readVarint();
+        checkCount(count);
+        return count;
+    }
+
+    /**
+     * Checks that count elements, each at least one byte long, could fit in
+     * the rest of the region.
+     * @throws ProtocolException if they couldn't
+     */
+    public void checkCount(long count) {
+        if (count > limit - position)
+            throw new ProtocolException("count "+count+" exceeds frame");
+    }
+
+    public long readVarlong() {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0)
+                    throw new ProtocolException("varint out of range");
+                return value;
+            }
+        }
+        throw new ProtocolException("varint too long");
+    }
+
+    public int readSignedVarint() {
+        int raw = readRawVarint();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    private int readRawVarint() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new ProtocolException("varint too long");
+    }
+
+    public long readLong() {
+        long value = 0;
+        for (int i = 0; i < 8; ++i)
+            value = (value << 8) | readByte();
+        return value;
+    }
+
+    public String readString() {
+        int length = readVarint();
+        if (length > limit - position)
+            throw new ProtocolException("truncated frame");
+        String string = new String(buffer, position, length, BinaryEncoder.UTF8);
+        position += length;
+        return string;
+    }
+}
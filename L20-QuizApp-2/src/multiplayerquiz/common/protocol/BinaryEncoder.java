@@ -0,0 +1,135 @@
+package multiplayerquiz.common.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Accumulates the payload of a binary protocol frame.  Counts and other
+ * non-negative ints are written as unsigned LEB128 varints; ints that may be
+ * negative are zigzag-encoded first so small magnitudes stay short.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/16/2014
+ */
+public final class BinaryEncoder {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * Room reserved at the front of the buffer for the frame length, the
+     * longest an int varint can be; the length is written right-aligned in
+     * it, so the frame is contiguous without moving the payload.
+     */
+    private static final int HEADER_RESERVE = 5;
+    private byte[] buffer;
+    private int size = HEADER_RESERVE;
+    public BinaryEncoder() {
+        this(64);
+    }
+    public BinaryEncoder(int expectedSize) {
+        this.buffer = new byte[HEADER_RESERVE + expectedSize];
+    }
+
+    public void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte)b;
+    }
+
+    /**
+     * Writes a non-negative int as an unsigned varint.
+     */
+    public void writeVarint(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[size++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte)value;
+    }
+
+    /**
+     * Writes a non-negative long as an unsigned varint.
+     */
+    public void writeVarlong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte)value;
+    }
+
+    /**
+     * Writes a possibly-negative int as a zigzag-encoded varint.
+     */
+    public void writeSignedVarint(int value) {
+        writeVarint((value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Writes a long as 8 fixed big-endian bytes.
+     */
+    public void writeLong(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8)
+            buffer[size++] = (byte)(value >>> shift);
+    }
+
+    /**
+     * Writes a string as a varint byte length followed by its UTF-8 bytes.
+     */
+    public void writeString(String string) {
+        byte[] bytes = string.getBytes(UTF8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    /**
+     * Returns the bytes written so far as a complete frame: a varint length
+     * followed by that many bytes.
+     * @return a new array holding the frame
+     */
+    public byte[] toFrame() {
+        return Arrays.copyOfRange(buffer, writeHeader(), size);
+    }
+
+    /**
+     * Returns the bytes written so far as a complete frame, as
+     * {@link #toFrame()} does, but without copying them: the frame is a view
+     * of this encoder's buffer, valid until the next write.
+     * @return the frame, from position to limit
+     */
+    public ByteBuffer toFrameBuffer() {
+        int start = writeHeader();
+        return ByteBuffer.wrap(buffer, start, size - start);
+    }
+
+    /**
+     * Writes the payload length into the end of the reserved header room.
+     * @return the offset of the frame's first byte
+     */
+    private int writeHeader() {
+        int length = size - HEADER_RESERVE;
+        int pos = HEADER_RESERVE - varintSize(length), start = pos, value = length;
+        while ((value & ~0x7F) != 0) {
+            buffer[pos++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos] = (byte)value;
+        return start;
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            ++size;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+    }
+}
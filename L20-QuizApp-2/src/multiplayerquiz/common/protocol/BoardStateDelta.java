@@ -0,0 +1,135 @@
+package multiplayerquiz.common.protocol;
+
+import multiplayerquiz.common.model.BoardState;
+
+/**
+ * Sent by the server instead of {@link BoardStateUpdate} to clients that
+ * enabled {@link #FEATURE}.  Each broadcast has the next sequence number and
+ * carries only the cells that changed since the previous one, as new absolute
+ * point values.  A snapshot carries the whole board at a sequence number; one
+ * is sent after the {@link ServerHello} and in reply to each
+ * {@link BoardStateRequest}.  A client that sees a sequence number other than
+ * the one it expects has missed a delta and should request a snapshot.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/18/2014
+ */
+public final class BoardStateDelta implements ProtocolMessage {
+    private static final String ID = "BoardStateDelta";
+    /**
+     * The feature name a client puts in its ClientHello to receive deltas.
+     */
+    public static final String FEATURE = "delta";
+    private final long sequence;
+    /**
+     * The full board, if this is a snapshot, else null.
+     */
+    private final BoardState snapshot;
+    /**
+     * (category, question, points) triples, if this is a delta, else null.
+     */
+    private final int[] cells;
+
+    /**
+     * Creates a snapshot.
+     */
+    public BoardStateDelta(long sequence, BoardState snapshot) {
+        this.sequence = sequence;
+        this.snapshot = snapshot;
+        this.cells = null;
+    }
+
+    /**
+     * Creates a delta.  Takes ownership of the cells array.
+     */
+    public BoardStateDelta(long sequence, int[] cells) {
+        this.sequence = sequence;
+        this.snapshot = null;
+        this.cells = cells;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot != null;
+    }
+
+    /**
+     * @return the board, if this is a snapshot
+     */
+    public BoardState getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Applies this message to the board state as of the previous sequence
+     * number (or any state, if this is a snapshot).
+     * @param previous the previous board state
+     * @return the board state as of this sequence number
+     */
+    public BoardState applyTo(BoardState previous) {
+        return isSnapshot() ? snapshot : previous.withCells(cells);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %d %s", ID, sequence,
+                isSnapshot() ? "snapshot" : (cells.length/3)+" cells");
+    }
+
+    protected static final class BoardStateDeltaSerializer extends AbstractMessageSerializer {
+        public BoardStateDeltaSerializer() {
+            super(BoardStateDelta.class, BoardStateDelta.ID, 9);
+        }
+        @Override
+        public String serialize(ProtocolMessage message) {
+            BoardStateDelta m = (BoardStateDelta)message;
+            StringBuilder sb = new StringBuilder();
+            sb.append(ID).append(' ').append(m.getSequence()).append(' ');
+            if (m.isSnapshot())
+                return sb.append("snapshot ").append(m.getSnapshot().toProtocolString()).toString();
+            sb.append(m.cells.length/3);
+            for (int x : m.cells)
+                sb.append(' ').append(x);
+            return sb.toString();
+        }
+        @Override
+        public ProtocolMessage deserialize(TextDecoder in) {
+            long sequence = in.readLong();
+            if (in.tryExpect("snapshot"))
+                return new BoardStateDelta(sequence, BoardState.parse(in));
+            int count = in.readCount();
+            in.checkCount(3L * count);
+            int[] cells = new int[3*count];
+            for (int i = 0; i < cells.length; ++i)
+                cells[i] = in.readInt();
+            return new BoardStateDelta(sequence, cells);
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            BoardStateDelta m = (BoardStateDelta)message;
+            out.writeVarlong(m.getSequence());
+            out.writeByte(m.isSnapshot() ? 1 : 0);
+            if (m.isSnapshot()) {
+                m.getSnapshot().encode(out);
+                return;
+            }
+            out.writeVarint(m.cells.length/3);
+            for (int x : m.cells)
+                out.writeVarint(x);
+        }
+        @Override
+        public ProtocolMessage decode(BinaryDecoder in) {
+            long sequence = in.readVarlong();
+            if (in.readByte() != 0)
+                return new BoardStateDelta(sequence, BoardState.decode(in));
+            int count = in.readCount();
+            in.checkCount(3L * count);
+            int[] cells = new int[3*count];
+            for (int i = 0; i < cells.length; ++i)
+                cells[i] = in.readVarint();
+            return new BoardStateDelta(sequence, cells);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package multiplayerquiz.common.protocol;
+
+/**
+ * Sent by a client using {@link BoardStateDelta}s when it detects a gap in the
+ * sequence numbers; the server replies with a snapshot.  May be sent at any
+ * time, even while the server is waiting for an {@link Answer}.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/18/2014
+ */
+public final class BoardStateRequest implements ProtocolMessage {
+    private static final String ID = "BoardStateRequest";
+
+    @Override
+    public String toString() {
+        return ID;
+    }
+
+    protected static final class BoardStateRequestSerializer extends AbstractMessageSerializer {
+        public BoardStateRequestSerializer() {
+            super(BoardStateRequest.class, BoardStateRequest.ID, 10);
+        }
+        @Override
+        public String serialize(ProtocolMessage message) {
+            return message.toString();
+        }
+        @Override
+        public ProtocolMessage deserialize(TextDecoder in) {
+            return new BoardStateRequest();
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+        }
+        @Override
+        public ProtocolMessage decode(BinaryDecoder in) {
+            return new BoardStateRequest();
+        }
+    }
+}
@@ -22,17 +22,23 @@ public final class BoardStateUpdate implements ProtocolMessage {
 
     protected static final class BoardStateUpdateSerializer extends AbstractMessageSerializer {
         public BoardStateUpdateSerializer() {
-            super(BoardStateUpdate.class, BoardStateUpdate.ID);
+            super(BoardStateUpdate.class, BoardStateUpdate.ID, 3);
         }
         @Override
         public String serialize(ProtocolMessage message) {
             return String.format("%s %s", ID, ((BoardStateUpdate)message).getBoardState().toProtocolString());
         }
         @Override
-        public ProtocolMessage deserialize(String string) {
-            if (!string.startsWith(ID))
-                throw new ProtocolException(string);
-            return new BoardStateUpdate(BoardState.parse(string.substring(ID.length()+1)));
+        public ProtocolMessage deserialize(TextDecoder in) {
+            return new BoardStateUpdate(BoardState.parse(in));
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            ((BoardStateUpdate)message).getBoardState().encode(out);
+        }
+        @Override
+        public ProtocolMessage decode(BinaryDecoder in) {
+            return new BoardStateUpdate(BoardState.decode(in));
         }
     }
 }
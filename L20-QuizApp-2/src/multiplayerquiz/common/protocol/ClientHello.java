@@ -1,52 +1,90 @@
 package multiplayerquiz.common.protocol;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 /**
- * Sent by the client to identify itself.
+ * Sent by the client to identify itself, optionally listing protocol features
+ * (such as {@link WireFormat#BINARY_FEATURE}) it would like to use.  Features
+ * the server doesn't know are ignored; the ones it enables are listed in its
+ * {@link ServerHello}.
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 3/29/2014
  */
 public final class ClientHello implements ProtocolMessage {
     private static final String ID = "ClientHello";
     private UUID userId;
+    private final List<String> features;
     
-    public ClientHello() {
-        this(UUID.randomUUID());
+    public ClientHello(String... features) {
+        this(UUID.randomUUID(), features);
     }
-    public ClientHello(UUID userId) {
+    public ClientHello(UUID userId, String... features) {
+        this(userId, Arrays.asList(features));
+    }
+    public ClientHello(UUID userId, List<String> features) {
         this.userId = userId;
+        this.features = Collections.unmodifiableList(new ArrayList<String>(features));
     }
 
     public UUID getUserId() {
         return userId;
     }
 
+    public List<String> getFeatures() {
+        return features;
+    }
+
     @Override
     public String toString() {
-        return String.format("%s %s\n", ID, userId.toString());
+        StringBuilder sb = new StringBuilder();
+        sb.append(ID).append(' ').append(userId.toString());
+        for (String f : features)
+            Protocol.escape(f, sb.append(' '));
+        return sb.append('\n').toString();
     }
 
     protected static final class ClientHelloSerializer extends AbstractMessageSerializer {
         public ClientHelloSerializer() {
-            super(ClientHello.class, ClientHello.ID);
+            super(ClientHello.class, ClientHello.ID, 1);
         }
         @Override
         public String serialize(ProtocolMessage message) {
             return message.toString();
         }
         @Override
-        public ProtocolMessage deserialize(String string) {
-            String[] fragments = string.trim().split(" ");
-            if (fragments.length != 2 || !fragments[0].equals(ID))
-                throw new ProtocolException(string);
+        public ProtocolMessage deserialize(TextDecoder in) {
             UUID userId;
             try {
-                userId = UUID.fromString(fragments[1]);
+                userId = UUID.fromString(in.readString());
             } catch (IllegalArgumentException ex) {
-                throw new ProtocolException(string, ex);
+                throw new ProtocolException(in.toString(), ex);
             }
-            return new ClientHello(userId);
+            List<String> features = new ArrayList<String>();
+            while (in.hasRemaining())
+                features.add(in.readString());
+            return new ClientHello(userId, features);
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            ClientHello m = (ClientHello)message;
+            out.writeLong(m.getUserId().getMostSignificantBits());
+            out.writeLong(m.getUserId().getLeastSignificantBits());
+            out.writeVarint(m.getFeatures().size());
+            for (String f : m.getFeatures())
+                out.writeString(f);
+        }
+        @Override
+        public ProtocolMessage decode(BinaryDecoder in) {
+            UUID userId = new UUID(in.readLong(), in.readLong());
+            int numFeatures = in.readCount();
+            List<String> features = new ArrayList<String>(numFeatures);
+            for (int i = 0; i < numFeatures; ++i)
+                features.add(in.readString());
+            return new ClientHello(userId, features);
         }
     }
 
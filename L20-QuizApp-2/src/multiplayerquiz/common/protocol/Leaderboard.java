@@ -0,0 +1,97 @@
+package multiplayerquiz.common.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sent by the server in reply to a {@link LeaderboardRequest}: the client's
+ * rank (1 for the highest score; tied users share a rank), its score, the
+ * number of players, and the top scores.  Other users aren't identified.
+ * The ranking may lag the latest answers slightly.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/24/2014
+ */
+public final class Leaderboard implements ProtocolMessage {
+    /**
+     * The ClientHello/ServerHello feature enabling leaderboard requests.
+     */
+    public static final String FEATURE = "leaderboard";
+    private static final String ID = "Leaderboard";
+    private final int rank, score, players;
+    private final List<Integer> topScores;
+
+    public Leaderboard(int rank, int score, int players, List<Integer> topScores) {
+        this.rank = rank;
+        this.score = score;
+        this.players = players;
+        this.topScores = Collections.unmodifiableList(new ArrayList<Integer>(topScores));
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public int getPlayers() {
+        return players;
+    }
+
+    /**
+     * @return the top scores, highest first
+     */
+    public List<Integer> getTopScores() {
+        return topScores;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(ID);
+        sb.append(' ').append(rank).append(' ').append(score).append(' ').append(players);
+        for (int s : topScores)
+            sb.append(' ').append(s);
+        return sb.toString();
+    }
+
+    protected static final class LeaderboardSerializer extends AbstractMessageSerializer {
+        public LeaderboardSerializer() {
+            super(Leaderboard.class, Leaderboard.ID, 12);
+        }
+        @Override
+        public String serialize(ProtocolMessage message) {
+            return message.toString();
+        }
+        @Override
+        public ProtocolMessage deserialize(TextDecoder in) {
+            int rank = in.readInt(), score = in.readInt(), players = in.readInt();
+            List<Integer> topScores = new ArrayList<Integer>();
+            while (in.hasRemaining())
+                topScores.add(in.readInt());
+            return new Leaderboard(rank, score, players, topScores);
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            Leaderboard m = (Leaderboard)message;
+            out.writeVarint(m.getRank());
+            out.writeSignedVarint(m.getScore());
+            out.writeVarint(m.getPlayers());
+            out.writeVarint(m.getTopScores().size());
+            for (int s : m.getTopScores())
+                out.writeSignedVarint(s);
+        }
+        @Override
+        public ProtocolMessage decode(BinaryDecoder in) {
+            int rank = in.readVarint();
+            int score = in.readSignedVarint();
+            int players = in.readVarint();
+            int count = in.readCount();
+            List<Integer> topScores = new ArrayList<Integer>(count);
+            for (int i = 0; i < count; ++i)
+                topScores.add(in.readSignedVarint());
+            return new Leaderboard(rank, score, players, topScores);
+        }
+    }
+}
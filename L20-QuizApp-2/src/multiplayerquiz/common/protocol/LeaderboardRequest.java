@@ -0,0 +1,52 @@
+package multiplayerquiz.common.protocol;
+
+/**
+ * Sent by a client (that negotiated the {@link Leaderboard#FEATURE}) to ask for
+ * its rank and the top scores; the server replies with a {@link Leaderboard}.
+ * May be sent at any time after the ClientHello, even while the server is
+ * waiting for an {@link Answer}.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/24/2014
+ */
+public final class LeaderboardRequest implements ProtocolMessage {
+    private static final String ID = "LeaderboardRequest";
+    private final int topCount;
+
+    /**
+     * @param topCount how many top scores to send (the server may send fewer)
+     */
+    public LeaderboardRequest(int topCount) {
+        this.topCount = topCount;
+    }
+
+    public int getTopCount() {
+        return topCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %d", ID, topCount);
+    }
+
+    protected static final class LeaderboardRequestSerializer extends AbstractMessageSerializer {
+        public LeaderboardRequestSerializer() {
+            super(LeaderboardRequest.class, LeaderboardRequest.ID, 11);
+        }
+        @Override
+        public String serialize(ProtocolMessage message) {
+            return message.toString();
+        }
+        @Override
+        public ProtocolMessage deserialize(TextDecoder in) {
+            return new LeaderboardRequest(in.readInt());
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            out.writeSignedVarint(((LeaderboardRequest)message).getTopCount());
+        }
+        @Override
+        public ProtocolMessage decode(BinaryDecoder in) {
+            return new LeaderboardRequest(in.readSignedVarint());
+        }
+    }
+}
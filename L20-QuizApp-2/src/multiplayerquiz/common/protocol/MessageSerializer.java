@@ -2,14 +2,40 @@ package multiplayerquiz.common.protocol;
 
 /**
  * A service interface implementing message (de)serialization for a message
- * class.
+ * class, in both the text and binary wire formats.  {@link Protocol} builds
+ * its dispatch tables from these once, so the class, ID and type must not
+ * change.
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 3/29/2014
  */
 public interface MessageSerializer {
-    public boolean canSerialize(ProtocolMessage message);
+    /**
+     * @return the message class this serializer handles
+     */
+    public Class<? extends ProtocolMessage> getMessageClass();
     public String serialize(ProtocolMessage message);
 
-    public boolean canDeserialize(String message);
-    public ProtocolMessage deserialize(String message);
+    /**
+     * @return the first token of this serializer's messages, which must be
+     * unique among all serializers
+     */
+    public String getMessageId();
+    /**
+     * Reads a text message's fields (everything after its ID).
+     */
+    public ProtocolMessage deserialize(TextDecoder in);
+
+    /**
+     * @return the type byte of this serializer's binary frames, which must be
+     * unique among all serializers
+     */
+    public byte getMessageType();
+    /**
+     * Writes the message's binary payload (not including the type byte).
+     */
+    public void encode(ProtocolMessage message, BinaryEncoder out);
+    /**
+     * Reads a binary payload written by encode.
+     */
+    public ProtocolMessage decode(BinaryDecoder in);
 }
@@ -0,0 +1,153 @@
+package multiplayerquiz.common.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads and writes messages over a pair of blocking byte streams in either
+ * {@link WireFormat}.  We work on bytes rather than a Reader so the format can
+ * switch mid-stream without a decoder having read ahead.  Writes aren't
+ * buffered: each message is written (and so flushed) with one call.
+ *
+ * Reads and writes are independent, but this class does no locking: at most
+ * one thread may read and one thread may write at a time.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/16/2014
+ */
+public final class MessageStream {
+    private final InputStream in;
+    private final OutputStream out;
+    private volatile WireFormat format = WireFormat.TEXT;
+    private byte[] buffer = new byte[256];
+    /**
+     * Staging for writing ByteBuffers without accessible arrays; only touched
+     * by the writing thread.
+     */
+    private byte[] writeBuffer;
+    public MessageStream(InputStream in, OutputStream out) {
+        this.in = new BufferedInputStream(in);
+        this.out = out;
+    }
+
+    public WireFormat getWireFormat() {
+        return format;
+    }
+
+    /**
+     * Switches the format used for reads and writes after this call.
+     */
+    public void setWireFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Reads the next message.
+     * @return the message, or null if the stream ended cleanly between
+     * messages
+     * @throws IOException if reading fails
+     * @throws ProtocolException if the message is malformed or longer than
+     * {@link Protocol#MAX_MESSAGE_LENGTH}
+     */
+    public ProtocolMessage read() throws IOException {
+        if (format == WireFormat.TEXT) {
+            int length = readLine();
+            return length == -1 ? null : Protocol.deserialize(buffer, 0, length);
+        }
+        int length = readFrameLength();
+        if (length == -1)
+            return null;
+        ensureCapacity(length);
+        for (int read = 0; read < length; ) {
+            int n = in.read(buffer, read, length - read);
+            if (n == -1)
+                throw new EOFException("stream ended mid-frame");
+            read += n;
+        }
+        return Protocol.deserializeFrame(buffer, 0, length);
+    }
+
+    /**
+     * Writes a message in the current format and flushes.
+     */
+    public void write(ProtocolMessage message) throws IOException {
+        write(format.encode(message));
+    }
+
+    /**
+     * Writes already-encoded bytes and flushes.  The caller is responsible for
+     * having encoded them in the current format.
+     */
+    public void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Writes already-encoded bytes (between the buffer's position and limit)
+     * and flushes, without changing the buffer's position, so the same buffer
+     * may be written to many streams.
+     */
+    public void write(ByteBuffer bytes) throws IOException {
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        } else {
+            if (writeBuffer == null || writeBuffer.length < bytes.remaining())
+                writeBuffer = new byte[Math.max(bytes.remaining(), 1024)];
+            int length = bytes.remaining();
+            bytes.duplicate().get(writeBuffer, 0, length);
+            out.write(writeBuffer, 0, length);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a line, minus its terminator (as BufferedReader.readLine would),
+     * into the start of the buffer.
+     * @return the line's length, or -1 if the stream ended before the line
+     */
+    private int readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            //One extra for a '\r' we'll strip.
+            if (length > Protocol.MAX_MESSAGE_LENGTH)
+                throw new ProtocolException("line too long");
+            ensureCapacity(length + 1);
+            buffer[length++] = (byte)b;
+        }
+        if (b == -1 && length == 0)
+            return -1;
+        if (length > 0 && buffer[length-1] == '\r')
+            --length;
+        return length;
+    }
+
+    private int readFrameLength() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                if (shift == 0)
+                    return -1;
+                throw new EOFException("stream ended mid-frame");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0 || value > Protocol.MAX_MESSAGE_LENGTH)
+                    throw new ProtocolException("frame too long: "+(value & 0xFFFFFFFFL));
+                return value;
+            }
+        }
+        throw new ProtocolException("frame length too long");
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, capacity));
+    }
+}
@@ -1,5 +1,10 @@
 package multiplayerquiz.common.protocol;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.ServiceLoader;
 
 /**
@@ -8,25 +13,183 @@ import java.util.ServiceLoader;
  * @since 3/29/2014
  */
 public final class Protocol {
-    private static final ServiceLoader<MessageSerializer> SERVICE_LOADER = ServiceLoader.load(MessageSerializer.class);
+    /**
+     * Dispatch tables, built once from the ServiceLoader: message class to
+     * serializer, and message ID (the first token of the line) to serializer.
+     * The latter is an open-addressed hash table, with the IDs' hashes
+     * alongside, so the first token can be hashed in place and (usually)
+     * compared against just one ID.
+     */
+    private static final Map<Class<?>, MessageSerializer> SERIALIZERS;
+    private static final MessageSerializer[] TEXT_DECODERS;
+    private static final int[] TEXT_DECODER_HASHES;
+    /**
+     * Binary frame type byte (as unsigned) to serializer.
+     */
+    private static final MessageSerializer[] DECODERS = new MessageSerializer[256];
+    static {
+        Map<Class<?>, MessageSerializer> serializers = new HashMap<Class<?>, MessageSerializer>();
+        Map<String, MessageSerializer> deserializers = new HashMap<String, MessageSerializer>();
+        List<MessageSerializer> textDecoders = new ArrayList<MessageSerializer>();
+        for (MessageSerializer s : ServiceLoader.load(MessageSerializer.class)) {
+            int type = s.getMessageType() & 0xFF;
+            if (DECODERS[type] != null)
+                throw new ProtocolException(String.format("%s and %s both claim message type %d",
+                        DECODERS[type], s, type));
+            DECODERS[type] = s;
+            MessageSerializer old = serializers.put(s.getMessageClass(), s);
+            if (old != null)
+                throw new ProtocolException(String.format("%s and %s both serialize %s",
+                        old, s, s.getMessageClass()));
+            old = deserializers.put(s.getMessageId(), s);
+            if (old != null)
+                throw new ProtocolException(String.format("%s and %s both claim message ID %s",
+                        old, s, s.getMessageId()));
+            textDecoders.add(s);
+        }
+        SERIALIZERS = Collections.unmodifiableMap(serializers);
+        //At most half full, so probe sequences stay short.
+        int capacity = Integer.highestOneBit(Math.max(textDecoders.size(), 1) * 4 - 1);
+        TEXT_DECODERS = new MessageSerializer[capacity];
+        TEXT_DECODER_HASHES = new int[capacity];
+        for (MessageSerializer s : textDecoders) {
+            int hash = s.getMessageId().hashCode(), i = textSlot(hash);
+            while (TEXT_DECODERS[i] != null)
+                i = (i + 1) & (capacity - 1);
+            TEXT_DECODERS[i] = s;
+            TEXT_DECODER_HASHES[i] = hash;
+        }
+    }
     private Protocol() {}
 
+    /**
+     * The longest line or frame (excluding its length) accepted in any I/O
+     * mode; peers sending longer ones are disconnected rather than letting
+     * them make us buffer without limit.
+     */
+    public static final int MAX_MESSAGE_LENGTH = 1 << 20;
+
+    /**
+     * The request id of a message without one.  Request ids are optional
+     * trailing fields on {@link Bid}s and the messages answering them, letting
+     * a client with the {@link Bid#FEATURE pipeline feature} have several
+     * bids outstanding at once; clients without it never send them, and so
+     * are never sent them.
+     */
+    public static final int NO_REQUEST_ID = -1;
+
+    static int checkRequestId(int requestId) {
+        if (requestId < NO_REQUEST_ID)
+            throw new IllegalArgumentException("bad request id "+requestId);
+        return requestId;
+    }
+
+    static int readRequestId(TextDecoder in) {
+        if (!in.hasRemaining())
+            return NO_REQUEST_ID;
+        int requestId = in.readInt();
+        if (requestId < 0)
+            throw new ProtocolException("negative request id in "+in);
+        return requestId;
+    }
+
+    static int readRequestId(BinaryDecoder in) {
+        return in.hasRemaining() ? in.readVarint() : NO_REQUEST_ID;
+    }
+
+    static void writeRequestId(int requestId, StringBuilder out) {
+        if (requestId != NO_REQUEST_ID)
+            out.append(' ').append(requestId);
+    }
+
+    static void writeRequestId(int requestId, BinaryEncoder out) {
+        if (requestId != NO_REQUEST_ID)
+            out.writeVarint(requestId);
+    }
+
     public static String serialize(ProtocolMessage message) {
-        for (MessageSerializer s : SERVICE_LOADER)
-            if (s.canSerialize(message)) {
-                String str = s.serialize(message);
-                if (!str.endsWith("\n"))
-                    str += "\n";
-                return str;
-            }
-        throw new ProtocolException("No serializer for "+message);
+        MessageSerializer s = SERIALIZERS.get(message.getClass());
+        if (s == null)
+            throw new ProtocolException("No serializer for "+message);
+        String str = s.serialize(message);
+        if (!str.endsWith("\n"))
+            str += "\n";
+        return str;
     }
 
     public static ProtocolMessage deserialize(String message) {
-        for (MessageSerializer s : SERVICE_LOADER)
-            if (s.canDeserialize(message))
-                return s.deserialize(message);
-        throw new ProtocolException("No deserializer for "+message);
+        return deserialize(new TextDecoder(message));
+    }
+
+    /**
+     * Parses a text message (without its line terminator) directly from
+     * bytes in {@link WireFormat#TEXT_CHARSET}.
+     * @param buffer the array containing the message
+     * @param offset the offset of the message
+     * @param length the message length
+     * @return the message
+     */
+    public static ProtocolMessage deserialize(byte[] buffer, int offset, int length) {
+        return deserialize(new TextDecoder(buffer, offset, length));
+    }
+
+    private static ProtocolMessage deserialize(TextDecoder in) {
+        //Hashing the ID in place saves allocating a substring to look it up
+        //in a map.
+        int hash = in.peekTokenHash();
+        for (int i = textSlot(hash); TEXT_DECODERS[i] != null; i = (i + 1) & (TEXT_DECODERS.length - 1)) {
+            MessageSerializer s = TEXT_DECODERS[i];
+            if (TEXT_DECODER_HASHES[i] == hash && in.tryExpect(s.getMessageId())) {
+                ProtocolMessage message = s.deserialize(in);
+                if (in.hasRemaining())
+                    throw new ProtocolException("trailing text in "+message);
+                return message;
+            }
+        }
+        throw new ProtocolException("No deserializer for "+in);
+    }
+
+    /**
+     * @return the slot in TEXT_DECODERS to start probing for an ID with the
+     * given hash
+     */
+    private static int textSlot(int hash) {
+        return (hash ^ (hash >>> 16)) & (TEXT_DECODERS.length - 1);
+    }
+
+    /**
+     * Encodes a message as a binary frame: a varint length, then that many
+     * bytes holding the message type byte and the message's fields.
+     * @param message the message
+     * @return the frame
+     */
+    public static byte[] serializeFrame(ProtocolMessage message) {
+        MessageSerializer s = SERIALIZERS.get(message.getClass());
+        if (s == null)
+            throw new ProtocolException("No serializer for "+message);
+        BinaryEncoder out = new BinaryEncoder();
+        out.writeByte(s.getMessageType());
+        s.encode(message, out);
+        return out.toFrame();
+    }
+
+    /**
+     * Decodes the body of a binary frame (everything after the length).
+     * @param frame the array containing the frame
+     * @param offset the offset of the body (the type byte)
+     * @param length the body length
+     * @return the message
+     */
+    public static ProtocolMessage deserializeFrame(byte[] frame, int offset, int length) {
+        BinaryDecoder in = new BinaryDecoder(frame, offset, length);
+        int type = in.readByte();
+        MessageSerializer s = DECODERS[type];
+        if (s == null)
+            throw new ProtocolException("No decoder for message type "+type);
+        ProtocolMessage message = s.decode(in);
+        if (in.hasRemaining())
+            throw new ProtocolException("trailing bytes in "+message);
+        return message;
     }
 
     private static final char[][] ESCAPES = {
@@ -34,16 +197,83 @@ public final class Protocol {
         {'\n', '\1'},
         {'\r', '\2'},
     };
+    /**
+     * ESCAPES as lookup tables indexed by character (all the escaped and
+     * escape characters are ASCII): the character each maps to when escaping
+     * and unescaping, which is itself for characters left alone.
+     */
+    private static final char[] ESCAPED = new char[128], UNESCAPED = new char[128];
+    static {
+        for (char c = 0; c < ESCAPED.length; ++c)
+            ESCAPED[c] = UNESCAPED[c] = c;
+        for (char[] e : ESCAPES) {
+            ESCAPED[e[0]] = e[1];
+            UNESCAPED[e[1]] = e[0];
+        }
+    }
 
+    /**
+     * @return the string with spaces and line terminators escaped, or the
+     * string itself if it contains none
+     */
     public static String escape(String string) {
-        for (char[] c : ESCAPES)
-            string = string.replace(c[0], c[1]);
-        return string;
+        return translate(string, ESCAPED);
     }
 
+    /**
+     * Appends the string, escaped, to the builder, without making an escaped
+     * copy first.
+     */
+    public static void escape(String string, StringBuilder out) {
+        int first = firstTranslated(string, ESCAPED);
+        int base = out.length();
+        out.append(string);
+        if (first == -1)
+            return;
+        //Copying the string in bulk and patching the characters that change
+        //is quicker than appending it a character (or char[]) at a time.
+        for (int i = first; i < string.length(); ++i) {
+            char c = string.charAt(i);
+            if (c < ESCAPED.length && ESCAPED[c] != c)
+                out.setCharAt(base + i, ESCAPED[c]);
+        }
+    }
+
+    /**
+     * @return the string with escapes undone, or the string itself if it
+     * contains none
+     */
     public static String unescape(String string) {
-        for (char[] c : ESCAPES)
-            string = string.replace(c[1], c[0]);
-        return string;
+        return translate(string, UNESCAPED);
+    }
+
+    static char unescape(char c) {
+        return c < UNESCAPED.length ? UNESCAPED[c] : c;
+    }
+
+    /**
+     * Maps each character in the string through the table in one pass.
+     */
+    private static String translate(String string, char[] table) {
+        int first = firstTranslated(string, table);
+        if (first == -1)
+            return string;
+        char[] chars = string.toCharArray();
+        for (int i = first; i < chars.length; ++i)
+            if (chars[i] < table.length)
+                chars[i] = table[chars[i]];
+        return new String(chars);
+    }
+
+    /**
+     * @return the index of the first character the table changes, or -1
+     */
+    private static int firstTranslated(String string, char[] table) {
+        for (int i = 0; i < string.length(); ++i) {
+            char c = string.charAt(i);
+            if (c < table.length && table[c] != c)
+                return i;
+        }
+        return -1;
     }
 }
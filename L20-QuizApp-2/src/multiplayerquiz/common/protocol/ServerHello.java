@@ -7,37 +7,90 @@ import java.util.List;
 import multiplayerquiz.common.model.UserState;
 
 /**
- * Sent by the server in response to a {@link ClientHello} message.
+ * Sent by the server in response to a {@link ClientHello} message.  Always
+ * sent as text; any features listed here take effect for the messages after
+ * it (in both directions).
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 3/29/2014
  */
 public final class ServerHello implements ProtocolMessage {
     private static final String ID = "ServerHello";
-    private final List<String> categories;
-    private final int questionsPerCategory;
+    private final Categories categories;
     private final UserState userState;
+    private final List<String> features;
     
     public ServerHello(List<String> categories, int questionsPerCategory, UserState userState) {
-        this.categories = Collections.unmodifiableList(categories);
-        this.questionsPerCategory = questionsPerCategory;
+        this(categories, questionsPerCategory, userState, Collections.<String>emptyList());
+    }
+    public ServerHello(List<String> categories, int questionsPerCategory, UserState userState, List<String> features) {
+        this(new Categories(categories, questionsPerCategory), userState, features);
+    }
+    public ServerHello(Categories categories, UserState userState, List<String> features) {
+        this.categories = categories;
         this.userState = userState;
+        this.features = Collections.unmodifiableList(new ArrayList<String>(features));
     }
 
     public List<String> getCategories() {
-        return categories;
+        return categories.names;
     }
 
     public int getQuestionsPerCategory() {
-        return questionsPerCategory;
+        return categories.questionsPerCategory;
     }
 
     public UserState getUserState() {
         return userState;
     }
 
+    /**
+     * @return the features from the ClientHello the server enabled
+     */
+    public List<String> getFeatures() {
+        return features;
+    }
+
+    /**
+     * The category names and questions per category a ServerHello carries.
+     * Every client of a server gets the same ones, so a server can share one
+     * of these between the ServerHellos it sends, and their text (with the
+     * names escaped) is built only once.
+     */
+    public static final class Categories {
+        private final List<String> names;
+        private final int questionsPerCategory;
+        /**
+         * The serialized text, built on first use.  Racing threads build
+         * equal Strings, which are safe to publish without synchronization.
+         */
+        private String protocolString;
+        public Categories(List<String> names, int questionsPerCategory) {
+            this.names = Collections.unmodifiableList(new ArrayList<String>(names));
+            this.questionsPerCategory = questionsPerCategory;
+        }
+
+        /**
+         * @return the number of categories, each category name escaped, then
+         * the questions per category, separated by spaces
+         */
+        public String toProtocolString() {
+            String string = protocolString;
+            if (string == null) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(names.size()).append(' ');
+                for (String name : names) {
+                    Protocol.escape(name, sb);
+                    sb.append(' ');
+                }
+                protocolString = string = sb.append(questionsPerCategory).toString();
+            }
+            return string;
+        }
+    }
+
     protected static final class ServerHelloSerializer extends AbstractMessageSerializer {
         public ServerHelloSerializer() {
-            super(ServerHello.class, ServerHello.ID);
+            super(ServerHello.class, ServerHello.ID, 2);
         }
         @Override
         public String serialize(ProtocolMessage message0) {
@@ -45,31 +98,56 @@ public final class ServerHello implements ProtocolMessage {
             StringBuilder string = new StringBuilder();
             string.append(ID).append(' ');
 
-            //number of categories, followed by each category name with spaces replaced by nulls
-            string.append(Integer.toString(message.getCategories().size())).append(' ');
-            for (String category : message.getCategories())
-                string.append(Protocol.escape(category)).append(" ");
+            //number of categories, followed by each category name with spaces
+            //replaced by nulls, then questions per category
+            string.append(message.categories.toProtocolString()).append(' ');
 
-            string.append(Integer.toString(message.getQuestionsPerCategory())).append(' ');
+            string.append(message.userState.toProtocolString());
 
-            string.append(message.userState.toProtocolString()).append('\n');
+            //enabled features, if any (older clients never ask for any)
+            for (String feature : message.getFeatures())
+                Protocol.escape(feature, string.append(' '));
+            string.append('\n');
             return string.toString();
         }
         @Override
-        public ProtocolMessage deserialize(String string) {
-            String[] fragments = string.trim().split(" ");
-            int numCategories = Integer.parseInt(fragments[1]);
+        public ProtocolMessage deserialize(TextDecoder in) {
+            int numCategories = in.readCount();
             List<String> categories = new ArrayList<String>(numCategories);
-            for (int i = 2; i < numCategories+2; ++i)
-                categories.add(Protocol.unescape(fragments[i]));
-            int questionsPerCategory = Integer.parseInt(fragments[2 + numCategories]);
-
-            StringBuilder sb = new StringBuilder();
-            sb.append(fragments[2+numCategories+1]);
-            for (int i = 2+numCategories+2; i < fragments.length; ++i)
-                sb.append(' ').append(fragments[i]);
-            UserState userState = UserState.parse(sb.toString());
-            return new ServerHello(categories, questionsPerCategory, userState);
+            for (int i = 0; i < numCategories; ++i)
+                categories.add(in.readString());
+            int questionsPerCategory = in.readInt();
+            UserState userState = UserState.parse(in);
+            List<String> features = new ArrayList<String>();
+            while (in.hasRemaining())
+                features.add(in.readString());
+            return new ServerHello(categories, questionsPerCategory, userState, features);
+        }
+        @Override
+        public void encode(ProtocolMessage message0, BinaryEncoder out) {
+            ServerHello message = (ServerHello)message0;
+            out.writeVarint(message.getCategories().size());
+            for (String category : message.getCategories())
+                out.writeString(category);
+            out.writeVarint(message.getQuestionsPerCategory());
+            message.getUserState().encode(out);
+            out.writeVarint(message.getFeatures().size());
+            for (String feature : message.getFeatures())
+                out.writeString(feature);
+        }
+        @Override
+        public ProtocolMessage decode(BinaryDecoder in) {
+            int numCategories = in.readCount();
+            List<String> categories = new ArrayList<String>(numCategories);
+            for (int i = 0; i < numCategories; ++i)
+                categories.add(in.readString());
+            int questionsPerCategory = in.readVarint();
+            UserState userState = UserState.decode(in);
+            int numFeatures = in.readCount();
+            List<String> features = new ArrayList<String>(numFeatures);
+            for (int i = 0; i < numFeatures; ++i)
+                features.add(in.readString());
+            return new ServerHello(categories, questionsPerCategory, userState, features);
         }
     }
 }
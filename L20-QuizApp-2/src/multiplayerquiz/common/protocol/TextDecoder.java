@@ -0,0 +1,204 @@
+package multiplayerquiz.common.protocol;
+
+/**
+ * Reads the space-separated tokens of a text protocol message from a region
+ * of a byte array (in {@link WireFormat#TEXT_CHARSET}), parsing ints and
+ * unescaping strings in place, without splitting the message into an array
+ * of substrings first.  Whitespace at either end of the region is ignored;
+ * within it, tokens are separated by single spaces, so an empty string is an
+ * empty token.  Malformed tokens and running off the end of the region are
+ * ProtocolExceptions.
+ *
+ * The separators and escape characters are all ASCII, so this works for any
+ * ASCII-compatible charset (like UTF-8) without decoding the bytes first.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/30/2014
+ */
+public final class TextDecoder {
+    private final byte[] buffer;
+    private final int offset;
+    private int position;
+    private final int limit;
+    public TextDecoder(byte[] buffer, int offset, int length) {
+        int start = offset, end = offset + length;
+        while (start < end && isWhitespace(buffer[start]))
+            ++start;
+        while (end > start && isWhitespace(buffer[end-1]))
+            --end;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.position = start;
+        this.limit = end;
+    }
+    public TextDecoder(String string) {
+        this(string.getBytes(WireFormat.TEXT_CHARSET));
+    }
+    private TextDecoder(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    public boolean hasRemaining() {
+        return position < limit;
+    }
+
+    /**
+     * Reads the next token if it's the given (ASCII) token.
+     * @return true if the token was read, false (having read nothing) if the
+     * next token is something else or there isn't one
+     */
+    public boolean tryExpect(String token) {
+        if (!hasRemaining())
+            return false;
+        int end = tokenEnd();
+        if (end - position != token.length())
+            return false;
+        for (int i = 0; i < token.length(); ++i)
+            if (buffer[position + i] != token.charAt(i))
+                return false;
+        skipSeparator(end);
+        return true;
+    }
+
+    /**
+     * Hashes the next token without reading it.  For ASCII tokens the hash
+     * equals the token's {@link String#hashCode()}, so the token can be
+     * looked up in a table keyed by strings' hashes without building a
+     * String, then confirmed with {@link #tryExpect(String)}.
+     * @return the token's hash, or 0 if there isn't one
+     */
+    public int peekTokenHash() {
+        int hash = 0;
+        for (int i = position; i < limit && buffer[i] != ' '; ++i)
+            hash = 31 * hash + buffer[i];
+        return hash;
+    }
+
+    /**
+     * Reads the next token, which must be the given (ASCII) token.
+     */
+    public void expect(String token) {
+        if (!tryExpect(token))
+            throw error("expected " + token);
+    }
+
+    public int readInt() {
+        long value = readLong();
+        if (value != (int)value)
+            throw error("int out of range");
+        return (int)value;
+    }
+
+    public long readLong() {
+        int end = tokenEnd();
+        int pos = position;
+        boolean negative = pos < end && buffer[pos] == '-';
+        if (negative)
+            ++pos;
+        if (pos == end || end - pos > 19)
+            throw error("expected a number");
+        long value = 0;
+        for (; pos < end; ++pos) {
+            int digit = buffer[pos] - '0';
+            if (digit < 0 || digit > 9)
+                throw error("expected a number");
+            value = value * 10 - digit;
+            //Accumulating negatively reaches Long.MIN_VALUE; overflow flips
+            //the sign.
+            if (value > 0)
+                throw error("number out of range");
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE)
+                throw error("number out of range");
+            value = -value;
+        }
+        skipSeparator(end);
+        return value;
+    }
+
+    /**
+     * Reads a non-negative count of tokens to follow.
+     * @throws ProtocolException if that many tokens couldn't fit in the rest
+     * of the message, so a hostile count can't make the caller allocate more
+     * than the message could fill
+     */
+    public int readCount() {
+        int count = readInt();
+        if (count < 0)
+            throw error("negative count");
+        checkCount(count);
+        return count;
+    }
+
+    /**
+     * Checks that count tokens could fit in the rest of the message.  (Empty
+     * tokens take no bytes, but each token but the last needs a separator.)
+     * @throws ProtocolException if they couldn't
+     */
+    public void checkCount(long count) {
+        if (count > limit - position + 1)
+            throw error("count "+count+" exceeds message");
+    }
+
+    /**
+     * Reads a token escaped by {@link Protocol#escape(String)} and returns it
+     * unescaped.
+     */
+    public String readString() {
+        int end = tokenEnd();
+        int start = position;
+        String string;
+        int firstEscape = start;
+        while (firstEscape < end && !isEscape(buffer[firstEscape]))
+            ++firstEscape;
+        if (firstEscape == end)
+            string = new String(buffer, start, end - start, WireFormat.TEXT_CHARSET);
+        else {
+            byte[] unescaped = new byte[end - start];
+            for (int i = start; i < end; ++i)
+                unescaped[i - start] = (byte)Protocol.unescape((char)buffer[i]);
+            string = new String(unescaped, WireFormat.TEXT_CHARSET);
+        }
+        skipSeparator(end);
+        return string;
+    }
+
+    /**
+     * @return the end of the token starting at the current position
+     */
+    private int tokenEnd() {
+        if (!hasRemaining())
+            throw error("unexpected end of message");
+        int end = position;
+        while (end < limit && buffer[end] != ' ')
+            ++end;
+        return end;
+    }
+
+    /**
+     * Moves past the token ending at end and the space after it, if any.
+     */
+    private void skipSeparator(int end) {
+        position = end + 1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean isEscape(byte b) {
+        return b >= 0 && b < ' ';
+    }
+
+    private ProtocolException error(String message) {
+        return new ProtocolException(String.format("%s at offset %d: %s", message, position - offset, this));
+    }
+
+    /**
+     * @return the text being read, for error messages
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, offset, limit - offset, WireFormat.TEXT_CHARSET);
+    }
+}
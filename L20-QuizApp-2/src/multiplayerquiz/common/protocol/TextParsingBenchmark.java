@@ -0,0 +1,193 @@
+package multiplayerquiz.common.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import multiplayerquiz.common.model.BoardState;
+import multiplayerquiz.common.model.Question;
+import multiplayerquiz.common.model.UserState;
+
+/**
+ * Compares parsing text messages with {@link TextDecoder} against the
+ * String.split-based parsers it replaced (kept here for the comparison),
+ * starting from the bytes read off the wire, in time and bytes allocated per
+ * message.
+ * <pre>TextParsingBenchmark [categories] [questionsPerCategory]</pre>
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/30/2014
+ */
+public final class TextParsingBenchmark {
+    private static final int WARMUP_ITERATIONS = 50000, ITERATIONS = 200000;
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    private static final Method THREAD_ID = threadIdMethod();
+    private TextParsingBenchmark() {}
+
+    private interface Parser {
+        public Object parse(byte[] line);
+    }
+
+    public static void main(String[] args) {
+        int categories = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int questions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Random random = new Random(0);
+        BoardState board = new BoardState(1000, categories, questions);
+        UserState user = new UserState(100, categories, questions);
+        for (int i = 0; i < categories * questions / 2; ++i) {
+            int c = random.nextInt(categories), q = random.nextInt(questions);
+            int delta = random.nextInt(500) - 250;
+            board = board.withUpdate(c, q, delta);
+            if (!user.attemptedQuestion(c, q))
+                user = user.withUpdate(c, q, delta);
+        }
+        List<String> categoryNames = new ArrayList<String>(categories);
+        for (int i = 0; i < categories; ++i)
+            categoryNames.add("Category " + i);
+        Question question = new Question("Which of these is\nimmutable?\n",
+                Arrays.asList("String", "StringBuilder", "ArrayList", "int[]"));
+
+        System.out.printf("%d categories x %d questions%n", categories, questions);
+        System.out.printf("%-18s %10s %10s %10s %10s%n", "message", "split", "decoder", "split B", "decoder B");
+        run("BidBegin", new Bid(3, 4, 150), new Parser() {
+            @Override
+            public Object parse(byte[] line) {
+                String[] fragments = string(line).split(" ");
+                return new Bid(Integer.parseInt(fragments[1]), Integer.parseInt(fragments[2]),
+                        Integer.parseInt(fragments[3]));
+            }
+        });
+        run("BidAccepted", new BidAccepted(question), new Parser() {
+            @Override
+            public Object parse(byte[] line) {
+                String[] fragments = string(line).split(" ");
+                String text = Protocol.unescape(fragments[1]);
+                int numChoices = Integer.parseInt(fragments[2]);
+                List<String> choices = new ArrayList<String>(numChoices);
+                for (int i = 3; i < 3+numChoices; ++i)
+                    choices.add(Protocol.unescape(fragments[i]));
+                return new BidAccepted(new Question(text, choices));
+            }
+        });
+        run("BoardStateUpdate", new BoardStateUpdate(board), new Parser() {
+            @Override
+            public Object parse(byte[] line) {
+                String[] fragments = string(line).split(" ");
+                int categories = Integer.parseInt(fragments[1]);
+                int questionsPerCategory = Integer.parseInt(fragments[2]);
+                int[][] points = new int[categories][questionsPerCategory];
+                for (int i = 0; i < categories; ++i)
+                    for (int j = 0; j < questionsPerCategory; ++j)
+                        points[i][j] = Integer.parseInt(fragments[i*questionsPerCategory + j + 3]);
+                return BoardState.copyOf(points);
+            }
+        });
+        run("ServerHello", new ServerHello(categoryNames, questions, user), new Parser() {
+            @Override
+            public Object parse(byte[] line) {
+                //As ServerHello did: split, rejoin the user state, split again.
+                String[] fragments = string(line).trim().split(" ");
+                int numCategories = Integer.parseInt(fragments[1]);
+                List<String> categories = new ArrayList<String>(numCategories);
+                for (int i = 2; i < numCategories+2; ++i)
+                    categories.add(Protocol.unescape(fragments[i]));
+                int questionsPerCategory = Integer.parseInt(fragments[2 + numCategories]);
+                int userStateStart = 2+numCategories+1;
+                int userStateEnd = userStateStart + 3 + Integer.parseInt(fragments[userStateStart+1])
+                        * Integer.parseInt(fragments[userStateStart+2]);
+                StringBuilder sb = new StringBuilder();
+                sb.append(fragments[userStateStart]);
+                for (int i = userStateStart+1; i < userStateEnd; ++i)
+                    sb.append(' ').append(fragments[i]);
+                return new ServerHello(categories, questionsPerCategory, parseUserState(sb.toString()));
+            }
+        });
+        run("UserStateUpdate", new UserStateUpdate(user, "correct"), new Parser() {
+            @Override
+            public Object parse(byte[] line) {
+                String string = string(line);
+                int secondSpace = string.indexOf(" ", "UserStateUpdate".length()+2);
+                String message = Protocol.unescape(string.substring("UserStateUpdate".length()+1, secondSpace));
+                return new UserStateUpdate(parseUserState(string.substring(secondSpace+1)), message);
+            }
+        });
+    }
+
+    private static String string(byte[] line) {
+        return new String(line, 0, line.length, WireFormat.TEXT_CHARSET);
+    }
+
+    private static UserState parseUserState(String string) {
+        String[] fragments = string.split(" ");
+        int score = Integer.parseInt(fragments[0]);
+        int categories = Integer.parseInt(fragments[1]);
+        int questionsPerCategory = Integer.parseInt(fragments[2]);
+        int[] history = new int[categories * questionsPerCategory];
+        for (int i = 0; i < history.length; ++i)
+            history[i] = Integer.parseInt(fragments[i + 3]);
+        return new UserState(score, categories, questionsPerCategory, history, 0);
+    }
+
+    private static void run(String name, ProtocolMessage message, Parser split) {
+        String text = Protocol.serialize(message);
+        final byte[] line = text.substring(0, text.length() - 1).getBytes(WireFormat.TEXT_CHARSET);
+        Parser decoder = new Parser() {
+            @Override
+            public Object parse(byte[] line) {
+                return Protocol.deserialize(line, 0, line.length);
+            }
+        };
+        time(split, line, WARMUP_ITERATIONS);
+        time(decoder, line, WARMUP_ITERATIONS);
+        double[] s = time(split, line, ITERATIONS), d = time(decoder, line, ITERATIONS);
+        System.out.printf("%-18s %8.0fns %8.0fns %10.0f %10.0f%n", name, s[0], d[0], s[1], d[1]);
+    }
+
+    /**
+     * @return ns/op and bytes allocated/op
+     */
+    private static double[] time(Parser parser, byte[] line, int iterations) {
+        //Accumulate hashes so the JIT can't discard the work.
+        long sink = 0;
+        long id = currentThreadId();
+        long bytes = THREADS.getThreadAllocatedBytes(id);
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            sink += System.identityHashCode(parser.parse(line));
+        long nanos = System.nanoTime() - begin;
+        bytes = THREADS.getThreadAllocatedBytes(id) - bytes;
+        if (sink == 42)
+            System.out.println();
+        return new double[]{nanos/(double)iterations, bytes/(double)iterations};
+    }
+
+    /**
+     * Returns Thread.threadId, or on JVMs before Java 19, Thread.getId (which
+     * threadId deprecates).  We use reflection so this builds on both.
+     */
+    private static Method threadIdMethod() {
+        try {
+            return Thread.class.getMethod("threadId");
+        } catch (NoSuchMethodException ex) {
+            try {
+                return Thread.class.getMethod("getId");
+            } catch (NoSuchMethodException impossible) {
+                throw new AssertionError(impossible);
+            }
+        }
+    }
+
+    private static long currentThreadId() {
+        try {
+            return (Long)THREAD_ID.invoke(Thread.currentThread());
+        } catch (IllegalAccessException ex) {
+            throw new UnsupportedOperationException(ex);
+        } catch (InvocationTargetException ex) {
+            throw new UnsupportedOperationException(ex.getCause());
+        }
+    }
+}
@@ -13,10 +13,15 @@ public final class UserStateUpdate implements ProtocolMessage {
     private static final String ID = "UserStateUpdate";
     private final UserState userState;
     private final String message;
+    private final int requestId;
     
     public UserStateUpdate(UserState userState, String message) {
+        this(userState, message, Protocol.NO_REQUEST_ID);
+    }
+    public UserStateUpdate(UserState userState, String message, int requestId) {
         this.userState = userState;
         this.message = message;
+        this.requestId = Protocol.checkRequestId(requestId);
     }
 
     public UserState getUserState() {
@@ -27,22 +32,45 @@ public final class UserStateUpdate implements ProtocolMessage {
         return message;
     }
 
+    /**
+     * @return the request id of the Answer this responds to, or
+     * {@link Protocol#NO_REQUEST_ID}
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
     protected static final class UserStateUpdateSerializer extends AbstractMessageSerializer {
         public UserStateUpdateSerializer() {
-            super(UserStateUpdate.class, UserStateUpdate.ID);
+            super(UserStateUpdate.class, UserStateUpdate.ID, 8);
         }
         @Override
         public String serialize(ProtocolMessage message) {
             UserStateUpdate m = (UserStateUpdate)message;
-            return String.format("%s %s %s", ID, Protocol.escape(m.getMessage()), m.getUserState().toProtocolString());
+            StringBuilder sb = new StringBuilder(ID).append(' ');
+            Protocol.escape(m.getMessage(), sb);
+            sb.append(' ').append(m.getUserState().toProtocolString());
+            Protocol.writeRequestId(m.getRequestId(), sb);
+            return sb.toString();
+        }
+        @Override
+        public ProtocolMessage deserialize(TextDecoder in) {
+            String message = in.readString();
+            UserState userState = UserState.parse(in);
+            return new UserStateUpdate(userState, message, Protocol.readRequestId(in));
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            UserStateUpdate m = (UserStateUpdate)message;
+            out.writeString(m.getMessage());
+            m.getUserState().encode(out);
+            Protocol.writeRequestId(m.getRequestId(), out);
         }
         @Override
-        public ProtocolMessage deserialize(String string) {
-            if (!string.startsWith(ID))
-                throw new ProtocolException(string);
-            int secondSpace = string.indexOf(" ", ID.length()+2);
-            String message = Protocol.unescape(string.substring(ID.length()+1, secondSpace));
-            return new UserStateUpdate(UserState.parse(string.substring(secondSpace+1)), message);
+        public ProtocolMessage decode(BinaryDecoder in) {
+            String message = in.readString();
+            UserState userState = UserState.decode(in);
+            return new UserStateUpdate(userState, message, Protocol.readRequestId(in));
         }
     }
 }
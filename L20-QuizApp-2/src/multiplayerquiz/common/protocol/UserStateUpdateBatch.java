@@ -0,0 +1,75 @@
+package multiplayerquiz.common.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import multiplayerquiz.common.model.UserState;
+
+/**
+ * Sent by the server in response to an {@link AnswerBatch}: the result of
+ * each answer, in order, and the user's state after all of them.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 5/1/2014
+ */
+public final class UserStateUpdateBatch implements ProtocolMessage {
+    private static final String ID = "UserStateUpdateBatch";
+    private final UserState userState;
+    private final List<String> messages;
+
+    public UserStateUpdateBatch(UserState userState, List<String> messages) {
+        this.userState = userState;
+        this.messages = Collections.unmodifiableList(new ArrayList<String>(messages));
+    }
+
+    public UserState getUserState() {
+        return userState;
+    }
+
+    /**
+     * @return the result of each answer, as in {@link UserStateUpdate#getMessage()}
+     */
+    public List<String> getMessages() {
+        return messages;
+    }
+
+    protected static final class UserStateUpdateBatchSerializer extends AbstractMessageSerializer {
+        public UserStateUpdateBatchSerializer() {
+            super(UserStateUpdateBatch.class, UserStateUpdateBatch.ID, 16);
+        }
+        @Override
+        public String serialize(ProtocolMessage message) {
+            UserStateUpdateBatch m = (UserStateUpdateBatch)message;
+            StringBuilder sb = new StringBuilder(ID).append(' ').append(m.getMessages().size());
+            for (String s : m.getMessages()) {
+                sb.append(' ');
+                Protocol.escape(s, sb);
+            }
+            return sb.append(' ').append(m.getUserState().toProtocolString()).toString();
+        }
+        @Override
+        public ProtocolMessage deserialize(TextDecoder in) {
+            int count = in.readCount();
+            List<String> messages = new ArrayList<String>(count);
+            for (int i = 0; i < count; ++i)
+                messages.add(in.readString());
+            return new UserStateUpdateBatch(UserState.parse(in), messages);
+        }
+        @Override
+        public void encode(ProtocolMessage message, BinaryEncoder out) {
+            UserStateUpdateBatch m = (UserStateUpdateBatch)message;
+            out.writeVarint(m.getMessages().size());
+            for (String s : m.getMessages())
+                out.writeString(s);
+            m.getUserState().encode(out);
+        }
+        @Override
+        public ProtocolMessage decode(BinaryDecoder in) {
+            int count = in.readCount();
+            List<String> messages = new ArrayList<String>(count);
+            for (int i = 0; i < count; ++i)
+                messages.add(in.readString());
+            return new UserStateUpdateBatch(UserState.decode(in), messages);
+        }
+    }
+}
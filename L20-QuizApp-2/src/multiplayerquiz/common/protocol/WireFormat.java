@@ -0,0 +1,115 @@
+package multiplayerquiz.common.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The encodings a connection can use for messages.  Every connection starts in
+ * TEXT; the client may ask for BINARY in its {@link ClientHello}, and if the
+ * server agrees (listing it in the {@link ServerHello}, which is itself still
+ * text), both sides switch for all following messages.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/16/2014
+ */
+public enum WireFormat {
+    /**
+     * Newline-terminated, space-separated lines; see {@link Protocol#serialize}.
+     */
+    TEXT {
+        @Override
+        public byte[] encode(ProtocolMessage message) {
+            return Protocol.serialize(message).getBytes(TEXT_CHARSET);
+        }
+        @Override
+        public ByteBuffer withRequestId(ByteBuffer encoded, int requestId) {
+            //Drop the newline, then append " requestId\n".
+            byte[] id = (" " + requestId + "\n").getBytes(TEXT_CHARSET);
+            ByteBuffer line = encoded.duplicate();
+            line.limit(line.limit() - 1);
+            ByteBuffer buffer = ByteBuffer.allocate(line.remaining() + id.length);
+            buffer.put(line).put(id).flip();
+            return buffer;
+        }
+    },
+    /**
+     * Length-prefixed frames holding a type byte and varint-encoded fields;
+     * see {@link Protocol#serializeFrame}.
+     */
+    BINARY {
+        @Override
+        public byte[] encode(ProtocolMessage message) {
+            return Protocol.serializeFrame(message);
+        }
+        @Override
+        public ByteBuffer withRequestId(ByteBuffer encoded, int requestId) {
+            //The id goes at the end of the body, so the length changes.
+            ByteBuffer body = encoded.duplicate();
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = body.get();
+                length |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            int newLength = length + BinaryEncoder.varintSize(requestId);
+            ByteBuffer buffer = ByteBuffer.allocate(BinaryEncoder.varintSize(newLength) + newLength);
+            putVarint(buffer, newLength);
+            buffer.put(body);
+            putVarint(buffer, requestId);
+            buffer.flip();
+            return buffer;
+        }
+    };
+
+    /**
+     * The text format's character set.  This is the platform default, as it
+     * always has been, so existing clients keep working.
+     */
+    public static final Charset TEXT_CHARSET = Charset.defaultCharset();
+    /**
+     * The feature name a client puts in its ClientHello to request binary.
+     */
+    public static final String BINARY_FEATURE = "binary";
+
+    /**
+     * Encodes the message in this format, ready to write to a socket.
+     * @param message the message
+     * @return the encoded bytes
+     */
+    public abstract byte[] encode(ProtocolMessage message);
+
+    /**
+     * Appends a request id (see {@link Protocol#NO_REQUEST_ID}) to a message
+     * encoded in this format without one, so a reply cached by
+     * {@link #encodeShared} can answer a pipelined request without encoding
+     * the whole message again.
+     * @param encoded an encoded message whose last field takes a request id;
+     * not modified
+     * @param requestId the request id
+     * @return the message with the request id, from position to limit
+     */
+    public abstract ByteBuffer withRequestId(ByteBuffer encoded, int requestId);
+
+    /**
+     * Encodes the message in this format into a read-only direct buffer, for
+     * writing the same bytes to many connections.  Channels can write direct
+     * buffers without copying them; writers should use duplicate() rather
+     * than moving the buffer's position.
+     * @param message the message
+     * @return the encoded bytes, from position to limit
+     */
+    public ByteBuffer encodeShared(ProtocolMessage message) {
+        byte[] bytes = encode(message);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+}
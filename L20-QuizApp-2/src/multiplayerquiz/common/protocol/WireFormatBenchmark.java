@@ -0,0 +1,84 @@
+package multiplayerquiz.common.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import multiplayerquiz.common.model.BoardState;
+import multiplayerquiz.common.model.UserState;
+
+/**
+ * Compares encoded size and encode/decode time of the text and binary wire
+ * formats for the messages that carry whole grids.
+ * <pre>WireFormatBenchmark [categories] [questionsPerCategory]</pre>
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/16/2014
+ */
+public final class WireFormatBenchmark {
+    private static final int WARMUP_ITERATIONS = 20000, ITERATIONS = 100000;
+    private WireFormatBenchmark() {}
+
+    public static void main(String[] args) {
+        int categories = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int questions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Random random = new Random(0);
+
+        BoardState board = new BoardState(1000, categories, questions);
+        UserState user = new UserState(100, categories, questions);
+        for (int i = 0; i < categories * questions / 2; ++i) {
+            int c = random.nextInt(categories), q = random.nextInt(questions);
+            int delta = random.nextInt(500) - 250;
+            board = board.withUpdate(c, q, delta);
+            if (!user.attemptedQuestion(c, q))
+                user = user.withUpdate(c, q, delta);
+        }
+        List<String> categoryNames = new ArrayList<String>(categories);
+        for (int i = 0; i < categories; ++i)
+            categoryNames.add("Category " + i);
+
+        System.out.printf("%d categories x %d questions%n", categories, questions);
+        System.out.printf("%-18s %6s %6s %10s %10s %10s %10s%n", "message",
+                "text B", "bin B", "text enc", "bin enc", "text dec", "bin dec");
+        run("BoardStateUpdate", new BoardStateUpdate(board));
+        run("ServerHello", new ServerHello(categoryNames, questions, user));
+        run("UserStateUpdate", new UserStateUpdate(user, "correct"));
+    }
+
+    private static void run(String name, ProtocolMessage message) {
+        byte[] text = WireFormat.TEXT.encode(message);
+        byte[] binary = WireFormat.BINARY.encode(message);
+        time(message, text, binary, WARMUP_ITERATIONS);
+        double[] ns = time(message, text, binary, ITERATIONS);
+        System.out.printf("%-18s %6d %6d %8.0fns %8.0fns %8.0fns %8.0fns%n", name,
+                text.length, binary.length, ns[0], ns[1], ns[2], ns[3]);
+    }
+
+    /**
+     * @return ns/op for text encode, binary encode, text decode, binary decode
+     */
+    private static double[] time(ProtocolMessage message, byte[] text, byte[] binary, int iterations) {
+        //Accumulate lengths so the JIT can't discard the work.
+        long sink = 0;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            sink += WireFormat.TEXT.encode(message).length;
+        long t1 = System.nanoTime();
+        for (int i = 0; i < iterations; ++i)
+            sink += WireFormat.BINARY.encode(message).length;
+        long t2 = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            String line = new String(text, 0, text.length - 1, WireFormat.TEXT_CHARSET);
+            sink += Protocol.deserialize(line).hashCode();
+        }
+        long t3 = System.nanoTime();
+        int header = BinaryEncoder.varintSize(binary.length);
+        header = BinaryEncoder.varintSize(binary.length - header);
+        for (int i = 0; i < iterations; ++i)
+            sink += Protocol.deserializeFrame(binary, header, binary.length - header).hashCode();
+        long t4 = System.nanoTime();
+        if (sink == 42)
+            System.out.println();
+        return new double[]{(t1-t0)/(double)iterations, (t2-t1)/(double)iterations,
+            (t3-t2)/(double)iterations, (t4-t3)/(double)iterations};
+    }
+}
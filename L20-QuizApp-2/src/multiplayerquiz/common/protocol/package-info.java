@@ -1,7 +1,8 @@
 /**
- * Contains protocol classes.  The protocol is still text-based, not based on
- * {@link java.io.Serializable} or other binary serialization, but this
- * centralizes parsing/unparsing rather than spreading it between the client and
- * server where used.
+ * Contains protocol classes.  The protocol is text-based by default, with a
+ * compact binary framing ({@link multiplayerquiz.common.protocol.WireFormat})
+ * negotiated in the hello messages, but not based on
+ * {@link java.io.Serializable}; this centralizes parsing/unparsing rather than
+ * spreading it between the client and server where used.
  */
 package multiplayerquiz.common.protocol;
@@ -0,0 +1,105 @@
+package multiplayerquiz.server;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import multiplayerquiz.common.model.BoardState;
+
+/**
+ * The server's board: points per cell in an AtomicIntegerArray, updated in
+ * place, with a version counter bumped after each update.  Immutable
+ * {@link BoardState}s are only built when someone asks for one (for a
+ * broadcast or a new client), and only when the version has changed since
+ * the last one, so bids no longer allocate a new board each.
+ *
+ * Callers serialize updates to a cell themselves (ServerState holds the
+ * cell's lock); this class only makes each update visible.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/21/2014
+ */
+final class AtomicBoard {
+    private final int categories, questionsPerCategory;
+    private final AtomicIntegerArray points;
+    private final AtomicLong version = new AtomicLong();
+    /**
+     * The last snapshot built, and the version it reflects at least.  A
+     * snapshot may include updates whose version bump it didn't see, so is
+     * rebuilt on the next version change even if it already has them.
+     */
+    private static final class Snapshot {
+        final long version;
+        final BoardState state;
+        Snapshot(long version, BoardState state) {
+            this.version = version;
+            this.state = state;
+        }
+    }
+    private volatile Snapshot snapshot;
+
+    AtomicBoard(int pointsPerQuestion, int categories, int questionsPerCategory) {
+        this.categories = categories;
+        this.questionsPerCategory = questionsPerCategory;
+        this.points = new AtomicIntegerArray(categories * questionsPerCategory);
+        for (int i = 0; i < points.length(); ++i)
+            points.set(i, pointsPerQuestion);
+        this.snapshot = new Snapshot(0, new BoardState(pointsPerQuestion, categories, questionsPerCategory));
+    }
+
+    int getAvailablePoints(int category, int question) {
+        return points.get(index(category, question));
+    }
+
+    /**
+     * Adds pointUpdate to a cell's points.
+     * @return the cell's new points
+     */
+    int update(int category, int question, int pointUpdate) {
+        int newPoints = points.addAndGet(index(category, question), pointUpdate);
+        assert newPoints >= 0 : newPoints;
+        //After the cell write, so a snapshot seeing this version sees it.
+        version.incrementAndGet();
+        return newPoints;
+    }
+
+    /**
+     * @return the total points on the board, without building a snapshot
+     */
+    int totalPoints() {
+        int total = 0;
+        for (int i = 0; i < points.length(); ++i)
+            total += points.get(i);
+        return total;
+    }
+
+    /**
+     * @return the number of updates so far
+     */
+    long version() {
+        return version.get();
+    }
+
+    /**
+     * Returns an immutable copy of the board, reusing the last copy if the
+     * board hasn't changed since.  The copy isn't atomic across cells: it
+     * reflects every update finished before the call, and maybe some
+     * concurrent with it.
+     */
+    BoardState snapshot() {
+        Snapshot s = snapshot;
+        long v = version.get();
+        if (s.version == v)
+            return s.state;
+        BoardState state = BoardState.copyOf(points, categories, questionsPerCategory);
+        //Racing snapshotters may overwrite each other; any result is valid.
+        snapshot = new Snapshot(v, state);
+        return state;
+    }
+
+    private int index(int category, int question) {
+        //Check each coordinate; a question past the row's end would
+        //otherwise land in the next category.
+        if (category < 0 || category >= categories || question < 0 || question >= questionsPerCategory)
+            throw new IndexOutOfBoundsException("no cell "+category+" "+question);
+        return category * questionsPerCategory + question;
+    }
+}
@@ -0,0 +1,141 @@
+package multiplayerquiz.server;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import multiplayerquiz.common.protocol.*;
+
+/**
+ * Load test: starts a server in the given mode and has bots, like the
+ * practice bots, each bid 1 point on every question as a new user, either one
+ * Bid and Answer at a time or in one BidBatch and AnswerBatch, and reports
+ * the bids per second of each.  The bots speak binary, and only the bidding
+ * (not connecting) is timed.
+ * <pre>BatchBidLoadTest questionsFile [mode] [bots] [usersPerBot] [port]</pre>
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 5/1/2014
+ */
+public final class BatchBidLoadTest {
+    private BatchBidLoadTest() {}
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String questionsFile = args[0];
+        ServerMode mode = args.length > 1 ? ServerMode.parse(args[1]) : ServerMode.THREADS;
+        int bots = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int usersPerBot = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : MainServerThread.SERVER_PORT + 3;
+
+        MainServerThread server = new MainServerThread(questionsFile, mode, port);
+        server.setDaemon(true);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("localhost", port);
+
+        for (boolean batched : new boolean[]{false, true, false, true})
+            run(address, batched, bots, usersPerBot);
+        System.out.printf("mode %s%n", mode);
+    }
+
+    private static void run(final InetSocketAddress address, final boolean batched, int bots,
+            final int usersPerBot) throws InterruptedException {
+        final AtomicLong bids = new AtomicLong(), bidNanos = new AtomicLong();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < bots; ++i)
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int u = 0; u < usersPerBot; ++u) {
+                            Socket socket = new Socket();
+                            connect(socket, address);
+                            MessageStream stream = new MessageStream(socket.getInputStream(), socket.getOutputStream());
+                            stream.write(new ClientHello(WireFormat.BINARY_FEATURE, BidBatch.FEATURE));
+                            ServerHello hello = (ServerHello)nextReply(stream);
+                            stream.setWireFormat(WireFormat.BINARY);
+                            long begin = System.nanoTime();
+                            bids.addAndGet(batched ? bidBatched(stream, hello) : bidSingly(stream, hello));
+                            bidNanos.addAndGet(System.nanoTime() - begin);
+                            socket.close();
+                        }
+                    } catch (Throwable ex) {
+                        synchronized (failures) {
+                            failures.add(ex);
+                        }
+                    }
+                }
+            });
+        long begin = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        long wallMillis = (System.nanoTime() - begin) / 1000000;
+        if (!failures.isEmpty())
+            throw new RuntimeException(failures.toString());
+        System.out.printf("%-7s: %d bids from %d bots in %d ms (%.0f bids/s; %.1f us bidding per bid per bot)%n",
+                batched ? "batched" : "single", bids.get(), bots, wallMillis, bids.get() * 1000.0 / Math.max(wallMillis, 1),
+                bidNanos.get() / 1000.0 / Math.max(bids.get(), 1));
+    }
+
+    private static int bidSingly(MessageStream stream, ServerHello hello) throws IOException {
+        int bids = 0;
+        for (int c = 0; c < hello.getCategories().size(); ++c)
+            for (int q = 0; q < hello.getQuestionsPerCategory(); ++q) {
+                stream.write(new Bid(c, q, 1));
+                if (nextReply(stream) instanceof BidAccepted) {
+                    stream.write(new Answer(0));
+                    nextReply(stream);
+                    ++bids;
+                }
+            }
+        return bids;
+    }
+
+    private static int bidBatched(MessageStream stream, ServerHello hello) throws IOException {
+        List<Bid> batch = new ArrayList<Bid>();
+        for (int c = 0; c < hello.getCategories().size(); ++c)
+            for (int q = 0; q < hello.getQuestionsPerCategory(); ++q)
+                batch.add(new Bid(c, q, 1));
+        stream.write(new BidBatch(batch));
+        int accepted = ((BidBatchReply)nextReply(stream)).getAcceptedCount();
+        if (accepted == 0)
+            return 0;
+        List<Integer> answers = new ArrayList<Integer>(accepted);
+        for (int i = 0; i < accepted; ++i)
+            answers.add(0);
+        stream.write(new AnswerBatch(answers));
+        nextReply(stream);
+        return accepted;
+    }
+
+    private static void connect(Socket socket, InetSocketAddress address) throws IOException, InterruptedException {
+        //The server thread may not have bound its socket yet.
+        for (int tries = 0; ; ++tries)
+            try {
+                socket.connect(address);
+                return;
+            } catch (ConnectException ex) {
+                if (tries == 50)
+                    throw ex;
+                Thread.sleep(100);
+            }
+    }
+
+    /**
+     * @return the next message that isn't a board broadcast
+     */
+    private static ProtocolMessage nextReply(MessageStream stream) throws IOException {
+        ProtocolMessage message;
+        do {
+            message = stream.read();
+            if (message == null)
+                throw new IOException("server closed connection");
+        } while (message instanceof BoardStateUpdate || message instanceof BoardStateDelta);
+        return message;
+    }
+}
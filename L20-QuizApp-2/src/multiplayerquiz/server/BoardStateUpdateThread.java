@@ -1,65 +1,183 @@
 package multiplayerquiz.server;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import multiplayerquiz.common.model.BoardState;
+import multiplayerquiz.common.protocol.BoardStateDelta;
 import multiplayerquiz.common.protocol.BoardStateUpdate;
-import multiplayerquiz.common.protocol.Protocol;
+import multiplayerquiz.common.protocol.ProtocolMessage;
+import multiplayerquiz.common.protocol.WireFormat;
 
 /**
- * Sends BoardStateUpdate messages to clients.
+ * Sends BoardStateUpdate messages to clients, or BoardStateDelta messages to
+ * clients that asked for them.  Each broadcast gets the next sequence number.
+ *
+ * Only the latest board state matters: update() just flags that the board
+ * changed, and this thread reads the ServerState's current board when it gets
+ * to it, so changes made in the meantime are coalesced into the next broadcast
+ * (deltas are computed against the last state actually sent, so nothing is
+ * lost).  As the board is read after the flag is cleared, the last change is
+ * always broadcast however updates from different cells interleave.
+ * Broadcasts are also spaced at least 1/maxBroadcastsPerSecond apart, so a
+ * bid storm produces a bounded number of broadcasts.
+ *
+ * Broadcasts only queue the message on each connection, which is drained
+ * independently, so a client with a full send buffer doesn't hold up the
+ * others (unless the slow-consumer policy is BACKPRESSURE).
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 3/30/2014
  */
 public final class BoardStateUpdateThread extends Thread {
-    private final List<BufferedWriter> clientsToNotify = new CopyOnWriteArrayList<BufferedWriter>();
-    private final BlockingQueue<BoardState> boardStates = new LinkedBlockingQueue<BoardState>();
+    private final List<ClientConnection> clientsToNotify = new CopyOnWriteArrayList<ClientConnection>();
+    private final List<ClientConnection> deltaClientsToNotify = new CopyOnWriteArrayList<ClientConnection>();
+    /**
+     * Set when the board has changed since this thread last read it.
+     */
+    private final AtomicBoolean changed = new AtomicBoolean();
+    private ServerState source;
+    /**
+     * The minimum time between broadcasts, or 0 for no limit.
+     */
+    private final long minIntervalNanos;
+    private final AtomicLong statesProduced = new AtomicLong(), statesCoalesced = new AtomicLong();
+    private volatile long broadcastsSent;
+    /**
+     * The last state broadcast, for computing deltas.  Only accessed by this
+     * thread (after initialize()).
+     */
+    private BoardState lastBroadcast;
+    /**
+     * A snapshot of lastBroadcast at its sequence number, for delta clients
+     * joining or recovering from a gap.
+     */
+    private volatile BoardStateDelta snapshot;
     public BoardStateUpdateThread() {
+        this(0);
+    }
+    /**
+     * @param maxBroadcastsPerSecond the maximum broadcast rate, or 0 for no
+     * limit (other than how fast we can broadcast)
+     */
+    public BoardStateUpdateThread(int maxBroadcastsPerSecond) {
         super("BoardStateUpdateThread");
         setDaemon(true);
+        this.minIntervalNanos = maxBroadcastsPerSecond > 0 ?
+                TimeUnit.SECONDS.toNanos(1) / maxBroadcastsPerSecond : 0;
+    }
+
+    /**
+     * Sets the server state whose board we broadcast, taking its current board
+     * as the initial state, at sequence number 0.  Must be called before this
+     * thread is started.
+     */
+    public void initialize(ServerState source) {
+        this.source = source;
+        lastBroadcast = source.getBoardState();
+        snapshot = new BoardStateDelta(0, lastBroadcast);
     }
 
     @Override
     public void run() {
-        while (true) {
-            BoardState state;
-            try {
-                state = boardStates.take();
-            } catch (InterruptedException ex) {
-                break;
+        long nextBroadcast = System.nanoTime();
+        while (!isInterrupted()) {
+            if (!changed.getAndSet(false)) {
+                LockSupport.park(this);
+                continue;
+            }
+            BoardState state = source.getBoardState();
+            int[] cells = lastBroadcast.changedCells(state);
+            if (cells.length == 0)
+                continue;
+            long sequence = snapshot.getSequence() + 1;
+            lastBroadcast = state;
+            snapshot = new BoardStateDelta(sequence, state);
+            broadcast(clientsToNotify, new BoardStateUpdate(state));
+            broadcast(deltaClientsToNotify, new BoardStateDelta(sequence, cells));
+            ++broadcastsSent;
+
+            if (minIntervalNanos > 0) {
+                //Let further updates accumulate until we may broadcast again.
+                nextBroadcast = Math.max(nextBroadcast + minIntervalNanos, System.nanoTime());
+                long delay;
+                while ((delay = nextBroadcast - System.nanoTime()) > 0 && !isInterrupted())
+                    LockSupport.parkNanos(this, delay);
             }
-            String message = Protocol.serialize(new BoardStateUpdate(state));
-            for (BufferedWriter w : clientsToNotify)
-                synchronized (w) {
-                    try {
-                        w.write(message);
-                        w.flush();
-                    } catch (IOException e) {
-                        //Ignore: maybe the client just disconnected, etc. Must
-                        //still service the other clients.
-                    }
-                }
         }
     }
 
-    public void subscribe(BufferedWriter client) {
-        clientsToNotify.add(client);
+    private static void broadcast(List<ClientConnection> clients, ProtocolMessage message) {
+        //Encode at most once per format in use, into a buffer shared by all
+        //clients using that format.
+        ByteBuffer[] encoded = new ByteBuffer[WireFormat.values().length];
+        for (ClientConnection c : clients)
+            try {
+                WireFormat format = c.getWireFormat();
+                if (encoded[format.ordinal()] == null)
+                    encoded[format.ordinal()] = format.encodeShared(message);
+                c.broadcast(encoded[format.ordinal()]);
+            } catch (IOException e) {
+                //Ignore: maybe the client just disconnected, etc. Must
+                //still service the other clients.
+            }
+    }
+
+    /**
+     * @return a snapshot of the last board state broadcast
+     */
+    public BoardStateDelta getSnapshot() {
+        return snapshot;
     }
 
-    public void unsubscribe(BufferedWriter client) {
+    /**
+     * Subscribes a client to board updates.
+     * @param client the client
+     * @param deltas true to send BoardStateDelta, false for BoardStateUpdate
+     */
+    public void subscribe(ClientConnection client, boolean deltas) {
+        (deltas ? deltaClientsToNotify : clientsToNotify).add(client);
+    }
+
+    public void unsubscribe(ClientConnection client) {
         clientsToNotify.remove(client);
+        deltaClientsToNotify.remove(client);
     }
 
-    public void update(BoardState state) {
-        try {
-            boardStates.put(state);
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
-        }
+    /**
+     * Schedules a broadcast of the board, which has just changed.  Never
+     * blocks.
+     */
+    public void update() {
+        statesProduced.incrementAndGet();
+        if (changed.getAndSet(true))
+            statesCoalesced.incrementAndGet();
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * @return the number of calls to update()
+     */
+    public long getStatesProduced() {
+        return statesProduced.get();
+    }
+
+    /**
+     * @return the number of changes coalesced into a later broadcast
+     */
+    public long getStatesCoalesced() {
+        return statesCoalesced.get();
+    }
+
+    /**
+     * @return the number of broadcasts sent (each to every subscriber)
+     */
+    public long getBroadcastsSent() {
+        return broadcastsSent;
     }
 }
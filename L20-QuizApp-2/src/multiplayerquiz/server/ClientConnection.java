@@ -0,0 +1,55 @@
+package multiplayerquiz.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import multiplayerquiz.common.protocol.WireFormat;
+
+/**
+ * A connection to a single client that encoded messages can be written to,
+ * independent of whether it's serviced by a blocking thread or a selector.
+ * Implementations must be safe to write to from multiple threads.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/14/2014
+ */
+public interface ClientConnection {
+    /**
+     * @return the format messages to this client must be encoded in
+     */
+    public WireFormat getWireFormat();
+
+    /**
+     * Switches both directions of the connection to the given format, taking
+     * effect for the next message read and written.  Called only by the
+     * thread servicing reads.
+     */
+    public void setWireFormat(WireFormat format);
+
+    /**
+     * Queues an encoded reply to the client.  Replies are always queued, as
+     * they're bounded by the client's own requests.  The buffer may be shared
+     * with other connections (see {@link WireFormat#encodeShared}), so
+     * implementations must not modify it or move its position.
+     * @param message a message encoded in {@link #getWireFormat()}, between
+     * the buffer's position and limit
+     * @throws IOException if the connection is broken
+     */
+    public void write(ByteBuffer message) throws IOException;
+
+    /**
+     * Queues an encoded board broadcast to the client, subject to the
+     * connection's {@link SlowConsumerPolicy} if the client has fallen behind.
+     * Returns without waiting for the client unless the policy is
+     * BACKPRESSURE.  The same restrictions on the buffer apply as for
+     * {@link #write(ByteBuffer)}.
+     * @throws IOException if the connection is broken or was closed for being
+     * too slow
+     */
+    public void broadcast(ByteBuffer message) throws IOException;
+
+    /**
+     * Closes the connection from a thread other than the one servicing it,
+     * e.g. when a reply can't be made durable.  Idempotent.
+     */
+    public void disconnect();
+}
@@ -0,0 +1,364 @@
+package multiplayerquiz.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import multiplayerquiz.common.protocol.*;
+
+/**
+ * The protocol state machine for a single client, shared by the blocking and
+ * non-blocking server modes.  Messages are fed in one at a time by whichever
+ * thread services the connection; replies are written to the connection.
+ *
+ * After a {@link BidAccepted}, the next message must be the matching
+ * {@link Answer} (or a {@link BoardStateRequest} or {@link LeaderboardRequest},
+ * which are asynchronous).  Clients with the {@link Bid#FEATURE pipeline
+ * feature} may instead tag bids with request ids and have several outstanding
+ * at once, answering them in any order; the replies carry the same ids.
+ * Clients with the {@link BidBatch#FEATURE batch feature} may send a
+ * {@link BidBatch}, after which (if any bids were accepted) the next message
+ * must be the {@link AnswerBatch}, as for an untagged bid.
+ *
+ * Replies to journaled changes are written once the change is durable (see
+ * {@link Journal#whenDurable}); replies are written in the order of the
+ * requests they answer, so any reply made while one of those is waiting
+ * waits behind it.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/14/2014
+ */
+public final class ClientSession {
+    /**
+     * The most tagged bids a client may have outstanding; overridable with
+     * -Dmultiplayerquiz.maxPipelinedBids.
+     */
+    private static final int MAX_PIPELINED_BIDS = Integer.getInteger("multiplayerquiz.maxPipelinedBids", 32);
+    /**
+     * The most bids a BidBatch may hold; overridable with
+     * -Dmultiplayerquiz.maxBatchSize.
+     */
+    private static final int MAX_BATCH_SIZE = Integer.getInteger("multiplayerquiz.maxBatchSize", 256);
+    private final ServerState state;
+    private final BoardStateUpdateThread updateThread;
+    private final ClientConnection connection;
+    private UUID userId;
+    /**
+     * The user's handle in the ServerState, looked up at ClientHello.
+     */
+    private int user;
+    private boolean deltas, leaderboard, pipeline, batch;
+    /**
+     * The accepted untagged bid awaiting an Answer, or null if none.
+     */
+    private Bid pendingBid;
+    private ServerState.PointReservation pendingReservation;
+    /**
+     * Accepted tagged bids awaiting Answers, by request id, and the total
+     * points they risk.
+     */
+    private final Map<Integer, ServerState.PointReservation> pipelined = new HashMap<Integer, ServerState.PointReservation>();
+    private int pipelinedPoints;
+    /**
+     * The accepted bids of a BidBatch awaiting an AnswerBatch, or null if
+     * none.
+     */
+    private List<ServerState.PointReservation> pendingBatch;
+    /**
+     * Replies waiting for durability (see sendWhenDurable), decremented by the
+     * journal's writer thread once each is written.
+     */
+    private final AtomicInteger durableRepliesPending = new AtomicInteger();
+    public ClientSession(ServerState state, BoardStateUpdateThread updateThread, ClientConnection connection) {
+        this.state = state;
+        this.updateThread = updateThread;
+        this.connection = connection;
+    }
+
+    /**
+     * Processes one message from the client.
+     * @param message the message
+     * @throws IOException if writing a reply fails
+     * @throws ProtocolException if the message is unexpected in this state
+     */
+    public void handle(ProtocolMessage message) throws IOException {
+        if (message instanceof BoardStateRequest) {
+            if (!deltas)
+                throw new ProtocolException("BoardStateRequest without delta feature");
+            send(updateThread.getSnapshot());
+        } else if (message instanceof LeaderboardRequest) {
+            if (!leaderboard)
+                throw new ProtocolException("LeaderboardRequest without leaderboard feature");
+            int topCount = ((LeaderboardRequest)message).getTopCount();
+            if (topCount < 0)
+                throw new ProtocolException("negative top count: "+message);
+            send(state.getLeaderboard().query(state.getScore(user), topCount));
+        } else if (pendingBid != null) {
+            if (!(message instanceof Answer) || ((Answer)message).getRequestId() != Protocol.NO_REQUEST_ID)
+                throw new ProtocolException("expected Answer, got "+message);
+            processAnswer((Answer)message);
+        } else if (pendingBatch != null) {
+            if (!(message instanceof AnswerBatch))
+                throw new ProtocolException("expected AnswerBatch, got "+message);
+            processAnswerBatch((AnswerBatch)message);
+        } else if (message instanceof ClientHello)
+            sendServerHello((ClientHello)message);
+        else if (message instanceof Bid)
+            processBid((Bid)message);
+        else if (message instanceof Answer && ((Answer)message).getRequestId() != Protocol.NO_REQUEST_ID)
+            processPipelinedAnswer((Answer)message);
+        else if (message instanceof BidBatch)
+            processBidBatch((BidBatch)message);
+        else
+            throw new ProtocolException("unexpected "+message);
+    }
+
+    /**
+     * Releases resources held for this session.  Called when the connection
+     * closes, for whatever reason.
+     */
+    public void close() {
+        updateThread.unsubscribe(connection);
+    }
+
+    public UUID getUserId() {
+        return userId;
+    }
+
+    private void send(ProtocolMessage message) throws IOException {
+        send(encode(message));
+    }
+
+    /**
+     * Writes a reply that needn't wait for durability, unless a reply that
+     * does is still waiting, in which case it's queued behind that one.
+     */
+    private void send(ByteBuffer reply) throws IOException {
+        if (durableRepliesPending.get() == 0)
+            connection.write(reply);
+        else
+            sendWhenDurable(reply);
+    }
+
+    private ByteBuffer encode(ProtocolMessage message) {
+        return ByteBuffer.wrap(connection.getWireFormat().encode(message));
+    }
+
+    /**
+     * Writes the reply to a journaled change once the change is durable,
+     * rather than blocking this session's thread (an I/O thread, in NIO mode)
+     * until then.  The journal calls its listeners in the order they were
+     * added, so replies sent this way stay in order among themselves, and
+     * {@link #send(ByteBuffer)} keeps later replies behind them.
+     */
+    private void sendWhenDurable(final ByteBuffer reply) {
+        durableRepliesPending.incrementAndGet();
+        state.whenDurable(new Journal.DurabilityListener() {
+            @Override
+            public void durable() {
+                try {
+                    connection.write(reply);
+                } catch (IOException ex) {
+                    connection.disconnect();
+                } finally {
+                    //After the write, so a reply sent immediately follows it.
+                    durableRepliesPending.decrementAndGet();
+                }
+            }
+            @Override
+            public void failed(IOException ex) {
+                durableRepliesPending.decrementAndGet();
+                connection.disconnect();
+            }
+        });
+    }
+
+    private void sendServerHello(ClientHello clientHello) throws IOException {
+        userId = clientHello.getUserId();
+        user = state.getUserHandle(userId);
+        List<String> features = new ArrayList<String>();
+        if (clientHello.getFeatures().contains(WireFormat.BINARY_FEATURE))
+            features.add(WireFormat.BINARY_FEATURE);
+        deltas = clientHello.getFeatures().contains(BoardStateDelta.FEATURE);
+        if (deltas)
+            features.add(BoardStateDelta.FEATURE);
+        leaderboard = clientHello.getFeatures().contains(Leaderboard.FEATURE);
+        if (leaderboard)
+            features.add(Leaderboard.FEATURE);
+        pipeline = clientHello.getFeatures().contains(Bid.FEATURE);
+        if (pipeline)
+            features.add(Bid.FEATURE);
+        batch = clientHello.getFeatures().contains(BidBatch.FEATURE);
+        if (batch)
+            features.add(BidBatch.FEATURE);
+        ServerHello msg = new ServerHello(state.getServerHelloCategories(), state.getUserState(user), features);
+        send(msg);
+        if (features.contains(WireFormat.BINARY_FEATURE))
+            connection.setWireFormat(WireFormat.BINARY);
+        if (deltas)
+            send(updateThread.getSnapshot());
+        else
+            send(new BoardStateUpdate(state.getBoardState()));
+        updateThread.subscribe(connection, deltas);
+    }
+
+    private void processBid(Bid bid) throws IOException {
+        if (userId == null)
+            throw new ProtocolException("Bid before ClientHello");
+        int requestId = bid.getRequestId();
+        if (requestId != Protocol.NO_REQUEST_ID) {
+            if (!pipeline)
+                throw new ProtocolException("tagged Bid without pipeline feature: "+bid);
+            if (pipelined.containsKey(requestId))
+                throw new ProtocolException("request id already outstanding: "+bid);
+            if (pipelined.size() >= MAX_PIPELINED_BIDS) {
+                send(new BidRefused("too many outstanding bids (limit "+MAX_PIPELINED_BIDS+")", requestId));
+                return;
+            }
+            if (isBidding(bid, Collections.<Bid>emptyList())) {
+                send(new BidRefused("already bidding on that question", requestId));
+                return;
+            }
+        }
+        //Enforce these server-side to defend against dishonest clients.
+        if (!state.hasQuestion(bid.getCategory(), bid.getQuestion())) {
+            send(new BidRefused("no such question", requestId));
+            return;
+        }
+        if (bid.getAmount() <= 0) {
+            send(new BidRefused("must Bid positive points (tried "+bid.getAmount()+")", requestId));
+            return;
+        }
+        //Points risked on outstanding bids aren't available to this one.
+        int currentScore = state.getScore(user) - pipelinedPoints;
+        if (bid.getAmount() > currentScore) {
+            send(new BidRefused(String.format(
+                    "can't Bid more points than you have (have %d, tried to Bid %d)",
+                    currentScore, bid.getAmount()), requestId));
+            return;
+        }
+
+        ServerState.PointReservation r = state.tryBid(user, bid.getCategory(), bid.getQuestion(), bid.getAmount());
+        if (r == null) {
+            send(new BidRefused("too few points remain", requestId));
+            return;
+        }
+
+        ByteBuffer accepted = state.getEncodedBidAccepted(bid.getCategory(), bid.getQuestion(), connection.getWireFormat());
+        if (requestId == Protocol.NO_REQUEST_ID) {
+            pendingBid = bid;
+            pendingReservation = r;
+        } else {
+            pipelined.put(requestId, r);
+            pipelinedPoints += r.getPoints();
+            accepted = connection.getWireFormat().withRequestId(accepted, requestId);
+        }
+        sendWhenDurable(accepted);
+    }
+
+    private void processAnswer(Answer answer) throws IOException {
+        ServerState.PointReservation r = pendingReservation;
+        pendingBid = null;
+        pendingReservation = null;
+        String reasonString = state.redeemReservation(r, answer.getAnswer());
+        sendWhenDurable(encode(new UserStateUpdate(state.getUserState(user), reasonString)));
+    }
+
+    /**
+     * Checks each bid as processBid would, counting the points risked by
+     * earlier bids in the batch, then makes the ones that pass together.
+     */
+    private void processBidBatch(BidBatch bidBatch) throws IOException {
+        if (userId == null)
+            throw new ProtocolException("BidBatch before ClientHello");
+        if (!batch)
+            throw new ProtocolException("BidBatch without batch feature");
+        List<Bid> bids = bidBatch.getBids();
+        ProtocolMessage[] replies = new ProtocolMessage[bids.size()];
+        if (bids.size() > MAX_BATCH_SIZE) {
+            Arrays.fill(replies, new BidRefused("too many bids in batch (limit "+MAX_BATCH_SIZE+")"));
+            send(new BidBatchReply(Arrays.asList(replies)));
+            return;
+        }
+
+        int available = state.getScore(user) - pipelinedPoints;
+        List<Bid> toTry = new ArrayList<Bid>(bids.size());
+        List<Integer> toTryIndices = new ArrayList<Integer>(bids.size());
+        for (int i = 0; i < bids.size(); ++i) {
+            Bid bid = bids.get(i);
+            if (!state.hasQuestion(bid.getCategory(), bid.getQuestion()))
+                replies[i] = new BidRefused("no such question");
+            else if (bid.getAmount() <= 0)
+                replies[i] = new BidRefused("must Bid positive points (tried "+bid.getAmount()+")");
+            else if (bid.getAmount() > available)
+                replies[i] = new BidRefused(String.format(
+                        "can't Bid more points than you have (have %d, tried to Bid %d)",
+                        available, bid.getAmount()));
+            else if (isBidding(bid, toTry))
+                replies[i] = new BidRefused("already bidding on that question");
+            else {
+                available -= bid.getAmount();
+                toTry.add(bid);
+                toTryIndices.add(i);
+            }
+        }
+
+        ServerState.PointReservation[] rs = state.tryBids(user, toTry);
+        List<ServerState.PointReservation> accepted = new ArrayList<ServerState.PointReservation>(rs.length);
+        for (int i = 0; i < rs.length; ++i) {
+            Bid bid = toTry.get(i);
+            if (rs[i] == null)
+                replies[toTryIndices.get(i)] = new BidRefused("too few points remain");
+            else {
+                replies[toTryIndices.get(i)] = state.getBidAccepted(bid.getCategory(), bid.getQuestion());
+                accepted.add(rs[i]);
+            }
+        }
+        if (!accepted.isEmpty())
+            pendingBatch = accepted;
+        ByteBuffer reply = encode(new BidBatchReply(Arrays.asList(replies)));
+        //If every bid was refused, nothing was journaled to wait for.
+        if (accepted.isEmpty())
+            send(reply);
+        else
+            sendWhenDurable(reply);
+    }
+
+    /**
+     * @return true if the bid is on a question with a pipelined bid
+     * outstanding or in the given bids
+     */
+    private boolean isBidding(Bid bid, List<Bid> bids) {
+        for (ServerState.PointReservation r : pipelined.values())
+            if (r.getCategory() == bid.getCategory() && r.getQuestion() == bid.getQuestion())
+                return true;
+        for (Bid b : bids)
+            if (b.getCategory() == bid.getCategory() && b.getQuestion() == bid.getQuestion())
+                return true;
+        return false;
+    }
+
+    private void processAnswerBatch(AnswerBatch answerBatch) throws IOException {
+        List<ServerState.PointReservation> rs = pendingBatch;
+        if (answerBatch.getAnswers().size() != rs.size())
+            throw new ProtocolException(String.format("expected %d answers, got %s", rs.size(), answerBatch));
+        pendingBatch = null;
+        String[] reasons = state.redeemReservations(rs, answerBatch.getAnswers());
+        sendWhenDurable(encode(new UserStateUpdateBatch(state.getUserState(user), Arrays.asList(reasons))));
+    }
+
+    private void processPipelinedAnswer(Answer answer) throws IOException {
+        ServerState.PointReservation r = pipelined.remove(answer.getRequestId());
+        if (r == null)
+            throw new ProtocolException("Answer to no outstanding bid: "+answer);
+        pipelinedPoints -= r.getPoints();
+        String reasonString = state.redeemReservation(r, answer.getAnswer());
+        sendWhenDurable(encode(new UserStateUpdate(state.getUserState(user), reasonString, answer.getRequestId())));
+    }
+}
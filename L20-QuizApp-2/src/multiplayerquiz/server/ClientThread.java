@@ -1,107 +1,118 @@
 package multiplayerquiz.server;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.Socket;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
 
-import multiplayerquiz.common.model.Question;
 import multiplayerquiz.common.protocol.*;
 
 /**
- * Handles interactions with a single client.
+ * Handles interactions with a single client.  This is a Thread for the
+ * platform-thread mode, but may also be passed as a Runnable to a virtual
+ * thread, so it must not assume it is the current thread.
+ *
+ * Messages to the client are queued in an {@link OutboundQueue} and written
+ * by a separate writer thread from the given factory, so neither this thread
+ * nor the broadcaster waits on the client's send buffer.
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 3/30/2014
  */
-public final class ClientThread extends Thread {
+public final class ClientThread extends Thread implements ClientConnection {
     private final Socket socket;
-    private final ServerState state;
-    private final BoardStateUpdateThread updateThread;
-    private BufferedReader reader;
-    private BufferedWriter writer;
-    private UUID userId;
-    public ClientThread(Socket socket, ServerState state, BoardStateUpdateThread updateThread) {
+    private final ClientSession session;
+    private final ThreadFactory writerFactory;
+    private final OutboundQueue outbound = new OutboundQueue();
+    private MessageStream stream;
+    public ClientThread(Socket socket, ServerState state, BoardStateUpdateThread updateThread, ThreadFactory writerFactory) {
         this.socket = socket;
-        this.state = state;
-        this.updateThread = updateThread;
+        this.session = new ClientSession(state, updateThread, this);
+        this.writerFactory = writerFactory;
     }
 
     @Override
     public void run() {
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            this.reader = reader;
-            this.writer = writer;
+            this.stream = new MessageStream(socket.getInputStream(), socket.getOutputStream());
+            writerFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }).start();
 
             while (true) {
-                String line = reader.readLine();
-                if (line == null) //client closed socket
+                ProtocolMessage message = stream.read();
+                if (message == null) //client closed socket
                     break;
-                ProtocolMessage message = Protocol.deserialize(line);
+                session.handle(message);
                 if (message instanceof ClientHello)
-                    sendServerHello((ClientHello)message);
-                else if (message instanceof Bid)
-                    processBid((Bid)message);
-                else
-                    throw new ProtocolException("unexpected "+line);
+                    Thread.currentThread().setName("Client-"+session.getUserId());
             }
         } catch (IOException ex) {
             //TODO: clean up client state, if any
         } finally {
-            updateThread.unsubscribe(writer);
+            session.close();
+            close();
         }
     }
 
-    private void sendServerHello(ClientHello clientHello) throws IOException {
-        setName("Client-"+clientHello.getUserId());
-        userId = clientHello.getUserId();
-        ServerHello msg = new ServerHello(state.getCategories(), state.getQuestions(0).size(), state.getUserState(userId));
-        write(Protocol.serialize(msg));
-        write(Protocol.serialize(new BoardStateUpdate(state.getBoardState())));
-        updateThread.subscribe(writer);
-    }
-
-    private void processBid(Bid Bid) throws IOException {
-        //Enforce these server-side to defend against dishonest clients.
-        if (Bid.getAmount() <= 0) {
-            write(Protocol.serialize(new BidRefused("must Bid positive points (tried "+Bid.getAmount()+")")));
-            return;
-        }
-        int currentScore = state.getUserState(userId).getScore();
-        if (Bid.getAmount() > currentScore) {
-            write(Protocol.serialize(new BidRefused(String.format(
-                    "can't Bid more points than you have (have %d, tried to Bid %d)",
-                    currentScore, Bid.getAmount()))));
-            return;
+    /**
+     * Writes queued messages until the queue is closed or a write fails.  Only
+     * this thread writes to stream.
+     */
+    private void drain() {
+        try {
+            ByteBuffer message;
+            while ((message = outbound.take()) != null)
+                stream.write(message);
+        } catch (IOException ex) {
+            close();
+        } catch (InterruptedException ex) {
+            close();
         }
+    }
 
-        ServerState.PointReservation r = state.tryBid(userId,Bid.getCategory(), Bid.getQuestion(), Bid.getAmount());
-        if (r == null) {
-            write(Protocol.serialize(new BidRefused("too few points remain")));
-            return;
+    /**
+     * Closes the socket, ending both the reader and writer.  Idempotent.
+     */
+    private void close() {
+        outbound.close();
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            //nothing to do
         }
+    }
 
-        Question q = state.getQuestions(Bid.getCategory()).get(Bid.getQuestion());
-        write(Protocol.serialize(new BidAccepted(q)));
+    @Override
+    public WireFormat getWireFormat() {
+        return stream.getWireFormat();
+    }
 
-        String line = reader.readLine();
-        ProtocolMessage message = Protocol.deserialize(line);
-        if (!(message instanceof Answer))
-            throw new ProtocolException("expected Answer, got "+message);
-        int answer = ((Answer)message).getAnswer();
-        String reasonString = state.redeemReservation(r, Bid.getCategory(), Bid.getQuestion(), answer);
+    @Override
+    public void setWireFormat(WireFormat format) {
+        stream.setWireFormat(format);
+    }
 
-        write(Protocol.serialize(new UserStateUpdate(state.getUserState(userId), reasonString)));
+    @Override
+    public void write(ByteBuffer msg) throws IOException {
+        outbound.add(msg);
     }
 
-    private void write(String msg) throws IOException {
-        synchronized (writer) {
-            writer.write(msg);
-            writer.flush();
+    @Override
+    public void broadcast(ByteBuffer msg) throws IOException {
+        try {
+            outbound.addBroadcast(msg);
+        } catch (IOException ex) {
+            //closes us if we were disconnected as a slow consumer
+            close();
+            throw ex;
         }
     }
+
+    @Override
+    public void disconnect() {
+        close();
+    }
 }
@@ -0,0 +1,144 @@
+package multiplayerquiz.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import multiplayerquiz.common.protocol.*;
+
+/**
+ * Load test: starts a server in the given mode, opens many idle connections
+ * to it, then checks that an active client is still served promptly and
+ * reports heap and platform thread usage.  Run with the default heap (no -Xmx)
+ * to check the mode's footprint.  The idle connections are opened by a child
+ * JVM, so each needs one file descriptor in each process rather than two in
+ * this one; ulimit -n must still exceed the connection count.
+ * <pre>IdleConnectionLoadTest questionsFile [mode] [connections] [port]</pre>
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/15/2014
+ */
+public final class IdleConnectionLoadTest {
+    /**
+     * The child JVM's first argument, and what it prints once connected.
+     */
+    private static final String CLIENTS_ARG = "--clients", READY = "ready";
+    private IdleConnectionLoadTest() {}
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args[0].equals(CLIENTS_ARG)) {
+            openIdleConnections(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        String questionsFile = args[0];
+        ServerMode mode = args.length > 1 ? ServerMode.parse(args[1]) : ServerMode.VIRTUAL_THREADS;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : MainServerThread.SERVER_PORT + 1;
+
+        MainServerThread server = new MainServerThread(questionsFile, mode, port);
+        server.setDaemon(true);
+        server.start();
+        long baseHeap = usedHeap();
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        long begin = System.nanoTime();
+        Process clients = new ProcessBuilder(
+                new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+                "-cp", System.getProperty("java.class.path"), IdleConnectionLoadTest.class.getName(),
+                CLIENTS_ARG, Integer.toString(port), Integer.toString(connections))
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String ready = new BufferedReader(new InputStreamReader(clients.getInputStream())).readLine();
+        if (!READY.equals(ready))
+            throw new IOException("client process failed");
+        long connectMillis = (System.nanoTime() - begin) / 1000000;
+        //Give the server a moment to start handlers for the last connections.
+        Thread.sleep(1000);
+
+        begin = System.nanoTime();
+        Socket socket = new Socket("localhost", port);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        exchange(reader, writer, new ClientHello(), ServerHello.class);
+        expect(reader, BoardStateUpdate.class);
+        exchange(reader, writer, new Bid(0, 0, 1), BidAccepted.class);
+        exchange(reader, writer, new Answer(0), UserStateUpdate.class);
+        long roundTripMillis = (System.nanoTime() - begin) / 1000000;
+        socket.close();
+
+        System.out.printf("mode %s: %d idle connections opened in %d ms%n", mode, connections, connectMillis);
+        System.out.printf("active client hello/bid/answer with %d idle connections: %d ms%n", connections, roundTripMillis);
+        System.out.printf("platform threads: %d -> %d%n", baseThreads, ManagementFactory.getThreadMXBean().getThreadCount());
+        long heap = usedHeap();
+        System.out.printf("heap used: %d KB -> %d KB (%d bytes/connection, max heap %d MB)%n",
+                baseHeap / 1024, heap / 1024, (heap - baseHeap) / connections,
+                Runtime.getRuntime().maxMemory() / (1024*1024));
+
+        //Closing its stdin tells the child to close its connections and exit.
+        clients.getOutputStream().close();
+        clients.waitFor();
+    }
+
+    /**
+     * Run in the child JVM: opens the idle connections, says so on stdout,
+     * then holds them until stdin closes.
+     */
+    private static void openIdleConnections(int port, int connections) throws IOException, InterruptedException {
+        InetSocketAddress address = new InetSocketAddress("localhost", port);
+        List<Socket> idle = new ArrayList<Socket>(connections);
+        for (int i = 0; i < connections; ++i)
+            idle.add(connect(address));
+        System.out.println(READY);
+        System.out.flush();
+        while (System.in.read() != -1)
+            ;
+        for (Socket c : idle)
+            c.close();
+    }
+
+    private static Socket connect(InetSocketAddress address) throws IOException, InterruptedException {
+        //The server thread may not have bound its socket yet.
+        for (int tries = 0; ; ++tries)
+            try {
+                Socket socket = new Socket();
+                socket.connect(address);
+                return socket;
+            } catch (ConnectException ex) {
+                if (tries == 50)
+                    throw ex;
+                Thread.sleep(100);
+            }
+    }
+
+    private static void exchange(BufferedReader reader, BufferedWriter writer, ProtocolMessage message,
+            Class<? extends ProtocolMessage> expected) throws IOException {
+        writer.write(Protocol.serialize(message));
+        writer.flush();
+        expect(reader, expected);
+    }
+
+    private static void expect(BufferedReader reader, Class<? extends ProtocolMessage> expected) throws IOException {
+        ProtocolMessage reply;
+        do {
+            reply = Protocol.deserialize(reader.readLine());
+        } while (reply instanceof BoardStateUpdate && expected != BoardStateUpdate.class);
+        if (!expected.isInstance(reply))
+            throw new ProtocolException("expected "+expected.getSimpleName()+", got "+reply);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,492 @@
+package multiplayerquiz.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import multiplayerquiz.common.protocol.BinaryDecoder;
+import multiplayerquiz.common.protocol.BinaryEncoder;
+
+/**
+ * An append-only log of records, each framed like a binary protocol message
+ * (a varint length, then the bytes written to a {@link BinaryEncoder}).
+ *
+ * Appends only copy the record into a buffer and return a ticket; a writer
+ * thread writes everything buffered so far with one write (and, in
+ * GROUP_COMMIT mode, one force), so callers appending while a force is in
+ * progress share the next one.  Callers needing durability then call
+ * {@link #awaitDurable(long)} with their ticket, after releasing any locks,
+ * or, if they mustn't block, ask to be called back with
+ * {@link #whenDurable(DurabilityListener)}.
+ *
+ * The journal is split into numbered segment files, so a snapshot of the
+ * state as of a {@link #rollover()} makes the segments before it redundant
+ * (see ServerState.checkpoint); they're then deleted, and restarts only
+ * replay the segments after the snapshot.  Segment n of a journal named
+ * "quiz.journal" is quiz.journal.n, and its snapshot quiz.journal.snapshot.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/25/2014
+ */
+public final class Journal {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private final JournalMode mode;
+    private final File base;
+    /**
+     * The segment being written to, only touched by the writer thread after
+     * replay, and its number, only changed by the writer thread (under lock,
+     * as rollover() reads it).
+     */
+    private FileChannel channel;
+    private long segment;
+    /**
+     * The offset of the first byte the writer hasn't written, counting bytes
+     * appended since this journal was opened (like appendedOffset and
+     * durableOffset); only touched by the writer thread.
+     */
+    private long writtenOffset;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasData = lock.newCondition(), written = lock.newCondition(), rolled = lock.newCondition();
+    //the rest are guarded by lock, unless noted
+    /**
+     * Records appended but not yet taken by the writer, and the buffer the
+     * writer last finished with.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE), spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    /**
+     * The offset just past the last record appended, counting bytes
+     * appended since this journal was opened.
+     */
+    private long appendedOffset;
+    /**
+     * The offset up to which records are written (and in GROUP_COMMIT
+     * mode, forced).
+     */
+    private long durableOffset;
+    /**
+     * The offset at which the writer should start a new segment, or -1.
+     */
+    private long rollOffset = -1;
+    /**
+     * Listeners waiting for durability, in the order they were added, and
+     * the offset each is waiting for.
+     */
+    private final ArrayDeque<DurabilityListener> listeners = new ArrayDeque<DurabilityListener>();
+    private final ArrayDeque<Long> listenerOffsets = new ArrayDeque<Long>();
+    private IOException failure;
+    private boolean closed;
+    private long records, commits;
+    private Thread writer;
+
+    private Journal(JournalMode mode, File base) {
+        this.mode = mode;
+        this.base = base;
+    }
+
+    /**
+     * @return a journal that records nothing
+     */
+    public static Journal disabled() {
+        return new Journal(JournalMode.OFF, null);
+    }
+
+    /**
+     * Opens the journal with the given name (its segments needn't exist yet).
+     * Call {@link #replay(long, RecordHandler)} before appending.
+     */
+    public static Journal open(File base, JournalMode mode) {
+        if (mode == JournalMode.OFF)
+            return disabled();
+        return new Journal(mode, base);
+    }
+
+    public JournalMode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the file snapshots of this journal's state are kept in, or null
+     * if journaling is off
+     */
+    public File getSnapshotFile() {
+        return base == null ? null : new File(base.getPath() + ".snapshot");
+    }
+
+    public interface RecordHandler {
+        /**
+         * Called with each record in the journal, in order.
+         */
+        public void replay(BinaryDecoder record);
+    }
+
+    /**
+     * Passes each record in the segments numbered from firstSegment on to the
+     * handler, in order, then starts the writer so records may be appended to
+     * the last segment.  A partial record at the end of the last segment
+     * (from a crash mid-write) is discarded.
+     * @throws IOException if reading fails, or a segment other than the last
+     * ends with a partial record
+     */
+    public void replay(long firstSegment, RecordHandler handler) throws IOException {
+        if (mode == JournalMode.OFF)
+            return;
+        SortedMap<Long, File> segments = segments().tailMap(firstSegment);
+        segment = segments.isEmpty() ? firstSegment : segments.lastKey();
+        for (File file : segments.values()) {
+            FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long consumed = readFrames(in, handler);
+            if (consumed < in.size()) {
+                if (!file.equals(segments.get(segment))) {
+                    in.close();
+                    throw new IOException(file + " ends with a partial record");
+                }
+                System.err.println(String.format("journal %s: discarding %d bytes of partial record",
+                        file, in.size() - consumed));
+                in.truncate(consumed);
+            }
+            in.close();
+        }
+        channel = openSegment(segment);
+        writer = new Thread("JournalWriter") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Passes each complete frame in the channel, from its current position,
+     * to the handler.
+     * @return the number of bytes of complete frames read
+     */
+    static long readFrames(FileChannel channel, RecordHandler handler) throws IOException {
+        byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        int start = 0, end = 0;
+        long consumed = 0;
+        while (true) {
+            while (true) {
+                BinaryDecoder header = new BinaryDecoder(buffer, start, end - start);
+                int length = header.tryReadVarint();
+                if (length == -1)
+                    break;
+                int body = header.position();
+                if (end - body < length)
+                    break;
+                handler.replay(new BinaryDecoder(buffer, body, length));
+                consumed += body + length - start;
+                start = body + length;
+            }
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+            if (end == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            int read = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end));
+            if (read == -1)
+                break;
+            end += read;
+        }
+        return consumed;
+    }
+
+    /**
+     * @return this journal's segment files by number
+     */
+    private SortedMap<Long, File> segments() {
+        SortedMap<Long, File> segments = new TreeMap<Long, File>();
+        File dir = base.getAbsoluteFile().getParentFile();
+        String prefix = base.getName() + ".";
+        String[] names = dir.list();
+        if (names != null)
+            for (String name : names)
+                if (name.startsWith(prefix) && name.length() > prefix.length()
+                        && name.substring(prefix.length()).matches("[0-9]+"))
+                    segments.put(Long.parseLong(name.substring(prefix.length())), new File(dir, name));
+        return segments;
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        FileChannel segmentChannel = FileChannel.open(new File(base.getPath() + "." + number).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segmentChannel.position(segmentChannel.size());
+        return segmentChannel;
+    }
+
+    /**
+     * Ends the current segment: records appended before this call go in it,
+     * and records appended after in the next.  Called with whatever locks
+     * order appends (so the cut is consistent with the caller's state), so
+     * doesn't wait for I/O, except for a previous rollover to finish.
+     * @return the number of the next segment, the first holding records
+     * appended after this call
+     */
+    public long rollover() throws IOException {
+        if (mode == JournalMode.OFF)
+            throw new IllegalStateException("not journaling");
+        lock.lock();
+        try {
+            while (rollOffset != -1 && failure == null)
+                rolled.awaitUninterruptibly();
+            if (failure != null)
+                throw new IOException("journal write failed", failure);
+            rollOffset = appendedOffset;
+            hasData.signal();
+            return segment + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments numbered less than the given number, after a
+     * snapshot has made them redundant.
+     */
+    public void deleteSegmentsBefore(long number) throws IOException {
+        if (mode == JournalMode.OFF)
+            return;
+        for (File file : segments().headMap(number).values())
+            if (!file.delete())
+                throw new IOException("couldn't delete "+file);
+    }
+
+    /**
+     * Appends a record.  Never blocks on I/O, so may be called with locks
+     * held; records are written in the order appended.
+     * @param record the record
+     * @return a ticket for {@link #awaitDurable(long)}
+     */
+    public long append(BinaryEncoder record) {
+        if (mode == JournalMode.OFF)
+            return 0;
+        //Copied straight from the encoder into the pending buffer.
+        ByteBuffer frame = record.toFrameBuffer();
+        int length = frame.remaining();
+        lock.lock();
+        try {
+            if (pending.remaining() < length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + length));
+                pending.flip();
+                bigger.put(pending);
+                pending = bigger;
+            }
+            pending.put(frame);
+            appendedOffset += length;
+            ++records;
+            hasData.signal();
+            return appendedOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public interface DurabilityListener {
+        /**
+         * Called once the records appended before this listener was added
+         * are durable.
+         */
+        public void durable();
+        /**
+         * Called instead of {@link #durable()} if writing the journal failed.
+         */
+        public void failed(IOException ex);
+    }
+
+    /**
+     * Calls the listener once everything appended so far is durable, without
+     * blocking the caller.  In GROUP_COMMIT mode, the listener is called by
+     * the writer thread, in the order listeners were added, so it shouldn't
+     * block; in other modes it's called immediately.
+     */
+    public void whenDurable(DurabilityListener listener) {
+        if (mode != JournalMode.GROUP_COMMIT) {
+            listener.durable();
+            return;
+        }
+        boolean durable;
+        lock.lock();
+        try {
+            if (failure == null && !closed) {
+                listeners.add(listener);
+                listenerOffsets.add(appendedOffset);
+                hasData.signal();
+                return;
+            }
+            //The writer has stopped, or will once it has written everything.
+            durable = failure == null && durableOffset == appendedOffset;
+        } finally {
+            lock.unlock();
+        }
+        if (durable)
+            listener.durable();
+        else
+            listener.failed(new IOException("journal closed or failed", failure));
+    }
+
+    /**
+     * Waits until the record with the given ticket is durable: forced to disk
+     * in GROUP_COMMIT mode.  Returns immediately in other modes.
+     * @throws IOException if writing the journal failed
+     */
+    public void awaitDurable(long ticket) throws IOException {
+        if (mode != JournalMode.GROUP_COMMIT)
+            return;
+        lock.lock();
+        try {
+            while (durableOffset < ticket && failure == null)
+                written.await();
+            if (failure != null)
+                throw new IOException("journal write failed", failure);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long batchEnd, roll;
+            lock.lock();
+            try {
+                while (pending.position() == 0 && rollOffset == -1 && listeners.isEmpty() && !closed)
+                    hasData.awaitUninterruptibly();
+                if (pending.position() == 0 && rollOffset == -1 && listeners.isEmpty())
+                    return; //closed, and everything's written
+                batch = pending;
+                pending = spare;
+                batchEnd = appendedOffset;
+                roll = rollOffset;
+            } finally {
+                lock.unlock();
+            }
+
+            //A batch may be empty if we were only woken to call listeners.
+            boolean empty = batch.position() == 0;
+            IOException error = null;
+            try {
+                batch.flip();
+                if (roll != -1) {
+                    //The batch holds the end of this segment and the start of
+                    //the next.
+                    int limit = batch.limit();
+                    batch.limit((int)(roll - writtenOffset));
+                    while (batch.hasRemaining())
+                        channel.write(batch);
+                    batch.limit(limit);
+                    channel.force(false);
+                    channel.close();
+                    channel = openSegment(segment + 1);
+                }
+                while (batch.hasRemaining())
+                    channel.write(batch);
+                if (mode == JournalMode.GROUP_COMMIT && !empty)
+                    channel.force(false);
+                writtenOffset = batchEnd;
+            } catch (IOException ex) {
+                error = ex;
+            }
+            batch.clear();
+
+            List<DurabilityListener> notify = new ArrayList<DurabilityListener>();
+            lock.lock();
+            try {
+                spare = batch;
+                if (error != null) {
+                    failure = error;
+                    error.printStackTrace();
+                } else {
+                    durableOffset = batchEnd;
+                    if (!empty)
+                        ++commits;
+                    if (roll != -1) {
+                        ++segment;
+                        rollOffset = -1;
+                    }
+                }
+                //On failure, every listener fails.
+                while (!listeners.isEmpty() && (error != null || listenerOffsets.peek() <= durableOffset)) {
+                    notify.add(listeners.remove());
+                    listenerOffsets.remove();
+                }
+                written.signalAll();
+                rolled.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            //Outside the lock, as listeners may append.
+            for (DurabilityListener l : notify)
+                if (error == null)
+                    l.durable();
+                else
+                    l.failed(new IOException("journal write failed", error));
+            if (error != null)
+                return;
+        }
+    }
+
+    /**
+     * Writes and forces everything appended, then closes the segment.
+     */
+    public void close() throws IOException {
+        if (mode == JournalMode.OFF)
+            return;
+        lock.lock();
+        try {
+            closed = true;
+            hasData.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (writer != null)
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the number of records appended
+     */
+    public long getRecords() {
+        lock.lock();
+        try {
+            return records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of batches written (each forced, in GROUP_COMMIT
+     * mode)
+     */
+    public long getCommits() {
+        lock.lock();
+        try {
+            return commits;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package multiplayerquiz.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import multiplayerquiz.server.ServerState.PointReservation;
+
+/**
+ * Measures bid-and-answer throughput with each journal mode: many threads
+ * bid on random questions and answer each bid, waiting for durability as a
+ * client session would.  Also reports how many records each write (and force,
+ * with group commit) covered.
+ * <pre>JournalBenchmark questionsFile [threads] [operationsPerThread] [journalDir]</pre>
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/25/2014
+ */
+public final class JournalBenchmark {
+    private JournalBenchmark() {}
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String questionsFile = args[0];
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int operations = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        File dir = new File(args.length > 3 ? args[3] : System.getProperty("java.io.tmpdir"));
+
+        //The first run warms up.
+        for (JournalMode mode : new JournalMode[]{JournalMode.ASYNC, JournalMode.OFF, JournalMode.ASYNC, JournalMode.GROUP_COMMIT}) {
+            File file = File.createTempFile("JournalBenchmark", ".journal", dir);
+            file.deleteOnExit();
+            //Without checkpoints, everything goes in the first segment.
+            File segment = new File(file.getPath() + ".0");
+            segment.deleteOnExit();
+            Journal journal = Journal.open(file, mode);
+            ServerState state = new ServerState(questionsFile, new BoardStateUpdateThread(),
+                    TimeUnit.HOURS.toMillis(1), Integer.MAX_VALUE / 1000, journal);
+            long nanos = run(state, threads, operations);
+            state.shutdown();
+            journal.close();
+            long bidsAndAnswers = 2L * threads * operations;
+            System.out.printf("%-12s %8.0f bids+answers/s, %d records in %d writes (%.1f records/write), %d KB%n",
+                    mode, bidsAndAnswers / (nanos / 1e9), journal.getRecords(), journal.getCommits(),
+                    journal.getRecords() / (double)Math.max(journal.getCommits(), 1), segment.length() / 1024);
+            file.delete();
+            segment.delete();
+        }
+    }
+
+    private static long run(final ServerState state, int threads, final int operations) throws InterruptedException {
+        final int categories = state.getCategories().size(), questions = state.getQuestions(0).size();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> workers = new ArrayList<Thread>(threads);
+        for (int t = 0; t < threads; ++t) {
+            final Random random = new Random(t);
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        int user = state.getUserHandle(UUID.randomUUID());
+                        start.await();
+                        for (int i = 0; i < operations; ++i) {
+                            int c = random.nextInt(categories), q = random.nextInt(questions);
+                            PointReservation r = state.tryBid(user, c, q, 1);
+                            state.redeemReservation(r, random.nextInt(4));
+                        }
+                    } catch (Throwable ex) {
+                        synchronized (failures) {
+                            failures.add(ex);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : workers)
+            t.start();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : workers)
+            t.join();
+        long nanos = System.nanoTime() - begin;
+        if (!failures.isEmpty())
+            throw new AssertionError(failures.toString());
+        return nanos;
+    }
+}
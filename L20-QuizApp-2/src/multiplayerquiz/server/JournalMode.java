@@ -0,0 +1,33 @@
+package multiplayerquiz.server;
+
+/**
+ * How (and whether) ServerState changes are journaled.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/25/2014
+ */
+public enum JournalMode {
+    /**
+     * No journal; the game is lost if the server stops.
+     */
+    OFF,
+    /**
+     * Changes are written behind without waiting, and not forced to disk, so
+     * a crash may lose the last moments of the game.
+     */
+    ASYNC,
+    /**
+     * Replies wait until the change is forced to disk.  Changes arriving
+     * while one force is in progress are forced together by the next, so the
+     * cost is shared by concurrent bids.  The server's threads don't wait:
+     * the journal writer sends the replies once the force completes.
+     */
+    GROUP_COMMIT;
+
+    /**
+     * Parses a mode name (case-insensitive, dashes for underscores).
+     * @throws IllegalArgumentException if there's no mode with that name
+     */
+    public static JournalMode parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
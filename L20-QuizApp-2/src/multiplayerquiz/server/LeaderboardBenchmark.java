@@ -0,0 +1,47 @@
+package multiplayerquiz.server;
+
+import java.util.Random;
+
+/**
+ * Measures score updates and leaderboard queries with many users: fills a
+ * LeaderboardThread, then times queueing random score changes until they're
+ * all applied, and times queries.
+ * <pre>LeaderboardBenchmark [users] [changes] [queries]</pre>
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/24/2014
+ */
+public final class LeaderboardBenchmark {
+    private LeaderboardBenchmark() {}
+
+    public static void main(String[] args) throws InterruptedException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int changes = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        Random random = new Random(0);
+
+        LeaderboardThread leaderboard = new LeaderboardThread();
+        leaderboard.start();
+        long begin = System.nanoTime();
+        for (int user = 0; user < users; ++user)
+            leaderboard.scoreChanged(user, 100);
+        for (int i = 0; i < changes; ++i)
+            leaderboard.scoreChanged(random.nextInt(users), random.nextInt(41) - 20);
+        long queued = System.nanoTime();
+        while (leaderboard.getApplied() < users + changes)
+            Thread.sleep(1);
+        long applied = System.nanoTime();
+        System.out.printf("%d users, %d changes: queueing %.0f ns/change, applied all after %d ms (%.0f ns/change)%n",
+                users, changes, (queued - begin) / (double)(users + changes),
+                (applied - begin) / 1000000, (applied - begin) / (double)(users + changes));
+
+        long sink = 0;
+        begin = System.nanoTime();
+        for (int i = 0; i < queries; ++i)
+            sink += leaderboard.query(random.nextInt(200), 10).getRank();
+        long end = System.nanoTime();
+        System.out.printf("query (rank + top 10): %.0f ns/query%n", (end - begin) / (double)queries);
+        if (sink == 42)
+            System.out.println();
+        leaderboard.interrupt();
+    }
+}
@@ -0,0 +1,102 @@
+package multiplayerquiz.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LeaderboardTesting {
+
+    @Test
+    /**
+     * Ranks and top scores from the ScoreTree should match sorting all the
+     * scores, through random inserts, score changes and ties.
+     */
+    public void ScoreTreeMatchesSorting() {
+        Random random = new Random(0);
+        ScoreTree tree = new ScoreTree();
+        Map<Integer, Integer> scores = new HashMap<Integer, Integer>();
+        List<Integer> users = new ArrayList<Integer>();
+        for (int i = 0; i < 20000; ++i) {
+            if (users.isEmpty() || random.nextInt(4) == 0) {
+                int user = users.size();
+                int score = random.nextInt(50);
+                users.add(user);
+                scores.put(user, score);
+                tree.insert(user, score);
+            } else {
+                int user = users.get(random.nextInt(users.size()));
+                int old = scores.get(user), score = old + random.nextInt(21) - 10;
+                tree.remove(user, old);
+                scores.put(user, score);
+                tree.insert(user, score);
+            }
+            if (i % 1000 == 0)
+                checkAgainstSorting(tree, scores, random);
+        }
+        checkAgainstSorting(tree, scores, random);
+    }
+
+    private static void checkAgainstSorting(ScoreTree tree, Map<Integer, Integer> scores, Random random) {
+        List<Integer> sorted = new ArrayList<Integer>(scores.values());
+        Collections.sort(sorted, Collections.reverseOrder());
+        assertEquals(sorted.size(), tree.size());
+        int[] top = tree.topScores(25);
+        assertEquals(Math.min(25, sorted.size()), top.length);
+        for (int i = 0; i < top.length; ++i)
+            assertEquals((int)sorted.get(i), top[i]);
+        for (int t = 0; t < 20; ++t) {
+            int score = random.nextInt(80) - 15;
+            int above = 0;
+            for (int s : sorted)
+                if (s > score)
+                    ++above;
+            assertEquals(above, tree.countAbove(score));
+        }
+    }
+
+    @Test
+    /**
+     * Score changes queued from many threads should all be applied, in
+     * whatever order.
+     */
+    public void LeaderboardAppliesConcurrentChanges() throws InterruptedException {
+        final LeaderboardThread leaderboard = new LeaderboardThread();
+        leaderboard.start();
+        final int users = 100;
+        for (int user = 0; user < users; ++user)
+            leaderboard.scoreChanged(user, 100);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; ++t)
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    //Each user ends up net +1 per thread.
+                    for (int user = 0; user < users; ++user) {
+                        leaderboard.scoreChanged(user, -5);
+                        leaderboard.scoreChanged(user, 6);
+                    }
+                }
+            });
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        while (leaderboard.getApplied() < users * 9)
+            Thread.sleep(10);
+        leaderboard.interrupt();
+        leaderboard.join();
+
+        assertEquals(users, leaderboard.query(104, 0).getPlayers());
+        assertEquals(1, leaderboard.query(104, 0).getRank());
+        assertEquals(users + 1, leaderboard.query(103, 0).getRank());
+        assertEquals(Collections.nCopies(10, 104), leaderboard.query(104, 10).getTopScores());
+        assertEquals(LeaderboardThread.MAX_TOP_SCORES, leaderboard.query(104, 1000).getTopScores().size());
+    }
+}
@@ -0,0 +1,123 @@
+package multiplayerquiz.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import multiplayerquiz.common.protocol.Leaderboard;
+
+/**
+ * Maintains a ranking of users by score off the bid/answer path: ServerState
+ * queues each score change (never blocking), and this thread applies them in
+ * batches to a {@link ScoreTree}.  Changes are deltas, so they may be applied
+ * in any order.  Queries see the changes applied so far.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/24/2014
+ */
+final class LeaderboardThread extends Thread {
+    /**
+     * The most top scores sent in one Leaderboard.
+     */
+    static final int MAX_TOP_SCORES = 100;
+    /**
+     * The most changes applied per lock acquisition, so a backlog doesn't
+     * hold up queries.
+     */
+    private static final int MAX_BATCH = 1024;
+    private static final class ScoreChange {
+        final int user;
+        final int pointUpdate;
+        ScoreChange(int user, int pointUpdate) {
+            this.user = user;
+            this.pointUpdate = pointUpdate;
+        }
+    }
+    private final LinkedBlockingQueue<ScoreChange> queue = new LinkedBlockingQueue<ScoreChange>();
+    /**
+     * Guards tree and scores.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ScoreTree tree = new ScoreTree();
+    /**
+     * Scores by user handle, or NO_SCORE for users not yet ranked.
+     */
+    private int[] scores = new int[0];
+    private static final int NO_SCORE = Integer.MIN_VALUE;
+    private volatile long applied;
+    LeaderboardThread() {
+        super("LeaderboardThread");
+        setDaemon(true);
+    }
+
+    /**
+     * Queues a change to a user's score; a user's first change adds them.
+     * Never blocks.
+     */
+    void scoreChanged(int user, int pointUpdate) {
+        queue.add(new ScoreChange(user, pointUpdate));
+    }
+
+    @Override
+    public void run() {
+        List<ScoreChange> batch = new ArrayList<ScoreChange>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                lock.lock();
+                try {
+                    for (ScoreChange c : batch) {
+                        if (c.user >= scores.length) {
+                            int oldLength = scores.length;
+                            scores = Arrays.copyOf(scores, Math.max(scores.length * 2, c.user + 1));
+                            Arrays.fill(scores, oldLength, scores.length, NO_SCORE);
+                        }
+                        int old = scores[c.user];
+                        int score = c.pointUpdate;
+                        if (old != NO_SCORE) {
+                            tree.remove(c.user, old);
+                            score += old;
+                        }
+                        scores[c.user] = score;
+                        tree.insert(c.user, score);
+                    }
+                    applied += batch.size();
+                } finally {
+                    lock.unlock();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            //shutting down
+        }
+    }
+
+    /**
+     * Returns the standing of a user with the given score (their current
+     * score, which the ranking may not have caught up with yet).
+     * @param score the user's score
+     * @param topCount the number of top scores wanted, 0 <= topCount; at most
+     * MAX_TOP_SCORES are returned
+     */
+    Leaderboard query(int score, int topCount) {
+        lock.lock();
+        try {
+            int[] top = tree.topScores(Math.min(topCount, MAX_TOP_SCORES));
+            List<Integer> topScores = new ArrayList<Integer>(top.length);
+            for (int s : top)
+                topScores.add(s);
+            return new Leaderboard(tree.countAbove(score) + 1, score, tree.size(), topScores);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of score changes applied so far
+     */
+    long getApplied() {
+        return applied;
+    }
+}
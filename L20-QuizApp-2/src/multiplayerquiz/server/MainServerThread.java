@@ -1,35 +1,137 @@
 package multiplayerquiz.server;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 
 /**
- * The main server thread, which spawns new threads for incoming connections.
+ * The main server thread, which spawns new threads for incoming connections
+ * or, in {@link ServerMode#NIO} mode, hands them to a {@link NioServer}.
  * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
  * @since 3/30/2014
  */
 public final class MainServerThread extends Thread {
     public static final int SERVER_PORT = 4444;
+    /**
+     * The I/O thread pool size in NIO mode.  The I/O threads don't block, so
+     * there's no point having more of them than cores.
+     */
+    private static final int NIO_IO_THREADS = Runtime.getRuntime().availableProcessors();
+    /**
+     * The maximum board broadcasts per second (0 for no limit); updates in
+     * between are coalesced.  Override with -Dmultiplayerquiz.maxBroadcastsPerSecond.
+     */
+    private static final int MAX_BROADCASTS_PER_SECOND = Integer.getInteger("multiplayerquiz.maxBroadcastsPerSecond", 20);
+    /**
+     * Seconds between stats reports (0 for none).  Override with
+     * -Dmultiplayerquiz.statsIntervalSeconds.
+     */
+    private static final int STATS_INTERVAL_SECONDS = Integer.getInteger("multiplayerquiz.statsIntervalSeconds", 10);
+    /**
+     * Whether and how to journal the game so a restarted server picks up where
+     * it left off (see JournalMode), and where.  Override with
+     * -Dmultiplayerquiz.journal=off|async|group-commit and
+     * -Dmultiplayerquiz.journalFile.
+     */
+    private static final JournalMode JOURNAL_MODE = JournalMode.parse(
+            System.getProperty("multiplayerquiz.journal", JournalMode.OFF.name()));
+    private static final String JOURNAL_FILE = System.getProperty("multiplayerquiz.journalFile", "quiz.journal");
+    /**
+     * Seconds between snapshots of the journaled state (0 for none).  Override
+     * with -Dmultiplayerquiz.snapshotIntervalSeconds.
+     */
+    private static final int SNAPSHOT_INTERVAL_SECONDS = Integer.getInteger("multiplayerquiz.snapshotIntervalSeconds", 300);
+    private final Journal journal;
     private final ServerState state;
-    private final BoardStateUpdateThread updateThread = new BoardStateUpdateThread();
+    private final BoardStateUpdateThread updateThread = new BoardStateUpdateThread(MAX_BROADCASTS_PER_SECOND);
+    private final ServerMode mode;
+    private final int port;
     public MainServerThread(String questionsFile) throws IOException {
+        this(questionsFile, ServerMode.THREADS);
+    }
+    public MainServerThread(String questionsFile, ServerMode mode) throws IOException {
+        this(questionsFile, mode, SERVER_PORT);
+    }
+    public MainServerThread(String questionsFile, ServerMode mode, int port) throws IOException {
         super("MainServerThread");
-        state = new ServerState(questionsFile, updateThread);
+        this.journal = Journal.open(new File(JOURNAL_FILE), JOURNAL_MODE);
+        this.state = new ServerState(questionsFile, updateThread, journal);
+        //Sessions reply once their changes are durable, rather than blocking
+        //their thread (an I/O thread, in NIO mode) until then.
+        state.setAwaitDurable(false);
+        this.mode = mode;
+        this.port = port;
     }
 
     @Override
     public void run() {
         updateThread.start();
+        if (STATS_INTERVAL_SECONDS > 0)
+            new StatsReporter(state, updateThread, TimeUnit.SECONDS.toMillis(STATS_INTERVAL_SECONDS)).start();
+        if (JOURNAL_MODE != JournalMode.OFF && SNAPSHOT_INTERVAL_SECONDS > 0)
+            new SnapshotThread(state, journal, TimeUnit.SECONDS.toMillis(SNAPSHOT_INTERVAL_SECONDS)).start();
         try {
-            ServerSocket serverSocket = new ServerSocket(SERVER_PORT);
+            if (mode == ServerMode.NIO) {
+                new NioServer(state, updateThread, NIO_IO_THREADS).serve(port);
+                return;
+            }
+            //Client writer threads are of the same kind as the client threads.
+            ThreadFactory threadFactory = mode == ServerMode.VIRTUAL_THREADS ?
+                    virtualThreadFactory() : platformThreadFactory();
+            ServerSocket serverSocket = new ServerSocket(port);
             while (true) {
                 Socket socket = serverSocket.accept();
-                new ClientThread(socket, state, updateThread).start();
+                //Each queued message is written separately; don't let Nagle
+                //hold one back waiting for the ack of the last.
+                socket.setTcpNoDelay(true);
+                ClientThread client = new ClientThread(socket, state, updateThread, threadFactory);
+                if (mode == ServerMode.VIRTUAL_THREADS)
+                    threadFactory.newThread(client).start();
+                else
+                    client.start();
             }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
+
+    /**
+     * Returns a ThreadFactory creating daemon platform threads.
+     */
+    private static ThreadFactory platformThreadFactory() {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Returns a ThreadFactory creating virtual threads.  We use reflection so
+     * the rest of the server still builds and runs on JVMs without them.
+     * @return a virtual thread factory
+     * @throws UnsupportedOperationException if this JVM has no virtual threads
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (NoSuchMethodException ex) {
+            throw new UnsupportedOperationException("virtual threads require Java 21 or later", ex);
+        } catch (ClassNotFoundException ex) {
+            throw new UnsupportedOperationException("virtual threads require Java 21 or later", ex);
+        } catch (IllegalAccessException ex) {
+            throw new UnsupportedOperationException(ex);
+        } catch (InvocationTargetException ex) {
+            throw new UnsupportedOperationException(ex.getCause());
+        }
+    }
 }
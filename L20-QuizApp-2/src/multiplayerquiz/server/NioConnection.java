@@ -0,0 +1,215 @@
+package multiplayerquiz.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import multiplayerquiz.common.protocol.BinaryDecoder;
+import multiplayerquiz.common.protocol.Protocol;
+import multiplayerquiz.common.protocol.ProtocolException;
+import multiplayerquiz.common.protocol.ProtocolMessage;
+import multiplayerquiz.common.protocol.WireFormat;
+
+/**
+ * A client connection serviced by a {@link NioServer.IoThread}.  Reads are
+ * performed only by the owning I/O thread; writes may come from any thread and
+ * are queued in an {@link OutboundQueue} until the channel is writable.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/14/2014
+ */
+final class NioConnection implements ClientConnection {
+    private static final int INITIAL_READ_BUFFER_SIZE = 4096;
+    private final SocketChannel channel;
+    private final NioServer.IoThread ioThread;
+    private final ClientSession session;
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    private final OutboundQueue outbound = new OutboundQueue();
+    private volatile WireFormat format = WireFormat.TEXT;
+    private volatile boolean closed;
+    NioConnection(SocketChannel channel, NioServer.IoThread ioThread, ServerState state, BoardStateUpdateThread updateThread) {
+        this.channel = channel;
+        this.ioThread = ioThread;
+        this.session = new ClientSession(state, updateThread, this);
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public WireFormat getWireFormat() {
+        return format;
+    }
+
+    @Override
+    public void setWireFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    @Override
+    public void write(ByteBuffer message) throws IOException {
+        //Our own position, as the buffer may be shared with other connections.
+        if (outbound.add(message.duplicate()))
+            requestWrite();
+    }
+
+    @Override
+    public void broadcast(ByteBuffer message) throws IOException {
+        try {
+            if (outbound.addBroadcast(message.duplicate()))
+                requestWrite();
+        } catch (IOException ex) {
+            //If we were disconnected as a slow consumer, close on our I/O thread.
+            ioThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+            throw ex;
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Sets OP_WRITE after a message is queued on an empty queue.  (If the queue
+     * was nonempty, OP_WRITE is already (being) set.)
+     */
+    private void requestWrite() {
+        if (Thread.currentThread() == ioThread)
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        else
+            ioThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (key.isValid())
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+    }
+
+    /**
+     * Called on the I/O thread when the channel is readable.
+     */
+    void onReadable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            processMessages();
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining())
+                growReadBuffer();
+        } catch (IOException ex) {
+            close();
+        } catch (ProtocolException ex) {
+            close();
+        } catch (RuntimeException ex) {
+            //e.g. a malformed number; the blocking mode's thread would die
+            ex.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Handles every complete message between the buffer's position and limit,
+     * leaving the position at the start of any partial message.  The format
+     * may change between messages (after the ClientHello).
+     */
+    private void processMessages() throws IOException {
+        while (!closed) {
+            ProtocolMessage message = format == WireFormat.TEXT ? nextLine() : nextFrame();
+            if (message == null)
+                return;
+            session.handle(message);
+        }
+    }
+
+    private ProtocolMessage nextLine() {
+        byte[] array = readBuffer.array();
+        int start = readBuffer.position();
+        for (int i = start; i < readBuffer.limit(); ++i)
+            if (array[i] == '\n') {
+                int end = i;
+                if (end > start && array[end-1] == '\r')
+                    --end;
+                readBuffer.position(i + 1);
+                return Protocol.deserialize(array, start, end - start);
+            }
+        return null;
+    }
+
+    private ProtocolMessage nextFrame() throws IOException {
+        byte[] array = readBuffer.array();
+        BinaryDecoder header = new BinaryDecoder(array, readBuffer.position(), readBuffer.remaining());
+        int length = header.tryReadVarint();
+        if (length == -1)
+            return null;
+        if (length > Protocol.MAX_MESSAGE_LENGTH)
+            throw new ProtocolException("frame too long: "+length);
+        int bodyStart = header.position();
+        if (readBuffer.limit() - bodyStart < length)
+            return null;
+        readBuffer.position(bodyStart + length);
+        return Protocol.deserializeFrame(array, bodyStart, length);
+    }
+
+    private void growReadBuffer() throws IOException {
+        if (readBuffer.capacity() >= Protocol.MAX_MESSAGE_LENGTH + 5)
+            throw new ProtocolException("message too long");
+        ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+        readBuffer.flip();
+        bigger.put(readBuffer);
+        readBuffer = bigger;
+    }
+
+    /**
+     * Called on the I/O thread when the channel is writable.  Uses a gathering
+     * write to flush as much of the queue as the socket will take.
+     */
+    void onWritable() {
+        try {
+            channel.write(outbound.peekAll());
+            if (outbound.removeWritten())
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException ex) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the channel and cleans up the session.  Idempotent.
+     */
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        session.close();
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            //nothing to do
+        }
+        outbound.close();
+    }
+}
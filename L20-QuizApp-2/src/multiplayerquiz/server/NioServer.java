@@ -0,0 +1,124 @@
+package multiplayerquiz.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A non-blocking server: the calling thread accepts connections on a
+ * ServerSocketChannel and hands them round-robin to a small fixed pool of I/O
+ * threads, each multiplexing its connections with its own Selector.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/14/2014
+ */
+public final class NioServer {
+    private final ServerState state;
+    private final BoardStateUpdateThread updateThread;
+    private final IoThread[] ioThreads;
+    public NioServer(ServerState state, BoardStateUpdateThread updateThread, int numIoThreads) throws IOException {
+        this.state = state;
+        this.updateThread = updateThread;
+        this.ioThreads = new IoThread[numIoThreads];
+        for (int i = 0; i < ioThreads.length; ++i)
+            ioThreads[i] = new IoThread(i);
+    }
+
+    /**
+     * Accepts connections on the given port forever (or until the server
+     * channel fails).
+     * @param port the port to listen on
+     * @throws IOException if the server channel fails
+     */
+    public void serve(int port) throws IOException {
+        for (IoThread t : ioThreads)
+            t.start();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                IoThread t = ioThreads[next];
+                next = (next + 1) % ioThreads.length;
+                t.register(new NioConnection(channel, t, state, updateThread));
+            }
+        } finally {
+            serverChannel.close();
+        }
+    }
+
+    /**
+     * Services the connections registered with one Selector.  Other threads
+     * communicate with an IoThread only by queueing tasks and waking it up.
+     */
+    static final class IoThread extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        IoThread(int index) throws IOException {
+            super("NioServer-IoThread-"+index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Registers a new connection for reading.  Callable from any thread.
+         */
+        void register(final NioConnection connection) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connection.setKey(connection.channel().register(selector, SelectionKey.OP_READ, connection));
+                    } catch (IOException ex) {
+                        connection.close();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Runs the given task on this thread before its next select.  Callable
+         * from any thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+                    for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                        SelectionKey key = i.next();
+                        i.remove();
+                        NioConnection connection = (NioConnection)key.attachment();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isReadable())
+                            connection.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            connection.onWritable();
+                    }
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            } catch (ClosedSelectorException ex) {
+                //shutting down
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package multiplayerquiz.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection's queue of encoded messages waiting to be written, so writers
+ * (the client's own session and the broadcaster) never wait for the socket.
+ * The queue is drained independently for each connection: by a writer thread
+ * in the blocking modes or by the selector in NIO mode.
+ *
+ * Replies are always queued.  Board broadcasts are bounded: once capacity
+ * broadcasts are waiting, the {@link SlowConsumerPolicy} decides what happens.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/20/2014
+ */
+final class OutboundQueue {
+    /**
+     * Defaults, overridable with -Dmultiplayerquiz.slowConsumerPolicy,
+     * -Dmultiplayerquiz.outboundQueueCapacity and
+     * -Dmultiplayerquiz.slowConsumerDisconnectSeconds.
+     */
+    private static final SlowConsumerPolicy DEFAULT_POLICY = SlowConsumerPolicy.parse(
+            System.getProperty("multiplayerquiz.slowConsumerPolicy", SlowConsumerPolicy.DROP_BOARD_STATES.name()));
+    private static final int DEFAULT_CAPACITY = Integer.getInteger("multiplayerquiz.outboundQueueCapacity", 16);
+    private static final long DEFAULT_DISCONNECT_NANOS = TimeUnit.SECONDS.toNanos(
+            Integer.getInteger("multiplayerquiz.slowConsumerDisconnectSeconds", 30));
+    //Counters across all connections, one per policy.
+    private static final AtomicLong BROADCASTS_DROPPED = new AtomicLong();
+    private static final AtomicLong SLOW_CONSUMERS_DISCONNECTED = new AtomicLong();
+    private static final AtomicLong BACKPRESSURE_WAITS = new AtomicLong();
+    private static final AtomicLong BACKPRESSURE_WAIT_NANOS = new AtomicLong();
+
+    private static final class Entry {
+        final ByteBuffer buffer;
+        final boolean broadcast;
+        /**
+         * Set (under the queue lock) once the buffer has been handed to the
+         * channel by peekAll().  The write happens outside the lock, so the
+         * buffer's position can't tell us whether it's being written; an
+         * in-flight entry may be partly written and must never be dropped.
+         */
+        boolean inFlight;
+        Entry(ByteBuffer buffer, boolean broadcast) {
+            this.buffer = buffer;
+            this.broadcast = broadcast;
+        }
+    }
+
+    private final SlowConsumerPolicy policy;
+    private final int capacity;
+    private final long disconnectNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition();
+    //the rest are guarded by lock
+    private final Deque<Entry> entries = new ArrayDeque<Entry>();
+    private int broadcasts;
+    /**
+     * Whether the broadcast bound has been reached and the drainer hasn't
+     * since made room (dropping to make room doesn't count), and if so,
+     * System.nanoTime() when it was reached.
+     */
+    private boolean full;
+    private long fullSince;
+    private boolean closed;
+
+    OutboundQueue() {
+        this(DEFAULT_POLICY, DEFAULT_CAPACITY, DEFAULT_DISCONNECT_NANOS);
+    }
+    OutboundQueue(SlowConsumerPolicy policy, int capacity, long disconnectNanos) {
+        this.policy = policy;
+        this.capacity = capacity;
+        this.disconnectNanos = disconnectNanos;
+    }
+
+    /**
+     * Queues a reply.
+     * @return true if the queue was empty (so the drainer may need waking)
+     * @throws IOException if the queue is closed
+     */
+    boolean add(ByteBuffer message) throws IOException {
+        lock.lock();
+        try {
+            return enqueue(new Entry(message, false));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a board broadcast, applying the slow-consumer policy if the
+     * bound has been reached.
+     * @return true if the queue was empty (so the drainer may need waking)
+     * @throws IOException if the queue is closed, or the client should be
+     * disconnected
+     */
+    boolean addBroadcast(ByteBuffer message) throws IOException {
+        lock.lock();
+        try {
+            if (broadcasts >= capacity) {
+                if (policy == SlowConsumerPolicy.BACKPRESSURE)
+                    awaitRoom();
+                else if (policy == SlowConsumerPolicy.DISCONNECT && full
+                        && System.nanoTime() - fullSince > disconnectNanos) {
+                    SLOW_CONSUMERS_DISCONNECTED.incrementAndGet();
+                    close();
+                    throw new IOException("slow consumer disconnected");
+                } else
+                    dropOldestBroadcast();
+            }
+            boolean wasEmpty = enqueue(new Entry(message, true));
+            if (++broadcasts >= capacity && !full) {
+                full = true;
+                fullSince = System.nanoTime();
+            }
+            return wasEmpty;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean enqueue(Entry entry) throws IOException {
+        if (closed)
+            throw new IOException("connection closed");
+        boolean wasEmpty = entries.isEmpty();
+        entries.addLast(entry);
+        notEmpty.signal();
+        return wasEmpty;
+    }
+
+    private void awaitRoom() throws IOException {
+        BACKPRESSURE_WAITS.incrementAndGet();
+        long begin = System.nanoTime();
+        try {
+            while (broadcasts >= capacity && !closed)
+                notFull.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            BACKPRESSURE_WAIT_NANOS.addAndGet(System.nanoTime() - begin);
+        }
+    }
+
+    private void dropOldestBroadcast() {
+        for (Iterator<Entry> i = entries.iterator(); i.hasNext();) {
+            Entry e = i.next();
+            if (e.broadcast && !e.inFlight) {
+                i.remove();
+                --broadcasts;
+                BROADCASTS_DROPPED.incrementAndGet();
+                return;
+            }
+        }
+        //All queued broadcasts are being written; go over the bound.
+    }
+
+    /**
+     * Removes and returns the next message, waiting if necessary.  For the
+     * blocking modes' writer threads.
+     * @return the next message, or null if the queue was closed
+     */
+    ByteBuffer take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (entries.isEmpty() && !closed)
+                notEmpty.await();
+            if (closed)
+                return null;
+            Entry e = entries.removeFirst();
+            if (e.broadcast)
+                removedBroadcast();
+            return e.buffer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the queued messages without removing them, for a gathering
+     * write; call {@link #removeWritten()} afterwards.  The messages are
+     * marked in flight, so they won't be dropped.  For NIO connections.
+     */
+    ByteBuffer[] peekAll() {
+        lock.lock();
+        try {
+            ByteBuffer[] buffers = new ByteBuffer[entries.size()];
+            int i = 0;
+            for (Entry e : entries) {
+                e.inFlight = true;
+                buffers[i++] = e.buffer;
+            }
+            return buffers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes fully-written messages from the head of the queue.
+     * @return true if the queue is now empty
+     */
+    boolean removeWritten() {
+        lock.lock();
+        try {
+            while (!entries.isEmpty() && !entries.peekFirst().buffer.hasRemaining())
+                if (entries.removeFirst().broadcast)
+                    removedBroadcast();
+            return entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removedBroadcast() {
+        --broadcasts;
+        full = false;
+        notFull.signal();
+    }
+
+    /**
+     * Discards queued messages and wakes any waiting threads; further adds
+     * fail.  Idempotent.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            entries.clear();
+            broadcasts = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return broadcasts dropped under DROP_BOARD_STATES (or DISCONNECT, before
+     * the deadline), across all connections
+     */
+    static long getBroadcastsDropped() {
+        return BROADCASTS_DROPPED.get();
+    }
+
+    /**
+     * @return connections closed under DISCONNECT
+     */
+    static long getSlowConsumersDisconnected() {
+        return SLOW_CONSUMERS_DISCONNECTED.get();
+    }
+
+    /**
+     * @return times the broadcaster waited under BACKPRESSURE
+     */
+    static long getBackpressureWaits() {
+        return BACKPRESSURE_WAITS.get();
+    }
+
+    /**
+     * @return total time the broadcaster spent in completed waits under
+     * BACKPRESSURE
+     */
+    static long getBackpressureWaitNanos() {
+        return BACKPRESSURE_WAIT_NANOS.get();
+    }
+}
@@ -0,0 +1,419 @@
+package multiplayerquiz.server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import multiplayerquiz.common.model.Question;
+import multiplayerquiz.common.protocol.BinaryDecoder;
+import multiplayerquiz.common.protocol.BinaryEncoder;
+import multiplayerquiz.common.protocol.ProtocolException;
+
+/**
+ * The categories, questions and right answers a game is played with, loaded
+ * from either a questions file or a bank compiled from one by
+ * {@link QuestionBankCompiler}.
+ *
+ * A questions file is one line with the number of categories and questions
+ * per category, then one line per category name, then for each category in
+ * turn, each of its questions: a line with the number of lines of question
+ * text, the number of choices and the (0-based) index of the right choice,
+ * then the question text, then the choices, one per line.  It's parsed in
+ * one pass, line by line, so loading time is linear in the file's size.
+ * Malformed files are reported with the offending line's number.
+ *
+ * A compiled bank is memory-mapped rather than read, and questions are
+ * decoded from it as they're asked for, so loading takes time and heap
+ * proportional to the number of categories, not the size of the bank.  It
+ * holds the magic number and version, then each question as a frame (its
+ * binary protocol encoding followed by its escaped protocol string), then an
+ * index: the number of categories and questions per category, a frame of
+ * category names, the answer key and the offsets of the question frames
+ * (ints, in category-major order), and finally the offset of the index as
+ * the file's last 8 bytes.  Compiled banks are limited to 2GB, the most one
+ * MappedByteBuffer can map.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/29/2014
+ */
+abstract class QuestionBank {
+    private static final int MAGIC = 0x51424e4b, VERSION = 1; //"QBNK"
+    private final List<String> categories;
+    private final int questionsPerCategory;
+    private QuestionBank(List<String> categories, int questionsPerCategory) {
+        this.categories = categories;
+        this.questionsPerCategory = questionsPerCategory;
+    }
+
+    /**
+     * Loads a questions file or compiled bank, telling them apart by the
+     * compiled bank's magic number.
+     * @throws IOException if reading fails or the file is malformed
+     */
+    public static QuestionBank load(String questionsFile) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(questionsFile));
+        int magic;
+        try {
+            magic = in.readInt();
+        } catch (IOException ex) {
+            magic = 0; //too short to be compiled, so let the parser complain
+        } finally {
+            in.close();
+        }
+        if (magic == MAGIC)
+            return map(new File(questionsFile));
+
+        Reader reader = new InputStreamReader(new FileInputStream(questionsFile), StandardCharsets.UTF_8);
+        try {
+            return parse(reader, questionsFile);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses a questions file from the given reader, which is not closed.
+     * @param name the file name to report errors against
+     * @throws IOException if reading fails or the file is malformed
+     */
+    public static QuestionBank parse(Reader reader, String name) throws IOException {
+        return new Parser(reader, name).parse();
+    }
+
+    public final List<String> getCategories() {
+        return categories;
+    }
+
+    public final int getQuestionsPerCategory() {
+        return questionsPerCategory;
+    }
+
+    public abstract List<Question> getQuestions(int category);
+
+    public abstract int getAnswer(int category, int question);
+
+    /**
+     * Writes this bank to the given file in the compiled format.
+     */
+    public void compile(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            long position = 8;
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            int[] offsets = new int[categories.size() * questionsPerCategory];
+            for (int c = 0; c < categories.size(); ++c)
+                for (int q = 0; q < questionsPerCategory; ++q) {
+                    Question question = getQuestions(c).get(q);
+                    BinaryEncoder record = new BinaryEncoder(256);
+                    question.encode(record);
+                    record.writeString(question.toProtocolString());
+                    byte[] frame = record.toFrame();
+                    if (position + frame.length > Integer.MAX_VALUE)
+                        throw new IOException(file+": compiled bank would exceed 2GB");
+                    offsets[c * questionsPerCategory + q] = (int)position;
+                    out.write(frame);
+                    position += frame.length;
+                }
+
+            out.writeInt(categories.size());
+            out.writeInt(questionsPerCategory);
+            BinaryEncoder names = new BinaryEncoder();
+            for (String category : categories)
+                names.writeString(category);
+            out.write(names.toFrame());
+            for (int c = 0; c < categories.size(); ++c)
+                for (int q = 0; q < questionsPerCategory; ++q)
+                    out.writeInt(getAnswer(c, q));
+            for (int offset : offsets)
+                out.writeInt(offset);
+            out.writeLong(position);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static QuestionBank map(File file) throws IOException {
+        MappedByteBuffer map;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file+": compiled bank larger than 2GB");
+            //The mapping remains valid after the channel is closed.
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+        try {
+            return new MappedQuestionBank(map);
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IOException(file+": truncated compiled bank", ex);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException(file+": malformed compiled bank: "+ex.getMessage(), ex);
+        } catch (ProtocolException ex) {
+            throw new IOException(file+": malformed compiled bank: "+ex.getMessage(), ex);
+        }
+    }
+
+    private static final class ParsedQuestionBank extends QuestionBank {
+        private final List<List<Question>> questions;
+        private final int[][] answerKey;
+        ParsedQuestionBank(List<String> categories, List<List<Question>> questions, int[][] answerKey) {
+            super(categories, answerKey[0].length);
+            this.questions = questions;
+            this.answerKey = answerKey;
+        }
+        @Override
+        public List<Question> getQuestions(int category) {
+            return questions.get(category);
+        }
+        @Override
+        public int getAnswer(int category, int question) {
+            return answerKey[category][question];
+        }
+    }
+
+    /**
+     * A compiled bank.  The buffer is only read with absolute gets or through
+     * duplicates, so it can be shared between threads.
+     */
+    private static final class MappedQuestionBank extends QuestionBank {
+        private final ByteBuffer map;
+        private final int answersOffset, offsetsOffset;
+        private final List<List<Question>> questions;
+        MappedQuestionBank(ByteBuffer map) {
+            this(map, readCategories(map), map.getInt(indexOffset(map) + 4));
+        }
+        private MappedQuestionBank(ByteBuffer map, List<String> categories, int questionsPerCategory) {
+            super(categories, questionsPerCategory);
+            this.map = map;
+            int index = indexOffset(map);
+            this.answersOffset = index + 8 + frameLength(map, index + 8);
+            long count = (long)categories.size() * questionsPerCategory;
+            if (questionsPerCategory < 1 || answersOffset + 8 * count != map.limit() - 8)
+                throw new IllegalArgumentException("index size mismatch");
+            this.offsetsOffset = answersOffset + 4 * (int)count;
+            for (int i = 0; i < count; ++i) {
+                int offset = map.getInt(offsetsOffset + 4 * i);
+                if (offset < 8 || offset >= index || map.getInt(answersOffset + 4 * i) < 0)
+                    throw new IllegalArgumentException("bad index entry "+i);
+            }
+            List<List<Question>> questions = new ArrayList<List<Question>>(categories.size());
+            for (int c = 0; c < categories.size(); ++c)
+                questions.add(new CategoryList(c));
+            this.questions = Collections.unmodifiableList(questions);
+        }
+
+        @Override
+        public List<Question> getQuestions(int category) {
+            return questions.get(category);
+        }
+
+        @Override
+        public int getAnswer(int category, int question) {
+            checkIndex(question);
+            return map.getInt(answersOffset + 4 * (category * getQuestionsPerCategory() + question));
+        }
+
+        private Question decode(int category, int question) {
+            checkIndex(question);
+            int offset = map.getInt(offsetsOffset + 4 * (category * getQuestionsPerCategory() + question));
+            BinaryDecoder in = frameAt(map, offset);
+            Question decoded = Question.decode(in);
+            return new Question(decoded.getQuestion(), decoded.getChoices(), in.readString());
+        }
+
+        private void checkIndex(int question) {
+            if (question < 0 || question >= getQuestionsPerCategory())
+                throw new IndexOutOfBoundsException(String.valueOf(question));
+        }
+
+        /**
+         * A category's questions, decoded each time they're asked for.
+         */
+        private final class CategoryList extends AbstractList<Question> {
+            private final int category;
+            CategoryList(int category) {
+                this.category = category;
+            }
+            @Override
+            public Question get(int index) {
+                return decode(category, index);
+            }
+            @Override
+            public int size() {
+                return getQuestionsPerCategory();
+            }
+        }
+
+        private static List<String> readCategories(ByteBuffer map) {
+            if (map.limit() < 16 || map.getInt(0) != MAGIC)
+                throw new IllegalArgumentException("bad magic number");
+            if (map.getInt(4) != VERSION)
+                throw new IllegalArgumentException("unsupported version "+map.getInt(4));
+            int index = indexOffset(map);
+            int count = map.getInt(index);
+            if (count < 1 || count > map.limit())
+                throw new IllegalArgumentException("bad category count "+count);
+            BinaryDecoder in = frameAt(map, index + 8);
+            List<String> categories = new ArrayList<String>(count);
+            for (int c = 0; c < count; ++c)
+                categories.add(in.readString());
+            return Collections.unmodifiableList(categories);
+        }
+
+        private static int indexOffset(ByteBuffer map) {
+            long index = map.getLong(map.limit() - 8);
+            if (index < 8 || index > map.limit() - 16)
+                throw new IllegalArgumentException("bad index offset "+index);
+            return (int)index;
+        }
+
+        /**
+         * Returns a decoder over the payload of the frame at the given
+         * offset.
+         */
+        private static BinaryDecoder frameAt(ByteBuffer map, int offset) {
+            int length = frameLength(map, offset);
+            byte[] frame = new byte[length];
+            ByteBuffer view = map.duplicate();
+            view.position(offset);
+            view.get(frame);
+            BinaryDecoder in = new BinaryDecoder(frame, 0, length);
+            in.readVarint();
+            return in;
+        }
+
+        /**
+         * Returns the length of the frame at the given offset, including its
+         * length prefix.
+         */
+        private static int frameLength(ByteBuffer map, int offset) {
+            byte[] header = new byte[5];
+            int available = Math.min(header.length, map.limit() - offset);
+            for (int i = 0; i < available; ++i)
+                header[i] = map.get(offset + i);
+            BinaryDecoder in = new BinaryDecoder(header, 0, available);
+            int length = in.tryReadVarint();
+            if (length == -1 || length > map.limit() - offset - in.position())
+                throw new ProtocolException("truncated frame");
+            return in.position() + length;
+        }
+    }
+
+    private static final class Parser {
+        private final BufferedReader reader;
+        private final String name;
+        private int lineNumber = 0;
+        Parser(Reader reader, String name) {
+            this.reader = new BufferedReader(reader, 1 << 16);
+            this.name = name;
+        }
+
+        QuestionBank parse() throws IOException {
+            int[] header = readInts(2, "number of categories and questions per category");
+            int numCategories = header[0], questionsPerCategory = header[1];
+            if (numCategories < 1 || questionsPerCategory < 1)
+                throw error("need at least one category and one question per category");
+
+            List<String> categories = new ArrayList<String>(numCategories);
+            for (int c = 0; c < numCategories; ++c)
+                categories.add(readLine("category name"));
+
+            List<List<Question>> questions = new ArrayList<List<Question>>(numCategories);
+            int[][] answerKey = new int[numCategories][questionsPerCategory];
+            StringBuilder text = new StringBuilder();
+            for (int c = 0; c < numCategories; ++c) {
+                List<Question> list = new ArrayList<Question>(questionsPerCategory);
+                for (int q = 0; q < questionsPerCategory; ++q) {
+                    int[] counts = readInts(3, "question line count, choice count and right answer");
+                    int questionLines = counts[0], numAnswers = counts[1], rightAnswer = counts[2];
+                    if (questionLines < 1)
+                        throw error("question needs at least one line of text");
+                    if (numAnswers < 1)
+                        throw error("question needs at least one choice");
+                    if (rightAnswer < 0 || rightAnswer >= numAnswers)
+                        throw error("right answer "+rightAnswer+" is not one of the "+numAnswers+" choices");
+
+                    text.setLength(0);
+                    for (int i = 0; i < questionLines; ++i)
+                        text.append(readLine("question text")).append('\n');
+                    List<String> choices = new ArrayList<String>(numAnswers);
+                    for (int i = 0; i < numAnswers; ++i)
+                        choices.add(readLine("choice"));
+                    list.add(new Question(text.toString(), choices));
+                    answerKey[c][q] = rightAnswer;
+                }
+                questions.add(Collections.unmodifiableList(list));
+            }
+
+            //Trailing blank lines are fine, but anything else probably means
+            //the counts are wrong.
+            for (String line; (line = reader.readLine()) != null; ) {
+                ++lineNumber;
+                if (!line.trim().isEmpty())
+                    throw error("unexpected text after the last question");
+            }
+            return new ParsedQuestionBank(Collections.unmodifiableList(categories),
+                    Collections.unmodifiableList(questions), answerKey);
+        }
+
+        private String readLine(String expected) throws IOException {
+            String line = reader.readLine();
+            ++lineNumber;
+            if (line == null)
+                throw error("unexpected end of file, expected "+expected);
+            return line;
+        }
+
+        /**
+         * Reads a line of exactly count nonnegative space-separated integers.
+         */
+        private int[] readInts(int count, String expected) throws IOException {
+            String line = readLine(expected);
+            int[] values = new int[count];
+            int found = 0, pos = 0, length = line.length();
+            while (true) {
+                while (pos < length && Character.isWhitespace(line.charAt(pos)))
+                    ++pos;
+                if (pos == length)
+                    break;
+                if (found == count)
+                    throw error("expected "+expected+" but found extra text: "+line);
+                int start = pos;
+                long value = 0;
+                while (pos < length && !Character.isWhitespace(line.charAt(pos))) {
+                    char ch = line.charAt(pos++);
+                    if (ch < '0' || ch > '9' || value > Integer.MAX_VALUE)
+                        throw error("expected "+expected+" but found: "+line);
+                    value = value * 10 + (ch - '0');
+                }
+                if (value > Integer.MAX_VALUE)
+                    throw error("number out of range: "+line.substring(start, pos));
+                values[found++] = (int)value;
+            }
+            if (found < count)
+                throw error("expected "+expected+" but found: "+line);
+            return values;
+        }
+
+        private IOException error(String message) {
+            return new IOException(name+":"+lineNumber+": "+message);
+        }
+    }
+}
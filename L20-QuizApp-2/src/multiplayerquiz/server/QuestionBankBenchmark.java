@@ -0,0 +1,102 @@
+package multiplayerquiz.server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates a synthetic question bank of about the given size and compares
+ * parsing it with memory-mapping a compiled copy: the time to load it, the
+ * time to get every question from it, and the heap it occupies.
+ * <pre>QuestionBankBenchmark [megabytes] [categories] [linesPerQuestion]</pre>
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/29/2014
+ */
+public final class QuestionBankBenchmark {
+    private static final int ITERATIONS = 5, CHOICES = 4, LINE_LENGTH = 72;
+    private QuestionBankBenchmark() {}
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int categories = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int linesPerQuestion = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        long questionBytes = (long)(linesPerQuestion + CHOICES) * (LINE_LENGTH + 1) + 8;
+        int questions = (int)Math.max(1, (long)megabytes * 1024 * 1024 / questionBytes / categories);
+
+        File file = File.createTempFile("QuestionBankBenchmark", ".txt");
+        file.deleteOnExit();
+        generate(file, categories, questions, linesPerQuestion);
+        System.out.printf("%d categories x %d questions, %d MB%n", categories, questions, file.length() >> 20);
+
+        File compiled = File.createTempFile("QuestionBankBenchmark", ".bank");
+        compiled.deleteOnExit();
+        QuestionBank.load(file.getPath()).compile(compiled);
+        System.out.printf("compiled: %d MB%n", compiled.length() >> 20);
+
+        for (int i = 0; i < ITERATIONS; ++i) {
+            time("parse", file, categories, questions);
+            time("map", compiled, categories, questions);
+        }
+        file.delete();
+        compiled.delete();
+    }
+
+    /**
+     * Times loading the bank, then getting every question from it, and
+     * reports the heap the loaded bank occupies.
+     */
+    private static void time(String name, File file, int categories, int questions) throws IOException {
+        long baseHeap = usedHeap();
+        long begin = System.nanoTime();
+        QuestionBank bank = QuestionBank.load(file.getPath());
+        long loaded = System.nanoTime();
+        long heap = usedHeap() - baseHeap;
+        long resumed = System.nanoTime();
+        long sink = 0;
+        for (int c = 0; c < categories; ++c)
+            for (int q = 0; q < questions; ++q)
+                sink += bank.getQuestions(c).get(q).getChoices().size() + bank.getAnswer(c, q);
+        long walked = System.nanoTime();
+        if (sink == 42)
+            System.out.println();
+        System.out.printf("%-5s load %5d ms, get all %5d ms, %7d KB heap%n", name,
+                TimeUnit.NANOSECONDS.toMillis(loaded - begin),
+                TimeUnit.NANOSECONDS.toMillis(walked - resumed), heap / 1024);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; ++i)
+            System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void generate(File file, int categories, int questions, int linesPerQuestion) throws IOException {
+        Random random = new Random(0);
+        char[] line = new char[LINE_LENGTH];
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+        try {
+            out.write(categories + " " + questions + "\n");
+            for (int c = 0; c < categories; ++c)
+                out.write("Category " + c + "\n");
+            for (int c = 0; c < categories; ++c)
+                for (int q = 0; q < questions; ++q) {
+                    out.write(linesPerQuestion + " " + CHOICES + " " + random.nextInt(CHOICES) + "\n");
+                    for (int i = 0; i < linesPerQuestion + CHOICES; ++i) {
+                        for (int j = 0; j < line.length; ++j)
+                            line[j] = random.nextInt(6) == 0 ? ' ' : (char)('a' + random.nextInt(26));
+                        out.write(line);
+                        out.write('\n');
+                    }
+                }
+        } finally {
+            out.close();
+        }
+    }
+}
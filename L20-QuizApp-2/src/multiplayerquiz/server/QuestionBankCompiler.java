@@ -0,0 +1,31 @@
+package multiplayerquiz.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiles a questions file into a bank the server can memory-map instead of
+ * parsing (see {@link QuestionBank}).  The server accepts either as its
+ * questions file.
+ * <pre>QuestionBankCompiler questionsFile bankFile</pre>
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/30/2014
+ */
+public final class QuestionBankCompiler {
+    private QuestionBankCompiler() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: QuestionBankCompiler questionsFile bankFile");
+            System.exit(1);
+        }
+        long begin = System.nanoTime();
+        QuestionBank bank = QuestionBank.load(args[0]);
+        File out = new File(args[1]);
+        bank.compile(out);
+        System.out.printf("%s: %d categories x %d questions, %d KB in %d ms%n", out,
+                bank.getCategories().size(), bank.getQuestionsPerCategory(), out.length() / 1024,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+    }
+}
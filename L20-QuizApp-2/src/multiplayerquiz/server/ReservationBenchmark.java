@@ -0,0 +1,60 @@
+package multiplayerquiz.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import multiplayerquiz.server.ServerState.PointReservation;
+
+/**
+ * Measures answer (redeemReservation) latency on a question with many
+ * outstanding reservations: makes that many reservations on one question,
+ * then repeatedly bids and answers on it, timing each answer.
+ * <pre>ReservationBenchmark questionsFile [outstanding] [iterations]</pre>
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/22/2014
+ */
+public final class ReservationBenchmark {
+    private static final int WARMUP_ITERATIONS = 20000;
+    private ReservationBenchmark() {}
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String questionsFile = args[0];
+        int outstanding = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        ServerState state = new ServerState(questionsFile, new BoardStateUpdateThread(),
+                TimeUnit.HOURS.toMillis(1), outstanding + WARMUP_ITERATIONS + iterations + 1);
+        int user = state.getUserHandle(UUID.randomUUID());
+        for (int i = 0; i < outstanding; ++i)
+            state.tryBid(user, 0, 0, 1);
+
+        run(state, user, WARMUP_ITERATIONS);
+        long[] ns = run(state, user, iterations);
+        state.shutdown();
+
+        Arrays.sort(ns);
+        long total = 0;
+        for (long n : ns)
+            total += n;
+        System.out.printf("redeem with %d outstanding reservations on the question, %d iterations:%n", outstanding, iterations);
+        System.out.printf("mean %.0f ns, p50 %d ns, p99 %d ns, max %d ns%n", total / (double)ns.length,
+                ns[ns.length / 2], ns[(int)(ns.length * 0.99)], ns[ns.length - 1]);
+    }
+
+    /**
+     * Bids and answers (incorrectly, returning the points) on the question,
+     * timing each answer.  The newest reservation is redeemed each time, the
+     * worst case for a list searched from the front.
+     */
+    private static long[] run(ServerState state, int user, int iterations) throws IOException {
+        long[] ns = new long[iterations];
+        for (int i = 0; i < iterations; ++i) {
+            PointReservation r = state.tryBid(user, 0, 0, 1);
+            long begin = System.nanoTime();
+            state.redeemReservation(r, -1);
+            ns[i] = System.nanoTime() - begin;
+        }
+        return ns;
+    }
+}
@@ -0,0 +1,97 @@
+package multiplayerquiz.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import multiplayerquiz.server.ServerState.PointReservation;
+
+/**
+ * Returns reservations' points to the board as soon as they expire.  Every
+ * reservation is queued in a DelayQueue when made; this thread takes each one
+ * when its time is up and, if it hasn't been redeemed, returns its points.
+ * Reservations expiring together are handled as a batch with one board
+ * update.  Records how late (after its expiry time) each reservation was
+ * actually expired.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/22/2014
+ */
+final class ReservationExpiryThread extends Thread {
+    private final ServerState state;
+    private final DelayQueue<PointReservation> queue = new DelayQueue<PointReservation>();
+    private final AtomicLong expired = new AtomicLong(), totalLagMillis = new AtomicLong();
+    private volatile long maxLagMillis;
+    ReservationExpiryThread(ServerState state) {
+        super("ReservationExpiryThread");
+        setDaemon(true);
+        this.state = state;
+    }
+
+    /**
+     * Schedules the given reservation to expire at its expiry time.
+     */
+    void schedule(PointReservation r) {
+        queue.add(r);
+    }
+
+    @Override
+    public void run() {
+        List<PointReservation> batch = new ArrayList<PointReservation>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                long now = System.currentTimeMillis();
+                int count = 0;
+                for (PointReservation r : batch)
+                    if (state.expire(r)) {
+                        ++count;
+                        long lag = now - r.getExpiryTimestamp();
+                        totalLagMillis.addAndGet(lag);
+                        if (lag > maxLagMillis)
+                            maxLagMillis = lag;
+                    }
+                if (count > 0) {
+                    expired.addAndGet(count);
+                    state.boardChanged();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            //shutting down
+        }
+    }
+
+    /**
+     * @return the number of reservations waiting to expire (including those
+     * already redeemed, which are skipped when their time comes)
+     */
+    int getScheduled() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of reservations expired unredeemed
+     */
+    long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * @return the mean time between a reservation's expiry time and its
+     * points returning to the board, in milliseconds
+     */
+    double getMeanLagMillis() {
+        long count = expired.get();
+        return count == 0 ? 0 : totalLagMillis.get() / (double)count;
+    }
+
+    /**
+     * @return the longest time between a reservation's expiry time and its
+     * points returning to the board, in milliseconds
+     */
+    long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+}
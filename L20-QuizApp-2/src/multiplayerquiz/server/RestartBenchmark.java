@@ -0,0 +1,123 @@
+package multiplayerquiz.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import multiplayerquiz.server.ServerState.PointReservation;
+
+/**
+ * Measures restart time with many users: plays a game in which every user
+ * bids and answers once, then times restarting from the whole journal, and
+ * from a checkpoint plus the journal of a short game after it.  Needs a
+ * couple of GB of heap for a million users.
+ * <pre>RestartBenchmark questionsFile [users] [tailOperations] [journalDir]</pre>
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/26/2014
+ */
+public final class RestartBenchmark {
+    private static final int THREADS = 4;
+    private RestartBenchmark() {}
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String questionsFile = args[0];
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int tail = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        File dir = args.length > 3 ? new File(args[3]) : Files.createTempDirectory("RestartBenchmark").toFile();
+        File base = new File(dir, "quiz.journal");
+        long expiry = TimeUnit.HOURS.toMillis(1);
+
+        Journal journal = Journal.open(base, JournalMode.ASYNC);
+        ServerState state = new ServerState(questionsFile, new BoardStateUpdateThread(), expiry, Integer.MAX_VALUE / 1000, journal);
+        long begin = System.nanoTime();
+        play(state, users, users);
+        System.out.printf("%d users bid and answered in %d ms%n", users, millisSince(begin));
+        state.shutdown();
+        journal.close();
+        System.out.printf("journal: %d records, %d KB%n", journal.getRecords(), segmentBytes(dir) / 1024);
+        state = null;
+
+        journal = Journal.open(base, JournalMode.ASYNC);
+        begin = System.nanoTime();
+        state = new ServerState(questionsFile, new BoardStateUpdateThread(), expiry, Integer.MAX_VALUE / 1000, journal);
+        System.out.printf("restart from journal: %d ms (%d users)%n", millisSince(begin), state.getUserCount());
+
+        begin = System.nanoTime();
+        state.checkpoint();
+        System.out.printf("checkpoint: %d ms (bids paused %.1f ms), snapshot %d KB%n", millisSince(begin),
+                state.getLastCheckpointPauseNanos() / 1e6, journal.getSnapshotFile().length() / 1024);
+        play(state, tail, users);
+        state.shutdown();
+        journal.close();
+        System.out.printf("journal after checkpoint and %d more bids and answers: %d KB%n", tail, segmentBytes(dir) / 1024);
+        state = null;
+
+        journal = Journal.open(base, JournalMode.ASYNC);
+        begin = System.nanoTime();
+        state = new ServerState(questionsFile, new BoardStateUpdateThread(), expiry, Integer.MAX_VALUE / 1000, journal);
+        System.out.printf("restart from snapshot and journal: %d ms (%d users)%n", millisSince(begin), state.getUserCount());
+        state.shutdown();
+        journal.close();
+
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    /**
+     * Bids and answers for the given number of users (chosen from a pool of
+     * poolSize, deterministically), across several threads.
+     */
+    private static void play(final ServerState state, final int operations, final int poolSize) throws InterruptedException {
+        final int categories = state.getCategories().size(), questions = state.getQuestions(0).size();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>(THREADS);
+        for (int t = 0; t < THREADS; ++t) {
+            final int thread = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(thread);
+                        for (int i = thread; i < operations; i += THREADS) {
+                            UUID id = new UUID(0, random.nextInt(poolSize));
+                            if (operations == poolSize)
+                                id = new UUID(0, i);
+                            int user = state.getUserHandle(id);
+                            int c = random.nextInt(categories), q = random.nextInt(questions);
+                            PointReservation r = state.tryBid(user, c, q, 1);
+                            state.redeemReservation(r, random.nextInt(4));
+                        }
+                    } catch (Throwable ex) {
+                        synchronized (failures) {
+                            failures.add(ex);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        if (!failures.isEmpty())
+            throw new AssertionError(failures.toString());
+    }
+
+    private static long segmentBytes(File dir) {
+        long total = 0;
+        for (File file : dir.listFiles())
+            if (!file.getName().endsWith(".snapshot"))
+                total += file.length();
+        return total;
+    }
+
+    private static long millisSince(long begin) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+    }
+}
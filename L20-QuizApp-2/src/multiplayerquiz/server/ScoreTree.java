@@ -0,0 +1,164 @@
+package multiplayerquiz.server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+/**
+ * An order-statistic treap of (score, user handle) entries, highest score
+ * first, for ranking users.  Insert, remove and rank are expected O(log n).  Not
+ * thread-safe.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/24/2014
+ */
+final class ScoreTree {
+    private static final class Node {
+        final int score;
+        final int user;
+        final int priority;
+        /**
+         * The number of entries in this subtree.
+         */
+        int size = 1;
+        Node left, right;
+        Node(int score, int user, int priority) {
+            this.score = score;
+            this.user = user;
+            this.priority = priority;
+        }
+    }
+    private final Random random = new Random();
+    private Node root;
+
+    /**
+     * @return the number of entries
+     */
+    int size() {
+        return size(root);
+    }
+
+    void insert(int user, int score) {
+        root = insert(root, new Node(score, user, random.nextInt()));
+    }
+
+    /**
+     * Removes the entry for the given user with the given score, which must
+     * be present.
+     */
+    void remove(int user, int score) {
+        root = remove(root, score, user);
+    }
+
+    /**
+     * @return the number of entries with a score strictly greater than the
+     * given score (so a user with that score ranks one more than this)
+     */
+    int countAbove(int score) {
+        int count = 0;
+        for (Node t = root; t != null; )
+            if (t.score > score) {
+                //t and its left subtree all have higher scores.
+                count += size(t.left) + 1;
+                t = t.right;
+            } else
+                t = t.left;
+        return count;
+    }
+
+    /**
+     * @return the highest k scores (or all of them, if fewer), highest first
+     */
+    int[] topScores(int k) {
+        int[] scores = new int[Math.min(k, size())];
+        Deque<Node> stack = new ArrayDeque<Node>();
+        Node t = root;
+        for (int i = 0; i < scores.length; ++i) {
+            for (; t != null; t = t.left)
+                stack.push(t);
+            t = stack.pop();
+            scores[i] = t.score;
+            t = t.right;
+        }
+        return scores;
+    }
+
+    private static int size(Node t) {
+        return t == null ? 0 : t.size;
+    }
+
+    private static Node update(Node t) {
+        t.size = size(t.left) + size(t.right) + 1;
+        return t;
+    }
+
+    /**
+     * Orders by descending score, then by user.
+     */
+    private static int compare(int score, int user, Node t) {
+        if (score != t.score)
+            return score > t.score ? -1 : 1;
+        if (user != t.user)
+            return user < t.user ? -1 : 1;
+        return 0;
+    }
+
+    private static Node insert(Node t, Node n) {
+        if (t == null)
+            return n;
+        if (compare(n.score, n.user, t) < 0) {
+            t.left = insert(t.left, n);
+            if (t.left.priority > t.priority)
+                return rotateRight(t);
+        } else {
+            t.right = insert(t.right, n);
+            if (t.right.priority > t.priority)
+                return rotateLeft(t);
+        }
+        return update(t);
+    }
+
+    private static Node remove(Node t, int score, int user) {
+        if (t == null)
+            throw new IllegalStateException("no entry for score "+score);
+        int c = compare(score, user, t);
+        if (c == 0)
+            return merge(t.left, t.right);
+        if (c < 0)
+            t.left = remove(t.left, score, user);
+        else
+            t.right = remove(t.right, score, user);
+        return update(t);
+    }
+
+    /**
+     * Merges two treaps, all of whose left entries order before all right
+     * entries.
+     */
+    private static Node merge(Node left, Node right) {
+        if (left == null)
+            return right;
+        if (right == null)
+            return left;
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            return update(left);
+        } else {
+            right.left = merge(left, right.left);
+            return update(right);
+        }
+    }
+
+    private static Node rotateRight(Node t) {
+        Node l = t.left;
+        t.left = l.right;
+        l.right = update(t);
+        return update(l);
+    }
+
+    private static Node rotateLeft(Node t) {
+        Node r = t.right;
+        t.right = r.left;
+        r.left = update(t);
+        return update(r);
+    }
+}
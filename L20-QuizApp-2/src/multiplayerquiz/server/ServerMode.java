@@ -0,0 +1,34 @@
+package multiplayerquiz.server;
+
+/**
+ * How the server services client connections.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/14/2014
+ */
+public enum ServerMode {
+    /**
+     * One platform thread per connection, blocking in readLine().
+     */
+    THREADS,
+    /**
+     * One virtual thread per connection, blocking in readLine().  Requires a
+     * JVM with virtual threads (Java 21+).
+     */
+    VIRTUAL_THREADS,
+    /**
+     * A small fixed pool of I/O threads multiplexing non-blocking channels
+     * with Selectors.
+     */
+    NIO;
+
+    /**
+     * Parses a mode name from the command line (case-insensitive).
+     * Dashes are accepted in place of underscores, so "virtual-threads" works.
+     * @param name the mode name, e.g. "nio"
+     * @return the mode
+     * @throws IllegalArgumentException if there's no mode with that name
+     */
+    public static ServerMode parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
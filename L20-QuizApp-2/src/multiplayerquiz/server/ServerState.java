@@ -1,12 +1,28 @@
 package multiplayerquiz.server;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import multiplayerquiz.common.model.BoardState;
 import multiplayerquiz.common.model.Question;
 import multiplayerquiz.common.model.UserState;
+import multiplayerquiz.common.protocol.Bid;
+import multiplayerquiz.common.protocol.BidAccepted;
+import multiplayerquiz.common.protocol.BinaryDecoder;
+import multiplayerquiz.common.protocol.BinaryEncoder;
+import multiplayerquiz.common.protocol.ProtocolException;
+import multiplayerquiz.common.protocol.ServerHello;
+import multiplayerquiz.common.protocol.WireFormat;
 
 
 
@@ -20,81 +36,170 @@ public final class ServerState {
     private static final int INIT_POINTS_PER_QUESTION = 1000;
     private static final int USER_INITIAL_SCORE = 100;
     private static final long RESERVATION_EXPIRY_MILLIS = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
+    /**
+     * Journal record types.
+     */
+    private static final int RECORD_BID = 1, RECORD_REDEEM = 2, RECORD_EXPIRE = 3;
+    /**
+     * Snapshot record types: a header (with the board), then users, then
+     * reservations, then an end marker.
+     */
+    private static final int SNAPSHOT_HEADER = 10, SNAPSHOT_USER = 11, SNAPSHOT_RESERVATION = 12, SNAPSHOT_END = 13;
+    /**
+     * Redemption outcomes, indexing REDEEM_RESULTS; journaled in REDEEM
+     * records.
+     */
+    private static final int CORRECT = 0, TIMED_OUT = 1, INCORRECT = 2;
+    private static final String[] REDEEM_RESULTS = {"correct", "timed out", "incorrect"};
 
     private final List<String> categories;
-    private final List<List<Question>> questions;
-    private final List<List<Integer>> answerKey;
-    private final Map<Question, List<PointReservation>> reservations = new HashMap<Question, List<PointReservation>>();
-    private final Map<UUID, UserState> userStates = new HashMap<UUID, UserState>();
-    private BoardState boardState;
+    private final QuestionBank bank;
+    private final ServerHello.Categories helloCategories;
+    /**
+     * Each question's BidAccepted, encoded for sharing between connections,
+     * indexed by wire format ordinal, then like cellLocks; filled in as each
+     * question is first asked for.
+     */
+    private final AtomicReferenceArray<ByteBuffer> encodedBidAccepted;
+    /**
+     * Each question's BidAccepted (without a request id), indexed like
+     * cellLocks; filled in as each question is first asked for.
+     */
+    private final AtomicReferenceArray<BidAccepted> bidAccepted;
+    /**
+     * Outstanding reservations by id, one map per board cell (indexed like
+     * cellLocks), each guarded by its cell's lock.
+     */
+    private final List<Map<Long, PointReservation>> reservations;
+    private final AtomicLong nextReservationId = new AtomicLong();
+    /**
+     * Running totals for the StatsReporter, updated alongside the changes
+     * they total so reporting needn't visit every user or reservation.
+     */
+    private final AtomicLong userPointsTotal = new AtomicLong(), reservedPointsTotal = new AtomicLong();
+    private final UserStore users;
+    private final AtomicBoard board;
     private final BoardStateUpdateThread updateThread;
+    private final long reservationExpiryMillis;
+    private final ReservationExpiryThread expiryThread;
+    private final LeaderboardThread leaderboard = new LeaderboardThread();
+    private final Journal journal;
+    /**
+     * Serializes checkpoints.
+     */
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private volatile long lastCheckpointPauseNanos;
+    /**
+     * Whether tryBid and friends wait for their journal records to be
+     * durable before returning (see setAwaitDurable).
+     */
+    private volatile boolean awaitDurable = true;
+    /**
+     * One lock per board cell, indexed category * questionsPerCategory +
+     * question.
+     */
+    private final ReentrantLock[] cellLocks;
     
     /** 
      * Concurrency argument
-     * Multiple client threads will be accessing the same ServerState
-     * However, all of them will be accessing using synchronized, thus
-     * only one client can be reading/modifying the board state at a time.
-     * Or will be reading immutable data
+     * Multiple client threads will be accessing the same ServerState.
+     * Each cell's reservations, and changes to that cell's points, are
+     * guarded by the cell's lock, so bids on different questions proceed in
+     * parallel.  The board is updated in place (see AtomicBoard), and as only
+     * the holder of a cell's lock changes that cell, a check of a cell's points
+     * stays true until the lock is released.  Users are updated in place too,
+     * under the UserStore's own locks (see UserStore).  The point
+     * changes for one operation aren't atomic with each other, but every one
+     * is eventually applied, so once operations stop, user points plus board
+     * points plus reserved points equals the initial board plus
+     * USER_INITIAL_SCORE per user.
+     * (The locks are ReentrantLocks rather than synchronized so virtual client
+     * threads waiting for them don't pin their carrier threads.)
+     *
+     * Each change to the board, reservations or scores is appended to the
+     * journal under the cell lock, so the journal's order is consistent with
+     * the order changes to each cell happened in; bids and answers then wait
+     * for their record to be durable after releasing the lock, so other
+     * cells' (and with group commit, the same cell's) operations aren't held
+     * up by the disk.  Expiry doesn't wait, as nobody's waiting on it, and a
+     * lost expiry record just expires the reservation again after replay.
+     *
+     * A checkpoint holds every cell lock just long enough to cut the journal
+     * and copy the board and reservations, then writes users while bids
+     * continue.  No user is being updated at the cut (updates happen under a
+     * cell lock), so the UserStore can begin a snapshot there, after which it
+     * saves each user's state before their first update, so the checkpoint
+     * can find every user's state as of the cut.
      */
 
     public ServerState(String questionsFile, BoardStateUpdateThread updateThread) throws IOException {
-        List<String> lines = new ArrayList<String>();
-        FileReader file = new FileReader(questionsFile);
-        BufferedReader reader = new BufferedReader(file);
-        String cl = reader.readLine();
-        while(cl != null) {
-            lines.add(cl);
-            cl = reader.readLine();
-        }
-        reader.close();
-
-        //One line containing the number of categories and questions per category.
-        String[] fragments = lines.remove(0).split(" ");
-        int numCategories = Integer.parseInt(fragments[0]);
-        int questionsPerCategory = Integer.parseInt(fragments[1]);
-
-        //Category names, one per line.
-        this.categories = Collections.unmodifiableList(new ArrayList<String>(lines.subList(0, numCategories)));
-        lines.subList(0, numCategories).clear();
-
-        //Questions: question, numAnswers rightAnswerIndex, choices... (one per line)
-        List<List<Question>> questions = new ArrayList<List<Question>>(categories.size());
-        List<List<Integer>> answerKey = new ArrayList<List<Integer>>(categories.size());
-        for (int c = 0; c < categories.size(); ++c) {
-            List<Question> list = new ArrayList<Question>(questionsPerCategory);
-            List<Integer> rightAnswers = new ArrayList<Integer>(questionsPerCategory);
-
-            for (int i = 0; i < questionsPerCategory; ++i) {
-                fragments = lines.remove(0).split(" ");
-                int questionlines = Integer.parseInt(fragments[0]);
-                int numAnswers = Integer.parseInt(fragments[1]);
-                int rightAnswer = Integer.parseInt(fragments[2]);
-                rightAnswers.add(rightAnswer);
-                List<String> ql = lines.subList(0, questionlines);
-                String ques = "";
-                for (String l : ql)
-                    ques += l + "\n";
-                lines.subList(0, questionlines).clear();
-                List<String> choices = new ArrayList<String>(lines.subList(0, numAnswers));
-                lines.subList(0, numAnswers).clear();
-                list.add(new Question(ques, choices));
-                //Question q = new Question(ques, choices);
-                //System.out.println("\nCategory: " + categories.get(c).toString() + " question:" + i);
-                //System.out.println(q.toProtocolString());
-            }
+        this(questionsFile, updateThread, Journal.disabled());
+    }
+
+    /**
+     * Creates the state, then replays the journal into it, restoring the
+     * game in progress when the journal was last written.  The journal must
+     * have been written by a server using the same questions file.  The
+     * journal is not closed by this object.
+     */
+    public ServerState(String questionsFile, BoardStateUpdateThread updateThread, Journal journal) throws IOException {
+        this(questionsFile, updateThread, RESERVATION_EXPIRY_MILLIS, INIT_POINTS_PER_QUESTION, journal);
+    }
 
-            questions.add(Collections.unmodifiableList(list));
-            answerKey.add(Collections.unmodifiableList(rightAnswers));
+    /**
+     * For testing expiry without waiting the full reservation time.
+     */
+    ServerState(String questionsFile, BoardStateUpdateThread updateThread, long reservationExpiryMillis) throws IOException {
+        this(questionsFile, updateThread, reservationExpiryMillis, INIT_POINTS_PER_QUESTION);
+    }
+
+    /**
+     * For tests and benchmarks needing more points per question than a real
+     * game.
+     */
+    ServerState(String questionsFile, BoardStateUpdateThread updateThread, long reservationExpiryMillis,
+            int pointsPerQuestion) throws IOException {
+        this(questionsFile, updateThread, reservationExpiryMillis, pointsPerQuestion, Journal.disabled());
+    }
+
+    ServerState(String questionsFile, BoardStateUpdateThread updateThread, long reservationExpiryMillis,
+            int pointsPerQuestion, Journal journal) throws IOException {
+        this.reservationExpiryMillis = reservationExpiryMillis;
+        this.journal = journal;
+        this.bank = QuestionBank.load(questionsFile);
+        this.categories = bank.getCategories();
+        int questionsPerCategory = bank.getQuestionsPerCategory();
+        this.helloCategories = new ServerHello.Categories(categories, questionsPerCategory);
+        this.encodedBidAccepted = new AtomicReferenceArray<ByteBuffer>(
+                WireFormat.values().length * categories.size() * questionsPerCategory);
+        this.bidAccepted = new AtomicReferenceArray<BidAccepted>(categories.size() * questionsPerCategory);
+        this.board = new AtomicBoard(pointsPerQuestion, categories.size(), questionsPerCategory);
+        this.users = new UserStore(USER_INITIAL_SCORE, categories.size(), questionsPerCategory);
+        this.cellLocks = new ReentrantLock[categories.size() * questionsPerCategory];
+        List<Map<Long, PointReservation>> reservations = new ArrayList<Map<Long, PointReservation>>(cellLocks.length);
+        for (int i = 0; i < cellLocks.length; ++i) {
+            cellLocks[i] = new ReentrantLock();
+            reservations.add(new HashMap<Long, PointReservation>());
         }
-        this.questions = Collections.unmodifiableList(questions);
-        this.answerKey = Collections.unmodifiableList(answerKey);
-        this.boardState = new BoardState(INIT_POINTS_PER_QUESTION, categories.size(), questionsPerCategory);
-        for (List<Question> l : questions)
-            for (Question q : l)
-                reservations.put(q, new ArrayList<PointReservation>());
+        this.reservations = Collections.unmodifiableList(reservations);
         this.updateThread = updateThread;
-   
-        printUserTotals();
+        long firstSegment = 0;
+        File snapshot = journal.getSnapshotFile();
+        if (snapshot != null && snapshot.exists())
+            firstSegment = loadSnapshot(snapshot);
+        journal.replay(firstSegment, new Journal.RecordHandler() {
+            @Override
+            public void replay(BinaryDecoder record) {
+                replayRecord(record);
+            }
+        });
+        updateThread.initialize(this);
+        this.expiryThread = new ReservationExpiryThread(this);
+        for (Map<Long, PointReservation> cell : reservations)
+            for (PointReservation r : cell.values())
+                expiryThread.schedule(r);
+        expiryThread.start();
+        leaderboard.start();
     }
 
     /**
@@ -111,55 +216,171 @@ public final class ServerState {
      * @return
      */
     public List<Question> getQuestions(int category) {
-        return questions.get(category);
+        return bank.getQuestions(category);
+    }
+
+    /**
+     * @return true if the board has a cell at category and question
+     */
+    public boolean hasQuestion(int category, int question) {
+        return category >= 0 && category < categories.size()
+                && question >= 0 && question < getQuestions(0).size();
+    }
+
+    /**
+     * @return the categories and questions per category for ServerHellos,
+     * shared so their text is built once
+     */
+    public ServerHello.Categories getServerHelloCategories() {
+        return helloCategories;
+    }
+
+    /**
+     * Returns the given question's BidAccepted, shared by every bid on it (as
+     * in a {@link multiplayerquiz.common.protocol.BidBatchReply}).
+     */
+    public BidAccepted getBidAccepted(int category, int question) {
+        int index = cellIndex(category, question);
+        BidAccepted accepted = bidAccepted.get(index);
+        if (accepted == null) {
+            //Racing threads may each build one, but they're equal.
+            accepted = new BidAccepted(getQuestions(category).get(question));
+            bidAccepted.set(index, accepted);
+        }
+        return accepted;
+    }
+
+    /**
+     * Returns the given question's BidAccepted, encoded in the given format
+     * for writing to any number of connections (see
+     * {@link WireFormat#encodeShared}).  Questions don't change, so each is
+     * encoded only once.
+     */
+    public ByteBuffer getEncodedBidAccepted(int category, int question, WireFormat format) {
+        if (category < 0 || category >= categories.size() || question < 0 || question >= bank.getQuestionsPerCategory())
+            throw new IndexOutOfBoundsException(category+", "+question);
+        int index = (format.ordinal() * categories.size() + category) * bank.getQuestionsPerCategory() + question;
+        ByteBuffer encoded = encodedBidAccepted.get(index);
+        if (encoded == null) {
+            //Racing threads may each encode it, but the encodings are equal.
+            encoded = format.encodeShared(getBidAccepted(category, question));
+            encodedBidAccepted.set(index, encoded);
+        }
+        return encoded;
     }
 
     /**
-     * Return the current user state
+     * Sets whether {@link #tryBid}, {@link #redeemReservation} and their
+     * batched forms wait for their journal records to be durable before
+     * returning (the default).  Callers that mustn't block, like the NIO
+     * server's I/O threads, turn this off and reply from
+     * {@link #whenDurable} instead.
+     */
+    public void setAwaitDurable(boolean awaitDurable) {
+        this.awaitDurable = awaitDurable;
+    }
+
+    /**
+     * Calls the listener once every change made so far is durable (see
+     * {@link Journal#whenDurable}).
+     */
+    public void whenDurable(Journal.DurabilityListener listener) {
+        journal.whenDurable(listener);
+    }
+
+    /**
+     * Returns the handle other operations on the user take, adding the user
+     * if they're new.  Look it up once per connection: handles are compact
+     * ints, so operations on them don't hash or allocate.
      * @param userId
-     * @return
+     * @return the user's handle
      */
-    public synchronized UserState getUserState(UUID userId) {
-        UserState state = userStates.get(userId);
-        if (state == null) {
-            userStates.put(userId, (state = new UserState(USER_INITIAL_SCORE, getCategories().size(), getQuestions(0).size())));
-            printUserTotals();
+    public int getUserHandle(UUID userId) {
+        int user = users.slot(userId);
+        if (user == -1) {
+            user = users.add(userId);
+            if (user != -1) {
+                userPointsTotal.addAndGet(USER_INITIAL_SCORE);
+                leaderboard.scoreChanged(user, USER_INITIAL_SCORE);
+            } else
+                user = users.slot(userId);
         }
-        return state;
+        return user;
+    }
+
+    /**
+     * Return the current user state.  (This builds a new UserState; use
+     * {@link #getScore(int)} if only the score is needed.)
+     * @param user a handle from getUserHandle
+     * @return
+     */
+    public UserState getUserState(int user) {
+        return users.get(user);
+    }
+
+    /**
+     * Return the current user state, adding the user if they're new
+     * @param userId
+     * @return
+     */
+    public UserState getUserState(UUID userId) {
+        return getUserState(getUserHandle(userId));
+    }
+
+    /**
+     * Return the user's current score
+     * @param user a handle from getUserHandle
+     * @return
+     */
+    public int getScore(int user) {
+        return users.score(user);
     }
 
     /**
      * 
      * @return
      */
-    public synchronized BoardState getBoardState() {
-        return boardState;
+    public BoardState getBoardState() {
+        return board.snapshot();
     }
     
 
     /**
      * If the board and the question has sufficient points, create a reservation
      * and take that many points out of the question and put it in the reservation.
-     * If question don't have sufficient funding, see if funding can be reclaimed
-     * from expired reservations
-     * @param userId
+     * (Expired reservations are returned to the board by the
+     * ReservationExpiryThread as they expire, so there's nothing to reclaim
+     * here.)
+     * @param user a handle from getUserHandle
      * @param category 0 <= category < numCategories
      * @param question 0 <= question < numQuestions
      * @param points  points > 0
      * @return
-     * @modifies reservations, boardState 
+     * @throws IOException if the bid couldn't be journaled
+     * @modifies reservations, board 
      */
-    public synchronized PointReservation tryBid(UUID userId, int category, int question, int points) {
-        if (points > boardState.getAvailablePoints(category, question)) {
-            expireReservations(category, question);
-            if (points > boardState.getAvailablePoints(category, question))
+    public PointReservation tryBid(int user, int category, int question, int points) throws IOException {
+        PointReservation r;
+        long ticket;
+        ReentrantLock lock = cellLock(category, question);
+        lock.lock();
+        try {
+            if (points > board.getAvailablePoints(category, question))
                 return null;
+            r = new PointReservation(nextReservationId.getAndIncrement(), user,
+                    category, question, points, System.currentTimeMillis()+reservationExpiryMillis);
+            cellReservations(category, question).put(r.id, r);
+            reservedPointsTotal.addAndGet(points);
+            updateBoard(category, question, -points);
+            expiryThread.schedule(r);
+            BinaryEncoder record = record(RECORD_BID, r);
+            record.writeLong(r.expiryTimestamp);
+            ticket = journal.append(record);
+        } finally {
+            lock.unlock();
         }
-        Question q = getQuestions(category).get(question);
-        PointReservation r = new PointReservation(userId, points, new Date().getTime()+RESERVATION_EXPIRY_MILLIS);
-        reservations.get(q).add(r);
-        boardState = boardState.withUpdate(category, question, -points);
-        updateThread.update(boardState);
+        if (awaitDurable)
+            journal.awaitDurable(ticket);
         return r;
     }
     
@@ -168,88 +389,579 @@ public final class ServerState {
      * If the answer is correct by the reservation has timed out, take the points from the user
      *    and put it back in the board
      * If the answer is incorrect, take the points from the user and put it back in the board
-     * @param r valid reservation
-     * @param category 0 <= category < numCategories
-     * @param question 0 <= question < numQuestions
+     * @param r valid reservation, whose cell is the question answered
+     * @param answer the chosen answer
      * @return "correct", "incorrect" or "timed out"
-     * @modifies userStates, reservations, boardState
-     */
-    public synchronized String redeemReservation(PointReservation r, int category, int question, int answer) {
-        Question q = getQuestions(category).get(question);
-        List<PointReservation> resers = reservations.get(q);
-        if (resers.contains(r) && answerKey.get(category).get(question) == answer) {
-            // correct
-            userStates.put(r.user, userStates.get(r.user).withUpdate(category, question, r.points));
-            resers.remove(r);
-            printUserTotals();
-            return "correct";
-        } else if(!resers.contains(r)) {
-            //expired 
-            userStates.put(r.user, userStates.get(r.user).withUpdate(category, question, -r.points));
-            boardState = boardState.withUpdate(category, question, r.points);
-            updateThread.update(boardState);
-            printUserTotals();
-            return "timed out";
+     * @throws IOException if the answer couldn't be journaled
+     * @modifies users, reservations, board
+     */
+    public String redeemReservation(PointReservation r, int answer) throws IOException {
+        int outcome;
+        long ticket;
+        ReentrantLock lock = cellLock(r.category, r.question);
+        lock.lock();
+        try {
+            boolean outstanding = cellReservations(r.category, r.question).remove(r.id) != null;
+            if (outstanding && bank.getAnswer(r.category, r.question) == answer)
+                outcome = CORRECT;
+            else if (!outstanding)
+                outcome = TIMED_OUT;
+            else
+                outcome = INCORRECT;
+            if (redeem(r, outcome))
+                updateThread.update();
+            BinaryEncoder record = record(RECORD_REDEEM, r);
+            record.writeByte(outcome);
+            ticket = journal.append(record);
+        } finally {
+            lock.unlock();
+        }
+        if (awaitDurable)
+            journal.awaitDurable(ticket);
+        return REDEEM_RESULTS[outcome];
+    }
+
+    /**
+     * Tries a batch of bids for one user, each as {@link #tryBid} would, but
+     * taking the cells' locks once for the whole batch, waiting for the
+     * journal once, and scheduling one broadcast.
+     * @param user a handle from getUserHandle
+     * @param bids bids with valid cells and positive amounts
+     * @return the reservations, in order, with null for bids on cells with
+     * too few points
+     * @throws IOException if the bids couldn't be journaled
+     * @modifies reservations, board
+     */
+    public PointReservation[] tryBids(int user, List<Bid> bids) throws IOException {
+        PointReservation[] result = new PointReservation[bids.size()];
+        int[] cells = new int[bids.size()];
+        for (int i = 0; i < cells.length; ++i)
+            cells[i] = cellIndex(bids.get(i).getCategory(), bids.get(i).getQuestion());
+        long ticket = -1;
+        int[] locked = lockCells(cells);
+        try {
+            long expiryTimestamp = System.currentTimeMillis()+reservationExpiryMillis;
+            for (int i = 0; i < result.length; ++i) {
+                Bid bid = bids.get(i);
+                if (bid.getAmount() > board.getAvailablePoints(bid.getCategory(), bid.getQuestion()))
+                    continue;
+                PointReservation r = new PointReservation(nextReservationId.getAndIncrement(), user,
+                        bid.getCategory(), bid.getQuestion(), bid.getAmount(), expiryTimestamp);
+                reservations.get(cells[i]).put(r.id, r);
+                reservedPointsTotal.addAndGet(r.points);
+                board.update(r.category, r.question, -r.points);
+                expiryThread.schedule(r);
+                BinaryEncoder record = record(RECORD_BID, r);
+                record.writeLong(r.expiryTimestamp);
+                ticket = journal.append(record);
+                result[i] = r;
+            }
+        } finally {
+            unlockCells(locked);
+        }
+        if (ticket != -1) {
+            updateThread.update();
+            if (awaitDurable)
+                journal.awaitDurable(ticket);
+        }
+        return result;
+    }
+
+    /**
+     * Redeems a batch of reservations, each as {@link #redeemReservation}
+     * would, but taking the cells' locks once for the whole batch, waiting
+     * for the journal once, and scheduling at most one broadcast.
+     * @param rs valid reservations
+     * @param answers the answer for each reservation
+     * @return "correct", "incorrect" or "timed out" for each reservation
+     * @throws IOException if the answers couldn't be journaled
+     * @modifies users, reservations, board
+     */
+    public String[] redeemReservations(List<PointReservation> rs, List<Integer> answers) throws IOException {
+        String[] result = new String[rs.size()];
+        int[] cells = new int[rs.size()];
+        for (int i = 0; i < cells.length; ++i)
+            cells[i] = cellIndex(rs.get(i).category, rs.get(i).question);
+        boolean boardChanged = false;
+        long ticket = -1;
+        int[] locked = lockCells(cells);
+        try {
+            for (int i = 0; i < result.length; ++i) {
+                PointReservation r = rs.get(i);
+                boolean outstanding = reservations.get(cells[i]).remove(r.id) != null;
+                int outcome;
+                if (outstanding && bank.getAnswer(r.category, r.question) == answers.get(i))
+                    outcome = CORRECT;
+                else if (!outstanding)
+                    outcome = TIMED_OUT;
+                else
+                    outcome = INCORRECT;
+                boardChanged |= redeem(r, outcome);
+                BinaryEncoder record = record(RECORD_REDEEM, r);
+                record.writeByte(outcome);
+                ticket = journal.append(record);
+                result[i] = REDEEM_RESULTS[outcome];
+            }
+        } finally {
+            unlockCells(locked);
+        }
+        if (boardChanged)
+            updateThread.update();
+        if (ticket != -1 && awaitDurable)
+            journal.awaitDurable(ticket);
+        return result;
+    }
+
+    /**
+     * Applies the redemption of a reservation (already removed from its
+     * cell's reservations, if it was outstanding).  Doesn't schedule a
+     * broadcast.  Must be called with the cell's lock held.
+     * @return true if the board changed
+     */
+    private boolean redeem(PointReservation r, int outcome) {
+        if (outcome == CORRECT) {
+            reservedPointsTotal.addAndGet(-r.points);
+            updateUser(r.user, r.category, r.question, r.points);
+            return false;
+        } else if (outcome == TIMED_OUT) {
+            updateUser(r.user, r.category, r.question, -r.points);
+            board.update(r.category, r.question, r.points);
         } else {
-            // wrong
-            userStates.put(r.user, userStates.get(r.user).withUpdate(category, question, -r.points));
-            boardState = boardState.withUpdate(category, question, 2*r.points);
-            updateThread.update(boardState);
-            resers.remove(r);
-            printUserTotals();
-            return "incorrect";
+            reservedPointsTotal.addAndGet(-r.points);
+            updateUser(r.user, r.category, r.question, -r.points);
+            board.update(r.category, r.question, 2*r.points);
         }
+        return true;
     }
 
     /**
-     * Check if any reservations have expired and 
-     * @param category category 0 <= category < numCategories
-     * @param question 0 <= question < numQuestions
+     * Returns an expired reservation's points to the board if it hasn't been
+     * redeemed.  Doesn't schedule a broadcast; the caller calls
+     * {@link #boardChanged()} once for a batch.  Called by the
+     * ReservationExpiryThread.
+     * @return true if the reservation was still outstanding
      */
-    private void expireReservations(int category, int question) {
-        //TODO: we could be clever and expire only as many reservations as
-        //necessary to free up the points.
-        BoardState oldState = boardState;
-        long now = new Date().getTime();
-        Question q = getQuestions(category).get(question);
-        for (Iterator<PointReservation> i = reservations.get(q).iterator(); i.hasNext();) {
-            PointReservation r = i.next();
-            if (r.expiryTimestamp < now) {
-                i.remove();
-                boardState = boardState.withUpdate(category, question, r.points);
+    boolean expire(PointReservation r) {
+        ReentrantLock lock = cellLock(r.category, r.question);
+        lock.lock();
+        try {
+            if (cellReservations(r.category, r.question).remove(r.id) == null)
+                return false;
+            reservedPointsTotal.addAndGet(-r.points);
+            board.update(r.category, r.question, r.points);
+            journal.append(record(RECORD_EXPIRE, r));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the state to the journal's snapshot file, then
+     * deletes the journal segments it makes redundant, so a restart loads the
+     * snapshot and replays only what was journaled after it.  Bids and
+     * answers are only held up while the board and reservations are copied.
+     * @return false if not journaling
+     * @throws IOException if writing the snapshot fails
+     */
+    public boolean checkpoint() throws IOException {
+        File snapshot = journal.getSnapshotFile();
+        if (snapshot == null)
+            return false;
+        checkpointLock.lock();
+        try {
+            long segment, nextId;
+            int userCount;
+            BoardState boardAtCut;
+            List<PointReservation> reservationsAtCut = new ArrayList<PointReservation>();
+            long begin = System.nanoTime();
+            for (ReentrantLock lock : cellLocks)
+                lock.lock();
+            try {
+                segment = journal.rollover();
+                nextId = nextReservationId.get();
+                boardAtCut = board.snapshot();
+                for (Map<Long, PointReservation> cell : reservations)
+                    reservationsAtCut.addAll(cell.values());
+                userCount = users.beginSnapshot();
+            } finally {
+                for (ReentrantLock lock : cellLocks)
+                    lock.unlock();
+            }
+            lastCheckpointPauseNanos = System.nanoTime() - begin;
+
+            try {
+                writeSnapshot(snapshot, segment, nextId, boardAtCut, userCount, reservationsAtCut);
+            } finally {
+                users.endSnapshot();
             }
+            journal.deleteSegmentsBefore(segment);
+            return true;
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot to a temporary file, forces it, and renames it over
+     * the old one, so there's always a complete snapshot.  Must be called
+     * during a UserStore snapshot.
+     */
+    private void writeSnapshot(File snapshot, long segment, long nextId, BoardState boardAtCut,
+            int userCount, List<PointReservation> reservationsAtCut) throws IOException {
+        File temp = new File(snapshot.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(temp);
+        try {
+            OutputStream out = new BufferedOutputStream(file, 64 * 1024);
+            BinaryEncoder header = new BinaryEncoder();
+            header.writeByte(SNAPSHOT_HEADER);
+            header.writeVarlong(segment);
+            header.writeVarlong(nextId);
+            header.writeVarint(categories.size());
+            header.writeVarint(getQuestions(0).size());
+            for (int c = 0; c < categories.size(); ++c)
+                for (int q = 0; q < getQuestions(0).size(); ++q)
+                    header.writeVarint(boardAtCut.getAvailablePoints(c, q));
+            out.write(header.toFrame());
+            for (int slot = 0; slot < userCount; ++slot) {
+                BinaryEncoder record = new BinaryEncoder(64);
+                record.writeByte(SNAPSHOT_USER);
+                users.writeId(slot, record);
+                users.getAtSnapshot(slot).encode(record);
+                out.write(record.toFrame());
+            }
+            for (PointReservation r : reservationsAtCut) {
+                BinaryEncoder record = record(SNAPSHOT_RESERVATION, r);
+                record.writeLong(r.expiryTimestamp);
+                out.write(record.toFrame());
+            }
+            BinaryEncoder end = new BinaryEncoder();
+            end.writeByte(SNAPSHOT_END);
+            end.writeVarlong(userCount);
+            end.writeVarint(reservationsAtCut.size());
+            out.write(end.toFrame());
+            out.flush();
+            file.getChannel().force(false);
+        } finally {
+            file.close();
+        }
+        Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a snapshot, during construction.
+     * @return the first journal segment to replay after it
+     * @throws IOException if reading fails or the snapshot is incomplete
+     */
+    private long loadSnapshot(File snapshot) throws IOException {
+        final long[] segmentAndCounts = {-1, -1, -1};
+        final long[] loaded = {0, 0};
+        FileChannel in = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ);
+        try {
+            Journal.readFrames(in, new Journal.RecordHandler() {
+                @Override
+                public void replay(BinaryDecoder record) {
+                    int type = record.readByte();
+                    if (type != SNAPSHOT_HEADER && segmentAndCounts[0] == -1)
+                        throw new ProtocolException("snapshot doesn't start with a header");
+                    if (type == SNAPSHOT_HEADER) {
+                        segmentAndCounts[0] = record.readVarlong();
+                        nextReservationId.set(record.readVarlong());
+                        if (record.readVarint() != categories.size() || record.readVarint() != getQuestions(0).size())
+                            throw new ProtocolException("snapshot is of a different board");
+                        for (int c = 0; c < categories.size(); ++c)
+                            for (int q = 0; q < getQuestions(0).size(); ++q)
+                                board.update(c, q, record.readVarint() - board.getAvailablePoints(c, q));
+                    } else if (type == SNAPSHOT_USER) {
+                        UUID user = new UUID(record.readLong(), record.readLong());
+                        UserState state = UserState.decode(record);
+                        int slot = users.add(user);
+                        if (slot == -1)
+                            throw new ProtocolException("snapshot has user "+user+" twice");
+                        users.set(slot, state);
+                        userPointsTotal.addAndGet(state.getScore());
+                        leaderboard.scoreChanged(slot, state.getScore());
+                        ++loaded[0];
+                    } else if (type == SNAPSHOT_RESERVATION) {
+                        long id = record.readVarlong();
+                        int user = users.slot(new UUID(record.readLong(), record.readLong()));
+                        if (user == -1)
+                            throw new ProtocolException("snapshot has reservation "+id+" for unknown user");
+                        int category = record.readVarint(), question = record.readVarint(), points = record.readVarint();
+                        PointReservation r = new PointReservation(id, user, category, question, points, record.readLong());
+                        cellReservations(category, question).put(id, r);
+                        reservedPointsTotal.addAndGet(points);
+                        ++loaded[1];
+                    } else if (type == SNAPSHOT_END) {
+                        segmentAndCounts[1] = record.readVarlong();
+                        segmentAndCounts[2] = record.readVarint();
+                    } else
+                        throw new ProtocolException("bad snapshot record type "+type);
+                }
+            });
+        } finally {
+            in.close();
+        }
+        if (segmentAndCounts[1] != loaded[0] || segmentAndCounts[2] != loaded[1])
+            throw new IOException(snapshot + " is incomplete");
+        return segmentAndCounts[0];
+    }
+
+    /**
+     * @return how long the last checkpoint held up bids and answers
+     */
+    long getLastCheckpointPauseNanos() {
+        return lastCheckpointPauseNanos;
+    }
+
+    /**
+     * Starts a journal record about a reservation.
+     */
+    private BinaryEncoder record(int type, PointReservation r) {
+        BinaryEncoder record = new BinaryEncoder(32);
+        record.writeByte(type);
+        record.writeVarlong(r.id);
+        users.writeId(r.user, record);
+        record.writeVarint(r.category);
+        record.writeVarint(r.question);
+        record.writeVarint(r.points);
+        return record;
+    }
+
+    /**
+     * Applies a journal record, during construction.  Users are added when
+     * first mentioned (an unmentioned user has the initial score, same as a
+     * new one).  Nothing is broadcast; the update thread is initialized with
+     * the replayed board afterward.
+     */
+    private void replayRecord(BinaryDecoder record) {
+        int type = record.readByte();
+        long id = record.readVarlong();
+        int user = getUserHandle(new UUID(record.readLong(), record.readLong()));
+        int category = record.readVarint(), question = record.readVarint(), points = record.readVarint();
+        if (!hasQuestion(category, question))
+            throw new ProtocolException("journal cell out of range: "+category+" "+question);
+        nextReservationId.set(Math.max(nextReservationId.get(), id + 1));
+        Map<Long, PointReservation> cell = cellReservations(category, question);
+        switch (type) {
+            case RECORD_BID:
+                PointReservation r = new PointReservation(id, user, category, question, points, record.readLong());
+                cell.put(id, r);
+                reservedPointsTotal.addAndGet(points);
+                board.update(category, question, -points);
+                break;
+            case RECORD_REDEEM:
+                int outcome = record.readByte();
+                if (outcome > INCORRECT)
+                    throw new ProtocolException("bad journaled outcome "+outcome);
+                PointReservation redeemed = cell.remove(id);
+                if (redeemed == null)
+                    redeemed = new PointReservation(id, user, category, question, points, 0);
+                redeem(redeemed, outcome);
+                break;
+            case RECORD_EXPIRE:
+                if (cell.remove(id) != null) {
+                    reservedPointsTotal.addAndGet(-points);
+                    board.update(category, question, points);
+                }
+                break;
+            default:
+                throw new ProtocolException("bad journal record type "+type);
         }
-        //Only push an update if we expired.
-        if (boardState != oldState)
-            updateThread.update(boardState);
     }
 
-    public static final class PointReservation {
-        private final UUID user;
+    /**
+     * Schedules a broadcast after changes made by {@link #expire}.
+     */
+    void boardChanged() {
+        updateThread.update();
+    }
+
+    ReservationExpiryThread getExpiryThread() {
+        return expiryThread;
+    }
+
+    LeaderboardThread getLeaderboard() {
+        return leaderboard;
+    }
+
+    /**
+     * Stops expiring reservations and ranking users, for tests that check the
+     * state once nothing is changing it.
+     */
+    void shutdown() throws InterruptedException {
+        expiryThread.interrupt();
+        leaderboard.interrupt();
+        expiryThread.join();
+        leaderboard.join();
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if there's no such cell, rather than
+     * aliasing another cell's index
+     */
+    private int cellIndex(int category, int question) {
+        if (!hasQuestion(category, question))
+            throw new IndexOutOfBoundsException("no cell "+category+" "+question);
+        return category * getQuestions(0).size() + question;
+    }
+
+    private ReentrantLock cellLock(int category, int question) {
+        return cellLocks[cellIndex(category, question)];
+    }
+
+    /**
+     * Must be called with the cell's lock held.
+     */
+    private Map<Long, PointReservation> cellReservations(int category, int question) {
+        return reservations.get(cellIndex(category, question));
+    }
+
+    /**
+     * Locks each of the given cells once, in index order (as checkpoint()
+     * does), so batches can't deadlock with each other or with checkpoints.
+     * @param cells cell indices, possibly repeated
+     * @return the distinct cells locked, for unlockCells
+     */
+    private int[] lockCells(int[] cells) {
+        int[] sorted = cells.clone();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; ++i)
+            if (i == 0 || sorted[i] != sorted[i-1])
+                sorted[distinct++] = sorted[i];
+        int[] locked = Arrays.copyOf(sorted, distinct);
+        for (int cell : locked)
+            cellLocks[cell].lock();
+        return locked;
+    }
+
+    private void unlockCells(int[] locked) {
+        for (int i = locked.length - 1; i >= 0; --i)
+            cellLocks[locked[i]].unlock();
+    }
+
+    /**
+     * Adds pointUpdate to a cell's points and schedules a broadcast.  Must be
+     * called with the cell's lock held.
+     */
+    private void updateBoard(int category, int question, int pointUpdate) {
+        board.update(category, question, pointUpdate);
+        updateThread.update();
+    }
+
+    private void updateUser(int user, int category, int question, int pointUpdate) {
+        users.update(user, category, question, pointUpdate);
+        userPointsTotal.addAndGet(pointUpdate);
+        leaderboard.scoreChanged(user, pointUpdate);
+    }
+
+    /**
+     * @return the points on the board
+     */
+    int getBoardPoints() {
+        return board.totalPoints();
+    }
+
+    /**
+     * @return the running total of points held by users
+     */
+    long getUserPointsTotal() {
+        return userPointsTotal.get();
+    }
+
+    /**
+     * @return the running total of points held in reservations
+     */
+    long getReservedPointsTotal() {
+        return reservedPointsTotal.get();
+    }
+
+    /**
+     * @return the points held in reservations; for checking the conservation
+     * invariant when no operations are in progress
+     */
+    int getReservedPoints() {
+        int total = 0;
+        for (int c = 0; c < categories.size(); ++c)
+            for (int q = 0; q < getQuestions(c).size(); ++q) {
+                ReentrantLock lock = cellLock(c, q);
+                lock.lock();
+                try {
+                    for (PointReservation r : cellReservations(c, q).values())
+                        total += r.points;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        return total;
+    }
+
+    /**
+     * @return the total points held by users
+     */
+    int getUserPoints() {
+        int total = 0;
+        for (int slot = 0; slot < users.size(); ++slot)
+            total += users.score(slot);
+        return total;
+    }
+
+    /**
+     * @return the number of users
+     */
+    int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * Points taken from a board cell for a user until they answer or the
+     * reservation expires.  Delayed until its expiry, for the
+     * ReservationExpiryThread's DelayQueue.
+     */
+    public static final class PointReservation implements Delayed {
+        private final long id;
+        /**
+         * The user's handle.
+         */
+        private final int user;
+        private final int category, question;
         private final int points;
         private final long expiryTimestamp;
-        public PointReservation(UUID user, int points, long expiryTimestamp) {
+        public PointReservation(long id, int user, int category, int question, int points, long expiryTimestamp) {
+            this.id = id;
             this.user = user;
+            this.category = category;
+            this.question = question;
             this.points = points;
             this.expiryTimestamp = expiryTimestamp;
         }
-    }
-    
-    private void printUserTotals() {
-        List<Integer> tot = new ArrayList<Integer>();
-        int totUser = 0;
-        for(UserState u : userStates.values()) {
-            totUser += u.getScore();
-            tot.add(u.getScore());
+
+        int getCategory() {
+            return category;
         }
-        Collections.sort(tot, new IntComparable());  
-        System.out.println(tot.size() + " users with " + totUser + " points, server has " + boardState.totalPoints() + " points " + tot.toString());
-    }
-    
-    private class IntComparable implements Comparator<Integer>{   
+
+        int getQuestion() {
+            return question;
+        }
+
+        int getPoints() {
+            return points;
+        }
+
+        long getExpiryTimestamp() {
+            return expiryTimestamp;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(expiryTimestamp - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
         @Override
-        public int compare(Integer o1, Integer o2) {
-            return (o1>o2 ? -1 : (o1==o2 ? 0 : 1));
+        public int compareTo(Delayed o) {
+            long other = ((PointReservation)o).expiryTimestamp;
+            return expiryTimestamp < other ? -1 : (expiryTimestamp == other ? 0 : 1);
         }
     }
 }
@@ -0,0 +1,603 @@
+package multiplayerquiz.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import multiplayerquiz.common.model.BoardState;
+import multiplayerquiz.common.model.Question;
+import multiplayerquiz.common.model.UserState;
+import multiplayerquiz.common.protocol.Bid;
+import multiplayerquiz.common.protocol.BidAccepted;
+import multiplayerquiz.common.protocol.ClientHello;
+import multiplayerquiz.common.protocol.Leaderboard;
+import multiplayerquiz.common.protocol.LeaderboardRequest;
+import multiplayerquiz.common.protocol.Protocol;
+import multiplayerquiz.common.protocol.ProtocolMessage;
+import multiplayerquiz.common.protocol.ServerHello;
+import multiplayerquiz.common.protocol.WireFormat;
+import multiplayerquiz.server.ServerState.PointReservation;
+
+import org.junit.Test;
+
+public class ServerStateTesting {
+    private static final String QUESTIONS_FILE = "questions.txt";
+    private static final int THREADS = 8, USERS_PER_THREAD = 10, OPERATIONS_PER_THREAD = 20000;
+
+    @Test
+    /**
+     * Many threads bidding and answering at once (some letting reservations
+     * expire, some never answering) must not create or destroy points: user
+     * points plus board points plus reserved points stays equal to the
+     * initial board plus each user's initial score.
+     */
+    public void ServerStateConservesPoints() throws IOException, InterruptedException {
+        final ServerState state = new ServerState(QUESTIONS_FILE, new BoardStateUpdateThread(), 1);
+        final BoardState initialBoard = state.getBoardState();
+        final int initialUserPoints = state.getUserState(UUID.randomUUID()).getScore();
+        final int categories = state.getCategories().size(), questions = state.getQuestions(0).size();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; ++t) {
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        int[] users = new int[USERS_PER_THREAD];
+                        for (int i = 0; i < users.length; ++i)
+                            users[i] = state.getUserHandle(UUID.randomUUID());
+                        start.await();
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; ++i) {
+                            int user = users[random.nextInt(users.length)];
+                            int c = random.nextInt(categories), q = random.nextInt(questions);
+                            PointReservation r = state.tryBid(user, c, q, 1 + random.nextInt(200));
+                            if (r == null)
+                                continue;
+                            int action = random.nextInt(10);
+                            if (action == 0)
+                                continue; //never answered
+                            if (action == 1)
+                                Thread.sleep(2); //answered after expiry
+                            state.redeemReservation(r, random.nextInt(4));
+                        }
+                    } catch (Throwable ex) {
+                        synchronized (failures) {
+                            failures.add(ex);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+        assertTrue(failures.toString(), failures.isEmpty());
+        state.shutdown();
+
+        BoardState board = state.getBoardState();
+        for (int c = 0; c < categories; ++c)
+            for (int q = 0; q < questions; ++q)
+                assertTrue(board.getAvailablePoints(c, q) >= 0);
+        assertEquals(initialBoard.totalPoints() + initialUserPoints * state.getUserCount(),
+                board.totalPoints() + state.getUserPoints() + state.getReservedPoints());
+        assertEquals(state.getUserPoints(), state.getUserPointsTotal());
+        assertEquals(state.getReservedPoints(), state.getReservedPointsTotal());
+    }
+
+    @Test
+    /**
+     * Batches of bids on overlapping cells (including the same cell twice)
+     * from many threads at once must not deadlock or create or destroy
+     * points, and each batch should schedule one broadcast.
+     */
+    public void ServerStateBatchesConservePoints() throws IOException, InterruptedException {
+        BoardStateUpdateThread updateThread = new BoardStateUpdateThread();
+        final ServerState state = new ServerState(QUESTIONS_FILE, updateThread);
+        final BoardState initialBoard = state.getBoardState();
+        final int initialUserPoints = state.getUserState(UUID.randomUUID()).getScore();
+        final int categories = state.getCategories().size(), questions = state.getQuestions(0).size();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; ++t) {
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        int user = state.getUserHandle(UUID.randomUUID());
+                        start.await();
+                        for (int i = 0; i < OPERATIONS_PER_THREAD / 10; ++i) {
+                            List<Bid> bids = new ArrayList<Bid>();
+                            for (int b = 1 + random.nextInt(8); b > 0; --b)
+                                bids.add(new Bid(random.nextInt(categories), random.nextInt(questions), 1 + random.nextInt(200)));
+                            List<PointReservation> rs = new ArrayList<PointReservation>();
+                            List<Integer> answers = new ArrayList<Integer>();
+                            for (PointReservation r : state.tryBids(user, bids))
+                                if (r != null) {
+                                    rs.add(r);
+                                    answers.add(random.nextInt(4));
+                                }
+                            assertEquals(rs.size(), state.redeemReservations(rs, answers).length);
+                        }
+                    } catch (Throwable ex) {
+                        synchronized (failures) {
+                            failures.add(ex);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+        assertTrue(failures.toString(), failures.isEmpty());
+
+        BoardState board = state.getBoardState();
+        assertEquals(initialBoard.totalPoints() + initialUserPoints * state.getUserCount(),
+                board.totalPoints() + state.getUserPoints() + state.getReservedPoints());
+        assertEquals(0, state.getReservedPoints());
+
+        int user = state.getUserHandle(UUID.randomUUID());
+        long produced = updateThread.getStatesProduced();
+        PointReservation[] rs = state.tryBids(user, Arrays.asList(new Bid(0, 0, 1), new Bid(1, 0, 1), new Bid(0, 0, 1)));
+        assertEquals(produced + 1, updateThread.getStatesProduced());
+        state.redeemReservations(Arrays.asList(rs), Arrays.asList(-1, -1, -1));
+        assertEquals(produced + 2, updateThread.getStatesProduced());
+        assertEquals(board.totalPoints() + 3, state.getBoardState().totalPoints());
+        state.shutdown();
+    }
+
+    @Test
+    /**
+     * A bid on a cell outside the board must be rejected before anything
+     * changes, not land on another cell (question questionsPerCategory of
+     * category 0 has the same flat index as question 0 of category 1).
+     */
+    public void ServerStateRejectsBadCells() throws IOException, InterruptedException {
+        ServerState state = new ServerState(QUESTIONS_FILE, new BoardStateUpdateThread());
+        int user = state.getUserHandle(UUID.randomUUID());
+        int categories = state.getCategories().size(), questions = state.getQuestions(0).size();
+        BoardState before = state.getBoardState();
+        int[][] bad = {{0, questions}, {categories, 0}, {-1, 0}, {0, -1}};
+        for (int[] cell : bad) {
+            assertFalse(state.hasQuestion(cell[0], cell[1]));
+            try {
+                state.tryBid(user, cell[0], cell[1], 50);
+                fail("bid on "+Arrays.toString(cell));
+            } catch (IndexOutOfBoundsException expected) {
+            }
+            try {
+                state.tryBids(user, Arrays.asList(new Bid(cell[0], cell[1], 50)));
+                fail("batched bid on "+Arrays.toString(cell));
+            } catch (IndexOutOfBoundsException expected) {
+            }
+        }
+        assertEquals(before.totalPoints(), state.getBoardState().totalPoints());
+        assertEquals(0, state.getReservedPoints());
+        state.shutdown();
+    }
+
+    @Test
+    /**
+     * A broadcast handed to the channel must not be dropped to make room,
+     * even if the channel hasn't written any of it yet: the write happens
+     * outside the queue's lock, so it may be under way.
+     */
+    public void OutboundQueueKeepsInFlightBroadcasts() throws IOException {
+        OutboundQueue queue = new OutboundQueue(SlowConsumerPolicy.DROP_BOARD_STATES, 1, Long.MAX_VALUE);
+        ByteBuffer first = ByteBuffer.wrap(new byte[]{1}), second = ByteBuffer.wrap(new byte[]{2}),
+                third = ByteBuffer.wrap(new byte[]{3});
+        queue.addBroadcast(first);
+        ByteBuffer[] peeked = queue.peekAll();
+        assertSame(first, peeked[0]);
+        //Nothing written yet, but first is in flight, so it stays.
+        queue.addBroadcast(second);
+        //second wasn't handed over, so it's the one dropped now.
+        queue.addBroadcast(third);
+        assertTrue(Arrays.equals(new ByteBuffer[]{first, third}, queue.peekAll()));
+        first.position(1);
+        assertFalse(queue.removeWritten());
+        assertTrue(Arrays.equals(new ByteBuffer[]{third}, queue.peekAll()));
+    }
+
+    @Test
+    /**
+     * Expired reservations should go back on the board without waiting for a
+     * bid on that question, and redeemed ones shouldn't.
+     */
+    public void ServerStateExpiresPromptly() throws IOException, InterruptedException {
+        ServerState state = new ServerState(QUESTIONS_FILE, new BoardStateUpdateThread(), 50);
+        int user = state.getUserHandle(UUID.randomUUID());
+        int initial = state.getBoardState().getAvailablePoints(1, 1);
+        PointReservation expiring = state.tryBid(user, 1, 1, 300);
+        PointReservation redeemed = state.tryBid(user, 0, 0, 200);
+        assertNotNull(expiring);
+        assertEquals(initial - 300, state.getBoardState().getAvailablePoints(1, 1));
+        state.redeemReservation(redeemed, 0);
+        int afterRedeem = state.getBoardState().getAvailablePoints(0, 0);
+
+        Thread.sleep(500);
+        assertEquals(initial, state.getBoardState().getAvailablePoints(1, 1));
+        assertEquals(afterRedeem, state.getBoardState().getAvailablePoints(0, 0));
+        assertEquals(1, state.getExpiryThread().getExpired());
+        assertEquals(0, state.getReservedPoints());
+        state.shutdown();
+    }
+
+    @Test
+    /**
+     * A server restarted from the journal of a game (ending in a partly
+     * written record) should have the same board, scores and outstanding
+     * reservations, and the reservations should still be redeemable.
+     */
+    public void ServerStateReplaysJournal() throws IOException, InterruptedException {
+        File file = journalFile();
+        long expiry = TimeUnit.HOURS.toMillis(1);
+        Journal journal = Journal.open(file, JournalMode.GROUP_COMMIT);
+        ServerState state = new ServerState(QUESTIONS_FILE, new BoardStateUpdateThread(), expiry, 1000, journal);
+        int categories = state.getCategories().size(), questions = state.getQuestions(0).size();
+        Random random = new Random(0);
+        UUID[] users = new UUID[5];
+        int[] handles = new int[users.length];
+        for (int i = 0; i < users.length; ++i) {
+            users[i] = UUID.randomUUID();
+            handles[i] = state.getUserHandle(users[i]);
+        }
+        List<PointReservation> outstanding = new ArrayList<PointReservation>();
+        for (int i = 0; i < 2000; ++i) {
+            int user = handles[random.nextInt(handles.length)];
+            int c = random.nextInt(categories), q = random.nextInt(questions);
+            PointReservation r = state.tryBid(user, c, q, 1 + random.nextInt(50));
+            if (r == null)
+                continue;
+            int action = random.nextInt(10);
+            if (action == 0)
+                outstanding.add(r);
+            else if (action == 1)
+                state.expire(r);
+            else {
+                if (action == 2)
+                    state.expire(r); //then answered after expiry
+                state.redeemReservation(r, random.nextInt(4));
+            }
+        }
+        state.shutdown();
+        journal.close();
+        //A record cut off by a crash: claims 40 bytes, has 3.
+        FileOutputStream out = new FileOutputStream(file.getPath() + ".0", true);
+        out.write(new byte[]{40, 1, 2, 3});
+        out.close();
+
+        journal = Journal.open(file, JournalMode.GROUP_COMMIT);
+        ServerState replayed = new ServerState(QUESTIONS_FILE, new BoardStateUpdateThread(), expiry, 1000, journal);
+        assertEquals(state.getBoardState().toProtocolString(), replayed.getBoardState().toProtocolString());
+        for (UUID user : users)
+            assertEquals(state.getUserState(user).toProtocolString(), replayed.getUserState(user).toProtocolString());
+        assertEquals(state.getUserCount(), replayed.getUserCount());
+        assertEquals(state.getReservedPoints(), replayed.getReservedPoints());
+        assertEquals(state.getReservedPointsTotal(), replayed.getReservedPointsTotal());
+        assertEquals(state.getUserPointsTotal(), replayed.getUserPointsTotal());
+
+        PointReservation r = outstanding.get(0);
+        assertEquals("incorrect", replayed.redeemReservation(r, -1));
+        replayed.shutdown();
+        journal.close();
+        //The partial record was dropped and the redemption appended after it.
+        journal = Journal.open(file, JournalMode.ASYNC);
+        replayed = new ServerState(QUESTIONS_FILE, new BoardStateUpdateThread(), expiry, 1000, journal);
+        assertEquals(state.getReservedPoints() - r.getPoints(), replayed.getReservedPoints());
+        replayed.shutdown();
+        journal.close();
+    }
+
+    @Test
+    /**
+     * A server that doesn't wait for durability should still hear about each
+     * change once it's durable, in order, including changes made just before
+     * the journal closes; listeners added after closing are called at once.
+     */
+    public void ServerStateCallsDurabilityListenersInOrder() throws IOException, InterruptedException {
+        File file = journalFile();
+        Journal journal = Journal.open(file, JournalMode.GROUP_COMMIT);
+        ServerState state = new ServerState(QUESTIONS_FILE, new BoardStateUpdateThread(), TimeUnit.HOURS.toMillis(1), 1000, journal);
+        state.setAwaitDurable(false);
+        int user = state.getUserHandle(UUID.randomUUID());
+        final List<Integer> durable = new ArrayList<Integer>();
+        for (int i = 0; i < 500; ++i) {
+            PointReservation r = state.tryBid(user, i % 2, 0, 1);
+            state.redeemReservation(r, -1);
+            final int n = i;
+            state.whenDurable(new Journal.DurabilityListener() {
+                @Override
+                public void durable() {
+                    synchronized (durable) {
+                        durable.add(n);
+                    }
+                }
+                @Override
+                public void failed(IOException ex) {
+                    throw new AssertionError(ex);
+                }
+            });
+        }
+        state.shutdown();
+        journal.close();
+        synchronized (durable) {
+            assertEquals(500, durable.size());
+            for (int i = 0; i < durable.size(); ++i)
+                assertEquals(i, (int)durable.get(i));
+        }
+        final boolean[] called = new boolean[1];
+        journal.whenDurable(new Journal.DurabilityListener() {
+            @Override
+            public void durable() {
+                called[0] = true;
+            }
+            @Override
+            public void failed(IOException ex) {
+                throw new AssertionError(ex);
+            }
+        });
+        assertTrue(called[0]);
+    }
+
+    @Test
+    /**
+     * A reply that needn't wait for durability must still not overtake an
+     * earlier one that does: here the Leaderboard requested after a bid
+     * arrives after the BidAccepted, though the BidAccepted is held up.
+     */
+    public void ClientSessionKeepsRepliesInOrder() throws IOException, InterruptedException {
+        File file = journalFile();
+        Journal journal = Journal.open(file, JournalMode.GROUP_COMMIT);
+        BoardStateUpdateThread updateThread = new BoardStateUpdateThread();
+        ServerState state = new ServerState(QUESTIONS_FILE, updateThread, TimeUnit.HOURS.toMillis(1), 1000, journal);
+        state.setAwaitDurable(false);
+        final Thread testThread = Thread.currentThread();
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> written = new ArrayList<String>();
+        ClientConnection connection = new ClientConnection() {
+            @Override
+            public WireFormat getWireFormat() {
+                return WireFormat.TEXT;
+            }
+            @Override
+            public void setWireFormat(WireFormat format) {
+                throw new AssertionError(format);
+            }
+            @Override
+            public void write(ByteBuffer message) throws IOException {
+                //Hold up replies written by the journal's writer thread.
+                if (Thread.currentThread() != testThread)
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new AssertionError(ex);
+                    }
+                byte[] bytes = new byte[message.remaining()];
+                message.duplicate().get(bytes);
+                ProtocolMessage m = Protocol.deserialize(new String(bytes, WireFormat.TEXT_CHARSET));
+                synchronized (written) {
+                    written.add(m.getClass().getSimpleName());
+                }
+            }
+            @Override
+            public void broadcast(ByteBuffer message) {
+            }
+            @Override
+            public void disconnect() {
+                throw new AssertionError("disconnected");
+            }
+        };
+        ClientSession session = new ClientSession(state, updateThread, connection);
+        session.handle(new ClientHello(Bid.FEATURE, Leaderboard.FEATURE));
+        session.handle(new Bid(0, 0, 1, 7));
+        session.handle(new LeaderboardRequest(3));
+        release.countDown();
+        state.shutdown();
+        journal.close();
+        session.close();
+        synchronized (written) {
+            assertEquals(Arrays.asList("ServerHello", "BoardStateUpdate", "BidAccepted", "Leaderboard"), written);
+        }
+    }
+
+    @Test
+    /**
+     * Checkpoints taken while threads are bidding and answering should each
+     * hold the state as of some moment, so a server restarted from the last
+     * snapshot plus the journal after it should have the same board, scores
+     * and reservations as the original.  The snapshotted journal segments
+     * should be gone.
+     */
+    public void ServerStateRestoresSnapshot() throws IOException, InterruptedException {
+        File file = journalFile();
+        long expiry = TimeUnit.HOURS.toMillis(1);
+        Journal journal = Journal.open(file, JournalMode.ASYNC);
+        final ServerState state = new ServerState(QUESTIONS_FILE, new BoardStateUpdateThread(), expiry, 1000, journal);
+        final int categories = state.getCategories().size(), questions = state.getQuestions(0).size();
+        final List<UUID> users = new ArrayList<UUID>();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; ++t) {
+            final Random random = new Random(t);
+            final UUID id = UUID.randomUUID();
+            users.add(id);
+            final int user = state.getUserHandle(id);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; ++i) {
+                            int c = random.nextInt(categories), q = random.nextInt(questions);
+                            PointReservation r = state.tryBid(user, c, q, 1);
+                            if (r != null && random.nextInt(10) != 0)
+                                state.redeemReservation(r, random.nextInt(4));
+                        }
+                    } catch (Throwable ex) {
+                        synchronized (failures) {
+                            failures.add(ex);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        int checkpoints = 0;
+        for (Thread t : threads)
+            while (t.isAlive()) {
+                assertTrue(state.checkpoint());
+                ++checkpoints;
+            }
+        for (Thread t : threads)
+            t.join();
+        assertTrue(failures.toString(), failures.isEmpty());
+        state.shutdown();
+        journal.close();
+        assertTrue(checkpoints > 1);
+        assertTrue(journal.getSnapshotFile().exists());
+        assertFalse(new File(file.getPath() + ".0").exists());
+
+        journal = Journal.open(file, JournalMode.ASYNC);
+        ServerState restored = new ServerState(QUESTIONS_FILE, new BoardStateUpdateThread(), expiry, 1000, journal);
+        assertEquals(state.getBoardState().toProtocolString(), restored.getBoardState().toProtocolString());
+        for (UUID user : users)
+            assertEquals(state.getUserState(user).toProtocolString(), restored.getUserState(user).toProtocolString());
+        assertEquals(state.getUserCount(), restored.getUserCount());
+        assertEquals(state.getReservedPoints(), restored.getReservedPoints());
+        assertEquals(state.getUserPoints(), restored.getUserPointsTotal());
+        restored.shutdown();
+        journal.close();
+    }
+
+    @Test
+    /**
+     * The cached BidAccepted messages and encodings and ServerHello
+     * categories should encode exactly what building the messages afresh
+     * does.
+     */
+    public void ServerStateCachesEncodings() throws IOException, InterruptedException {
+        ServerState state = new ServerState(QUESTIONS_FILE, new BoardStateUpdateThread());
+        int categories = state.getCategories().size(), questions = state.getQuestions(0).size();
+        for (WireFormat format : WireFormat.values())
+            for (int c = 0; c < categories; ++c)
+                for (int q = 0; q < questions; ++q) {
+                    ByteBuffer encoded = state.getEncodedBidAccepted(c, q, format);
+                    byte[] bytes = new byte[encoded.remaining()];
+                    encoded.duplicate().get(bytes);
+                    assertTrue(Arrays.equals(format.encode(new BidAccepted(state.getQuestions(c).get(q))), bytes));
+                    assertSame(encoded, state.getEncodedBidAccepted(c, q, format));
+                    assertSame(state.getBidAccepted(c, q), state.getBidAccepted(c, q));
+                    assertEquals(Protocol.serialize(new BidAccepted(state.getQuestions(c).get(q))),
+                            Protocol.serialize(state.getBidAccepted(c, q)));
+                }
+
+        UserState user = state.getUserState(UUID.randomUUID());
+        List<String> features = Arrays.asList(WireFormat.BINARY_FEATURE);
+        for (int i = 0; i < 2; ++i)
+            assertEquals(Protocol.serialize(new ServerHello(state.getCategories(), questions, user, features)),
+                    Protocol.serialize(new ServerHello(state.getServerHelloCategories(), user, features)));
+        state.shutdown();
+    }
+
+    @Test
+    /**
+     * The question bank parses multi-line questions and tolerates trailing
+     * blank lines.
+     */
+    public void QuestionBankParses() throws IOException {
+        String text = "2 1\nFirst\nSecond\n"
+                + "2 3 1\nline one\nline two\na\nb\nc\n"
+                + "1 2 0\nonly line\nyes\nno\n\n\n";
+        QuestionBank bank = QuestionBank.parse(new StringReader(text), "test");
+        assertEquals(Arrays.asList("First", "Second"), bank.getCategories());
+        assertEquals(1, bank.getQuestionsPerCategory());
+        assertEquals("line one\nline two\n", bank.getQuestions(0).get(0).getQuestion());
+        assertEquals(Arrays.asList("a", "b", "c"), bank.getQuestions(0).get(0).getChoices());
+        assertEquals(1, bank.getAnswer(0, 0));
+        assertEquals("only line\n", bank.getQuestions(1).get(0).getQuestion());
+        assertEquals(0, bank.getAnswer(1, 0));
+    }
+
+    @Test
+    /**
+     * Malformed question banks are reported against the offending line.
+     */
+    public void QuestionBankReportsLineNumbers() {
+        String header = "1 1\nCategory\n";
+        assertBankError("1 x\n", "test:1:");
+        assertBankError(header + "1 2 2\nq\na\nb\n", "test:3:");
+        assertBankError(header + "1 2\nq\na\nb\n", "test:3:");
+        assertBankError(header + "2 2 0\nq\nq\na\n", "test:7:");
+        assertBankError(header + "1 2 0\nq\na\nb\nextra\n", "test:7:");
+    }
+
+    @Test
+    /**
+     * A compiled bank loads back with the same categories, questions,
+     * protocol strings and answers, and a truncated one is rejected.
+     */
+    public void QuestionBankCompiles() throws IOException {
+        QuestionBank parsed = QuestionBank.load(QUESTIONS_FILE);
+        File file = new File(journalFile().getParentFile(), "questions.bank");
+        parsed.compile(file);
+        QuestionBank mapped = QuestionBank.load(file.getPath());
+        assertEquals(parsed.getCategories(), mapped.getCategories());
+        assertEquals(parsed.getQuestionsPerCategory(), mapped.getQuestionsPerCategory());
+        for (int c = 0; c < parsed.getCategories().size(); ++c)
+            for (int q = 0; q < parsed.getQuestionsPerCategory(); ++q) {
+                Question expected = parsed.getQuestions(c).get(q), actual = mapped.getQuestions(c).get(q);
+                assertEquals(expected.getQuestion(), actual.getQuestion());
+                assertEquals(expected.getChoices(), actual.getChoices());
+                assertEquals(expected.toProtocolString(), actual.toProtocolString());
+                assertEquals(parsed.getAnswer(c, q), mapped.getAnswer(c, q));
+            }
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+        try {
+            QuestionBank.load(file.getPath());
+            fail("loaded truncated bank");
+        } catch (IOException expected) {
+        }
+        file.delete();
+    }
+
+    private static void assertBankError(String text, String prefix) {
+        try {
+            QuestionBank.parse(new StringReader(text), "test");
+            fail("parsed malformed bank: " + text);
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith(prefix));
+        }
+    }
+
+    /**
+     * @return a journal name in a new temporary directory
+     */
+    private static File journalFile() throws IOException {
+        File dir = Files.createTempDirectory("ServerStateTesting").toFile();
+        dir.deleteOnExit();
+        return new File(dir, "quiz.journal");
+    }
+}
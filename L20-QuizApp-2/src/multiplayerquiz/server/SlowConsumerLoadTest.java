@@ -0,0 +1,127 @@
+package multiplayerquiz.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import multiplayerquiz.common.protocol.*;
+
+/**
+ * Load test: starts a server in the given mode with one client that says hello
+ * and then never reads, and checks that bidders and an observing client are
+ * still served while the slow client's queue is full.  Reports the
+ * slow-consumer counters for whichever policy is configured, so run with e.g.
+ * <pre>-Dmultiplayerquiz.maxBroadcastsPerSecond=0 -Dmultiplayerquiz.slowConsumerPolicy=disconnect
+ * -Dmultiplayerquiz.slowConsumerDisconnectSeconds=2
+ * SlowConsumerLoadTest questionsFile [mode] [bidders] [port]</pre>
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/20/2014
+ */
+public final class SlowConsumerLoadTest {
+    private SlowConsumerLoadTest() {}
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String questionsFile = args[0];
+        ServerMode mode = args.length > 1 ? ServerMode.parse(args[1]) : ServerMode.THREADS;
+        int bidders = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : MainServerThread.SERVER_PORT + 2;
+
+        MainServerThread server = new MainServerThread(questionsFile, mode, port);
+        server.setDaemon(true);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("localhost", port);
+
+        //A small receive buffer so the server's send buffer fills sooner.
+        Socket slow = new Socket();
+        slow.setReceiveBufferSize(1024);
+        connect(slow, address);
+        send(new BufferedWriter(new OutputStreamWriter(slow.getOutputStream())), new ClientHello());
+
+        Socket observer = new Socket();
+        connect(observer, address);
+        final BufferedReader observerReader = new BufferedReader(new InputStreamReader(observer.getInputStream()));
+        send(new BufferedWriter(new OutputStreamWriter(observer.getOutputStream())), new ClientHello());
+        final AtomicLong observed = new AtomicLong();
+        Thread observerThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (observerReader.readLine() != null)
+                        observed.incrementAndGet();
+                } catch (IOException ex) {
+                    //socket closed at the end of the test
+                }
+            }
+        };
+        observerThread.setDaemon(true);
+        observerThread.start();
+
+        long begin = System.nanoTime();
+        int bids = 0;
+        for (int i = 0; i < bidders; ++i) {
+            Socket socket = new Socket();
+            connect(socket, address);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            send(writer, new ClientHello());
+            ServerHello hello = (ServerHello)nextReply(reader);
+            for (int c = 0; c < hello.getCategories().size(); ++c)
+                for (int q = 0; q < hello.getQuestionsPerCategory(); ++q) {
+                    send(writer, new Bid(c, q, 1));
+                    if (nextReply(reader) instanceof BidAccepted) {
+                        send(writer, new Answer(0));
+                        nextReply(reader);
+                        ++bids;
+                    }
+                }
+            socket.close();
+        }
+        long bidMillis = (System.nanoTime() - begin) / 1000000;
+        Thread.sleep(1000);
+
+        System.out.printf("mode %s, policy %s: %d bids from %d bidders in %d ms (%.0f bids/s)%n",
+                mode, System.getProperty("multiplayerquiz.slowConsumerPolicy", "drop_board_states"),
+                bids, bidders, bidMillis, bids * 1000.0 / Math.max(bidMillis, 1));
+        System.out.printf("observer received %d messages%n", observed.get());
+        System.out.printf("broadcasts dropped: %d, slow consumers disconnected: %d, backpressure waits: %d (%d ms)%n",
+                OutboundQueue.getBroadcastsDropped(), OutboundQueue.getSlowConsumersDisconnected(),
+                OutboundQueue.getBackpressureWaits(), OutboundQueue.getBackpressureWaitNanos() / 1000000);
+        slow.close();
+        observer.close();
+    }
+
+    private static void connect(Socket socket, InetSocketAddress address) throws IOException, InterruptedException {
+        //The server thread may not have bound its socket yet.
+        for (int tries = 0; ; ++tries)
+            try {
+                socket.connect(address);
+                return;
+            } catch (ConnectException ex) {
+                if (tries == 50)
+                    throw ex;
+                Thread.sleep(100);
+            }
+    }
+
+    private static void send(BufferedWriter writer, ProtocolMessage message) throws IOException {
+        writer.write(Protocol.serialize(message));
+        writer.flush();
+    }
+
+    /**
+     * @return the next message that isn't a board broadcast
+     */
+    private static ProtocolMessage nextReply(BufferedReader reader) throws IOException {
+        ProtocolMessage reply;
+        do {
+            reply = Protocol.deserialize(reader.readLine());
+        } while (reply instanceof BoardStateUpdate);
+        return reply;
+    }
+}
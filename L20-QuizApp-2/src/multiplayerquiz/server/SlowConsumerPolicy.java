@@ -0,0 +1,35 @@
+package multiplayerquiz.server;
+
+/**
+ * What to do with board broadcasts for a client whose outbound queue is full
+ * because it isn't reading fast enough.  Replies to the client's own requests
+ * are always queued.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/20/2014
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Drop the oldest queued board broadcast to make room.  The client sees
+     * fewer intermediate states (delta clients will see a gap and ask for a
+     * snapshot).
+     */
+    DROP_BOARD_STATES,
+    /**
+     * Drop as above, but disconnect the client if its queue stays full for
+     * longer than the configured time.
+     */
+    DISCONNECT,
+    /**
+     * Block the broadcaster until the client makes room, slowing broadcasts
+     * to every client down to this client's pace.
+     */
+    BACKPRESSURE;
+
+    /**
+     * Parses a policy name (case-insensitive, dashes for underscores).
+     * @throws IllegalArgumentException if there's no policy with that name
+     */
+    public static SlowConsumerPolicy parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,51 @@
+package multiplayerquiz.server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically checkpoints the ServerState, so a restart loads the latest
+ * snapshot and replays a short journal tail rather than the whole game.
+ * Checkpoints are skipped while nothing is being journaled.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/26/2014
+ */
+final class SnapshotThread extends Thread {
+    private final ServerState state;
+    private final Journal journal;
+    private final long intervalMillis;
+    SnapshotThread(ServerState state, Journal journal, long intervalMillis) {
+        super("SnapshotThread");
+        setDaemon(true);
+        this.state = state;
+        this.journal = journal;
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void run() {
+        long lastRecords = journal.getRecords();
+        try {
+            while (true) {
+                TimeUnit.MILLISECONDS.sleep(intervalMillis);
+                long records = journal.getRecords();
+                if (records == lastRecords)
+                    continue;
+                lastRecords = records;
+                long begin = System.nanoTime();
+                try {
+                    state.checkpoint();
+                } catch (IOException ex) {
+                    //The journal still has everything; try again next time.
+                    ex.printStackTrace();
+                    continue;
+                }
+                System.out.println(String.format("checkpoint of %d users: %d ms (bids paused %.1f ms), snapshot %d KB",
+                        state.getUserCount(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin),
+                        state.getLastCheckpointPauseNanos() / 1e6, journal.getSnapshotFile().length() / 1024));
+            }
+        } catch (InterruptedException ex) {
+            //shutting down
+        }
+    }
+}
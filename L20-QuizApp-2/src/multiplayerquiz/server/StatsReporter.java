@@ -0,0 +1,57 @@
+package multiplayerquiz.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically logs the point totals and the broadcast, expiry and
+ * slow-consumer counters.  The totals are running totals kept by ServerState,
+ * so a report costs the same however many users there are, and bids and
+ * answers do no logging themselves.  Reports are skipped while nothing is
+ * changing.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/23/2014
+ */
+final class StatsReporter extends Thread {
+    private final ServerState state;
+    private final BoardStateUpdateThread updateThread;
+    private final long intervalMillis;
+    StatsReporter(ServerState state, BoardStateUpdateThread updateThread, long intervalMillis) {
+        super("StatsReporter");
+        setDaemon(true);
+        this.state = state;
+        this.updateThread = updateThread;
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void run() {
+        long lastUsers = -1, lastChanges = -1;
+        try {
+            while (true) {
+                long users = state.getUserCount();
+                //Every board change is signalled to the update thread.
+                long changes = updateThread.getStatesProduced();
+                if (users != lastUsers || changes != lastChanges)
+                    report();
+                lastUsers = users;
+                lastChanges = changes;
+                TimeUnit.MILLISECONDS.sleep(intervalMillis);
+            }
+        } catch (InterruptedException ex) {
+            //shutting down
+        }
+    }
+
+    private void report() {
+        ReservationExpiryThread expiry = state.getExpiryThread();
+        System.out.println(String.format("%d users with %d points, board has %d points, %d points reserved",
+                state.getUserCount(), state.getUserPointsTotal(), state.getBoardPoints(),
+                state.getReservedPointsTotal()));
+        System.out.println(String.format("  %d board changes, %d broadcasts; %d reservations expired, lag mean %.1f ms max %d ms",
+                updateThread.getStatesProduced(), updateThread.getBroadcastsSent(),
+                expiry.getExpired(), expiry.getMeanLagMillis(), expiry.getMaxLagMillis()));
+        System.out.println(String.format("  slow consumers: %d broadcasts dropped, %d disconnected, %d backpressure waits (%d ms)",
+                OutboundQueue.getBroadcastsDropped(), OutboundQueue.getSlowConsumersDisconnected(),
+                OutboundQueue.getBackpressureWaits(), TimeUnit.NANOSECONDS.toMillis(OutboundQueue.getBackpressureWaitNanos())));
+    }
+}
@@ -0,0 +1,63 @@
+package multiplayerquiz.server;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import multiplayerquiz.server.ServerState.PointReservation;
+
+/**
+ * Measures the heap used per user: creates a ServerState, adds many users
+ * who each answer a few questions, and compares the heap used before and
+ * after (the leaderboard's per-user entries included).
+ * <pre>UserHeapBenchmark questionsFile [users] [answersPerUser]</pre>
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/27/2014
+ */
+public final class UserHeapBenchmark {
+    private static final long RESERVATION_EXPIRY_MILLIS = 1000;
+    private UserHeapBenchmark() {}
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String questionsFile = args[0];
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+        int answers = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        //Redeemed reservations stay queued for expiry until they would have
+        //expired, so keep that short and wait it out before measuring.
+        ServerState state = new ServerState(questionsFile, new BoardStateUpdateThread(),
+                RESERVATION_EXPIRY_MILLIS, Integer.MAX_VALUE / 1000);
+        int categories = state.getCategories().size(), questions = state.getQuestions(0).size();
+        long baseHeap = usedHeap();
+
+        Random random = new Random(0);
+        long begin = System.nanoTime();
+        for (int i = 0; i < users; ++i) {
+            int user = state.getUserHandle(new UUID(random.nextLong(), random.nextLong()));
+            for (int a = 0; a < answers; ++a) {
+                int c = random.nextInt(categories), q = random.nextInt(questions);
+                PointReservation r = state.tryBid(user, c, q, 1);
+                state.redeemReservation(r, random.nextInt(4));
+            }
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        //Let the leaderboard catch up before measuring.
+        while (state.getLeaderboard().getApplied() < (long)users * (answers + 1))
+            Thread.sleep(10);
+        Thread.sleep(2 * RESERVATION_EXPIRY_MILLIS);
+        long heap = usedHeap();
+        System.out.printf("%d users x %d answers (%d x %d board) in %d ms%n", users, answers, categories, questions, millis);
+        System.out.printf("heap used: %d KB -> %d KB, %d bytes/user%n", baseHeap / 1024, heap / 1024,
+                (heap - baseHeap) / users);
+        state.shutdown();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,224 @@
+package multiplayerquiz.server;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import multiplayerquiz.common.model.UserState;
+import multiplayerquiz.common.protocol.BinaryEncoder;
+
+/**
+ * Users' scores and answer histories, stored densely.  Each user is given an
+ * int slot when first seen, and each slot's score and history are packed into
+ * pages of ints, so a user costs their ints plus their id's index entry
+ * rather than a UserState (and its arrays) that's copied on every answer.
+ * UserStates are built from the ints only when one's wanted, to send to the
+ * user.  Slots double as the user handles ServerState's operations take, so
+ * ids are only looked up when a user connects.
+ *
+ * Slots are never removed.  Each slot's ints are guarded by one of a fixed
+ * set of locks chosen by slot number; pages are only added, under addLock,
+ * and a slot's page is published before the slot is, so readers with a slot
+ * can find its page without locking.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/27/2014
+ */
+final class UserStore {
+    private static final int PAGE_SHIFT = 10, PAGE_SLOTS = 1 << PAGE_SHIFT, PAGE_MASK = PAGE_SLOTS - 1;
+    private static final int STRIPES = 64;
+    private final int initialScore, categories, questionsPerCategory;
+    /**
+     * Ints per slot: the score, then the history category by category.
+     */
+    private final int stride;
+    /**
+     * Slots by id; added to under addLock.
+     */
+    private final UuidIndex slots = new UuidIndex();
+    private final ReentrantLock addLock = new ReentrantLock();
+    /**
+     * Slot data and ids (two longs per slot), PAGE_SLOTS slots to a page.
+     */
+    private volatile int[][] pages = new int[0][];
+    private volatile long[][] idPages = new long[0][];
+    private volatile int size;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    /**
+     * While a snapshot is being taken, the state of each slot updated since
+     * the snapshot began as of its beginning, else null; see
+     * {@link #beginSnapshot()}.
+     */
+    private volatile ConcurrentMap<Integer, UserState> preImages;
+    private int snapshotSize;
+
+    UserStore(int initialScore, int categories, int questionsPerCategory) {
+        this.initialScore = initialScore;
+        this.categories = categories;
+        this.questionsPerCategory = questionsPerCategory;
+        this.stride = 1 + categories * questionsPerCategory;
+        for (int i = 0; i < stripes.length; ++i)
+            stripes[i] = new ReentrantLock();
+    }
+
+    /**
+     * @return the user's slot, or -1 if the user hasn't been added
+     */
+    int slot(UUID user) {
+        return slots.get(user.getMostSignificantBits(), user.getLeastSignificantBits());
+    }
+
+    /**
+     * Adds a user with the initial score and an empty history.
+     * @return the user's new slot, or -1 if the user was already added
+     */
+    int add(UUID user) {
+        addLock.lock();
+        try {
+            if (slot(user) != -1)
+                return -1;
+            int slot = size;
+            int page = slot >> PAGE_SHIFT;
+            if (page == pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(pages.length * 2, 1));
+                idPages = Arrays.copyOf(idPages, pages.length);
+            }
+            if (pages[page] == null) {
+                pages[page] = new int[PAGE_SLOTS * stride];
+                idPages[page] = new long[PAGE_SLOTS * 2];
+            }
+            int offset = (slot & PAGE_MASK) * 2;
+            idPages[page][offset] = user.getMostSignificantBits();
+            idPages[page][offset + 1] = user.getLeastSignificantBits();
+            pages[page][(slot & PAGE_MASK) * stride] = initialScore;
+            size = slot + 1;
+            slots.add(user.getMostSignificantBits(), user.getLeastSignificantBits(), slot);
+            return slot;
+        } finally {
+            addLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of users
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Writes the slot's id as two longs, without making a UUID.
+     */
+    void writeId(int slot, BinaryEncoder out) {
+        long[] page = idPages[slot >> PAGE_SHIFT];
+        int offset = (slot & PAGE_MASK) * 2;
+        out.writeLong(page[offset]);
+        out.writeLong(page[offset + 1]);
+    }
+
+    int score(int slot) {
+        ReentrantLock lock = stripe(slot);
+        lock.lock();
+        try {
+            return pages[slot >> PAGE_SHIFT][(slot & PAGE_MASK) * stride];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a UserState holding the slot's current score and history
+     */
+    UserState get(int slot) {
+        ReentrantLock lock = stripe(slot);
+        lock.lock();
+        try {
+            return view(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds pointUpdate to the slot's score and to its history for the
+     * question, as UserState.withUpdate does.
+     */
+    void update(int slot, int category, int question, int pointUpdate) {
+        ReentrantLock lock = stripe(slot);
+        lock.lock();
+        try {
+            ConcurrentMap<Integer, UserState> preImages = this.preImages;
+            if (preImages != null && slot < snapshotSize && !preImages.containsKey(slot))
+                preImages.put(slot, view(slot));
+            int[] page = pages[slot >> PAGE_SHIFT];
+            int offset = (slot & PAGE_MASK) * stride;
+            page[offset] += pointUpdate;
+            page[offset + 1 + category * questionsPerCategory + question] += pointUpdate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the slot's score and history, when loading a snapshot.
+     */
+    void set(int slot, UserState state) {
+        ReentrantLock lock = stripe(slot);
+        lock.lock();
+        try {
+            int[] page = pages[slot >> PAGE_SHIFT];
+            int offset = (slot & PAGE_MASK) * stride;
+            page[offset] = state.getScore();
+            for (int c = 0; c < categories; ++c)
+                for (int q = 0; q < questionsPerCategory; ++q)
+                    page[offset + 1 + c * questionsPerCategory + q] = state.getHistory(c, q);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts a snapshot: from now until {@link #endSnapshot()},
+     * {@link #getAtSnapshot(int)} returns slots' states as of this call.  The
+     * caller must ensure no update is in progress.
+     * @return the number of users at the snapshot
+     */
+    int beginSnapshot() {
+        snapshotSize = size;
+        preImages = new ConcurrentHashMap<Integer, UserState>();
+        return snapshotSize;
+    }
+
+    /**
+     * @param slot a slot less than the number returned by beginSnapshot
+     * @return the slot's state as of {@link #beginSnapshot()}
+     */
+    UserState getAtSnapshot(int slot) {
+        ReentrantLock lock = stripe(slot);
+        lock.lock();
+        try {
+            UserState preImage = preImages.get(slot);
+            return preImage != null ? preImage : view(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void endSnapshot() {
+        preImages = null;
+    }
+
+    /**
+     * Must be called with the slot's lock held.
+     */
+    private UserState view(int slot) {
+        int offset = (slot & PAGE_MASK) * stride;
+        int[] page = pages[slot >> PAGE_SHIFT];
+        return new UserState(page[offset], categories, questionsPerCategory, page, offset + 1);
+    }
+
+    private ReentrantLock stripe(int slot) {
+        return stripes[slot & (STRIPES - 1)];
+    }
+}
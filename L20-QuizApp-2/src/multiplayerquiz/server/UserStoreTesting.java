@@ -0,0 +1,64 @@
+package multiplayerquiz.server;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class UserStoreTesting {
+
+    @Test
+    /**
+     * The UuidIndex should find everything added, through growth, for both
+     * random ids and ids differing in only a few bits, and nothing else.
+     */
+    public void UuidIndexMatchesHashMap() {
+        Random random = new Random(0);
+        UuidIndex index = new UuidIndex();
+        Map<UUID, Integer> expected = new HashMap<UUID, Integer>();
+        for (int i = 0; i < 50000; ++i) {
+            UUID id = i % 2 == 0 ? UUID.randomUUID() : new UUID(i % 7, i);
+            if (expected.containsKey(id))
+                continue;
+            index.add(id.getMostSignificantBits(), id.getLeastSignificantBits(), expected.size());
+            expected.put(id, expected.size());
+        }
+        for (Map.Entry<UUID, Integer> e : expected.entrySet())
+            assertEquals((int)e.getValue(), index.get(e.getKey().getMostSignificantBits(), e.getKey().getLeastSignificantBits()));
+        for (int i = 0; i < 1000; ++i)
+            assertEquals(-1, index.get(random.nextLong(), random.nextLong()));
+        assertEquals(-1, index.get(7, 1));
+    }
+
+    @Test
+    /**
+     * During a snapshot, users should read as they were when it began, however
+     * they've been updated since; afterwards, as they are.
+     */
+    public void UserStoreSnapshotsAtCut() {
+        UserStore store = new UserStore(100, 2, 3);
+        UUID idA = UUID.randomUUID();
+        int a = store.add(idA), b = store.add(UUID.randomUUID());
+        assertEquals(-1, store.add(idA));
+        assertEquals(a, store.slot(idA));
+        store.update(a, 0, 1, 10);
+        String aAtCut = store.get(a).toProtocolString(), bAtCut = store.get(b).toProtocolString();
+
+        assertEquals(2, store.beginSnapshot());
+        store.update(a, 1, 2, -5);
+        store.update(a, 0, 1, 7);
+        int c = store.add(UUID.randomUUID());
+        store.update(c, 0, 0, 1);
+        assertEquals(aAtCut, store.getAtSnapshot(a).toProtocolString());
+        assertEquals(bAtCut, store.getAtSnapshot(b).toProtocolString());
+        store.endSnapshot();
+
+        assertEquals("112 2 3 0 17 0 0 0 -5", store.get(a).toProtocolString());
+        assertEquals(112, store.score(a));
+        assertEquals(3, store.size());
+    }
+}
@@ -0,0 +1,88 @@
+package multiplayerquiz.server;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A map from UUIDs, given as their two longs, to non-negative ints, by open
+ * addressing with linear probing, so lookups neither box nor allocate.
+ * Entries can't be removed.  Lookups don't lock; additions must be made by
+ * one thread at a time (the caller's lock).
+ *
+ * An entry's value is stored (plus one, so 0 means empty) after its key, with
+ * a volatile write, so a lookup that reads a nonzero value sees its key.  The
+ * table is replaced, not resized in place, when it grows, so a lookup racing
+ * an addition may miss the new entry (but nothing else); callers recheck
+ * under their lock before adding.
+ * @author Jeffrey Bosboom <jbosboom@csail.mit.edu>
+ * @since 4/28/2014
+ */
+final class UuidIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final class Table {
+        /**
+         * Keys, two longs per entry.
+         */
+        final long[] keys;
+        final AtomicIntegerArray values;
+        final int mask;
+        Table(int capacity) {
+            this.keys = new long[capacity * 2];
+            this.values = new AtomicIntegerArray(capacity);
+            this.mask = capacity - 1;
+        }
+    }
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    /**
+     * Only touched by adding threads.
+     */
+    private int size;
+
+    /**
+     * @return the value for the UUID with the given bits, or -1 if none
+     */
+    int get(long msb, long lsb) {
+        Table t = table;
+        for (int i = hash(msb, lsb) & t.mask; ; i = (i + 1) & t.mask) {
+            int value = t.values.get(i);
+            if (value == 0)
+                return -1;
+            if (t.keys[2*i] == msb && t.keys[2*i+1] == lsb)
+                return value - 1;
+        }
+    }
+
+    /**
+     * Adds an entry for a UUID not already present.
+     * @param value value >= 0
+     */
+    void add(long msb, long lsb, int value) {
+        //Keep the load factor at most 1/2.
+        if (2 * (size + 1) > table.values.length()) {
+            Table old = table, grown = new Table(old.values.length() * 2);
+            for (int i = 0; i < old.values.length(); ++i)
+                if (old.values.get(i) != 0)
+                    insert(grown, old.keys[2*i], old.keys[2*i+1], old.values.get(i));
+            table = grown;
+        }
+        insert(table, msb, lsb, value + 1);
+        ++size;
+    }
+
+    private static void insert(Table t, long msb, long lsb, int storedValue) {
+        int i = hash(msb, lsb) & t.mask;
+        while (t.values.get(i) != 0)
+            i = (i + 1) & t.mask;
+        t.keys[2*i] = msb;
+        t.keys[2*i+1] = lsb;
+        t.values.set(i, storedValue);
+    }
+
+    /**
+     * Mixes both halves, as neither need be random (ids from
+     * UUID.randomUUID() are, but clients may choose their own).
+     */
+    private static int hash(long msb, long lsb) {
+        long h = (msb ^ Long.rotateLeft(lsb, 32)) * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}